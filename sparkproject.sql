@@ -22,7 +22,8 @@ CREATE TABLE `task` (
   `task_type` varchar(255) DEFAULT NULL,
   `task_status` varchar(255) DEFAULT NULL,
   `task_param` text,
-  PRIMARY KEY (`task_id`)
+  PRIMARY KEY (`task_id`),
+  KEY `idx_task_status` (`task_status`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8
 
 # {"startAge":["10"],"endAge":["50"],"startDate":["2019-02-27"],"endDate":["2019-02-27"]}
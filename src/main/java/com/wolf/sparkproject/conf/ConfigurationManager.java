@@ -46,6 +46,21 @@ public class ConfigurationManager {
 		return 0;
 	}
 	
+	/**
+	 * 获取Long类型的配置项
+	 * @param key
+	 * @return
+	 */
+	public static Long getLong(String key) {
+		String value = getProperty(key);
+		try {
+			return Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		}
+		return 0L;
+	}
+	
 	/**
 	 * 获取布尔类型的配置项
 	 * @param key
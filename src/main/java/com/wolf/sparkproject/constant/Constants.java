@@ -9,10 +9,27 @@ public interface Constants {
      */
     String JDBC_DRIVER = "jdbc.driver";
     String JDBC_DATASOURCE_SIZE = "jdbc.datasource.size";
+    String JDBC_DATASOURCE_MAX_WAIT = "jdbc.datasource.maxwait";
+    String JDBC_BATCH_SIZE = "jdbc.batch.size";
+    String JDBC_WRITE_BEHIND = "jdbc.writebehind";
+    String JDBC_WRITE_BEHIND_QUEUE_SIZE = "jdbc.writebehind.queue.size";
+    String JDBC_WRITE_BEHIND_THREADS = "jdbc.writebehind.threads";
+    String RESULT_SINK_PREFIX = "result.sink.";
+    String RESULT_SINK_FILE = "file";
+    String RESULT_SINK_LOAD_DATA = "loaddata";
+    String RESULT_SINK_FILE_DIR = "result.sink.file.dir";
+    String RESULT_SINK_LOAD_DATA_ROWS = "result.sink.loaddata.rows";
     String JDBC_URL = "jdbc.url";
     String JDBC_USER = "jdbc.user";
     String JDBC_PASSWORD = "jdbc.password";
     String SPARK_LOCAL = "spark.local";
+    String SPARK_USER_INFO_BROADCAST_THRESHOLD = "spark.userinfo.broadcast.threshold";
+    String SESSION_AGGR_DAILY_ENABLED = "session.aggr.daily.enabled";
+    String SESSION_AGGR_DAILY_DIR = "session.aggr.daily.dir";
+    String SESSION_CUBE_ENABLED = "session.cube.enabled";
+    String SESSION_CUBE_DIR = "session.cube.dir";
+    String TASK_SERVER_POLL_INTERVAL = "task.server.poll.interval";
+    String TASK_SERVER_CONCURRENCY = "task.server.concurrency";
 
     /**
      * spark作业相关的常量
@@ -54,6 +71,10 @@ public interface Constants {
     /**
      * 任务相关的常量
      */
+    String TASK_STATUS_CREATED = "created";
+    String TASK_STATUS_RUNNING = "running";
+    String TASK_STATUS_FINISHED = "finished";
+    String TASK_STATUS_FAILED = "failed";
     String PARAM_START_DATE = "startDate";
     String PARAM_END_DATE = "endDate";
     String PARAM_START_AGE = "startAge";
@@ -63,4 +84,8 @@ public interface Constants {
     String PARAM_SEX = "sex";
     String PARAM_KEYWORDS = "keywords";
     String PARAM_CATEGORY_IDS = "categoryIds";
+    String PARAM_TOP_CATEGORY_COUNT = "topCategoryCount";
+    String PARAM_TOP_SESSION_COUNT = "topSessionCount";
+    String PARAM_SCHEDULER_POOL = "schedulerPool";
+    String PARAM_STAT_ONLY = "statOnly";
 }
@@ -1,5 +1,7 @@
 package com.wolf.sparkproject.dao;
 
+import java.util.List;
+
 import com.wolf.sparkproject.domain.SessionDetail;
 
 /**
@@ -11,4 +13,10 @@ public interface ISessionDetailDAO {
      * @param sessionDetail
      */
     void insert(SessionDetail sessionDetail);
+
+    /**
+     * 批量插入session明细数据
+     * @param sessionDetails
+     */
+    void insertBatch(List<SessionDetail> sessionDetails);
 }
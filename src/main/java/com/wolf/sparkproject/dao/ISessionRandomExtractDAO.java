@@ -1,5 +1,7 @@
 package com.wolf.sparkproject.dao;
 
+import java.util.List;
+
 import com.wolf.sparkproject.domain.SessionRandomExtract;
 
 /**
@@ -10,4 +12,9 @@ public interface ISessionRandomExtractDAO {
      * 插入session随机抽取
      */
     void insert(SessionRandomExtract sessionRandomExtract);
+
+    /**
+     * 批量插入session随机抽取
+     */
+    void insertBatch(List<SessionRandomExtract> sessionRandomExtracts);
 }
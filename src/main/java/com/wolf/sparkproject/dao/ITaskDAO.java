@@ -2,6 +2,8 @@ package com.wolf.sparkproject.dao;
 
 import com.wolf.sparkproject.domain.Task;
 
+import java.util.List;
+
 /**
  * 任务管理DAO接口
  */
@@ -12,4 +14,29 @@ public interface ITaskDAO {
      * @return 任务
      */
     Task findById(long taskid);
+
+    /**
+     * 查询指定状态的任务，按任务id排序
+     * @param taskStatus 任务状态
+     * @return 任务列表
+     */
+    List<Task> findByStatus(String taskStatus);
+
+    /**
+     * 领取任务：只有任务当前处于expectedStatus状态时，才更新为running状态并记录开始时间
+     * 多个常驻driver同时轮询task表时，同一个任务只会被一个driver领取
+     * @param taskid 任务id
+     * @param expectedStatus 任务当前应处的状态
+     * @param startTime 开始时间
+     * @return 是否领取成功
+     */
+    boolean start(long taskid, String expectedStatus, String startTime);
+
+    /**
+     * 任务执行结束，更新任务状态和结束时间
+     * @param taskid 任务id
+     * @param taskStatus 任务状态（finished或failed）
+     * @param finishTime 结束时间
+     */
+    void finish(long taskid, String taskStatus, String finishTime);
 }
@@ -1,5 +1,7 @@
 package com.wolf.sparkproject.dao;
 
+import java.util.List;
+
 import com.wolf.sparkproject.domain.Top10Category;
 
 /**
@@ -7,4 +9,5 @@ import com.wolf.sparkproject.domain.Top10Category;
  */
 public interface ITop10CategoryDAO {
     void insert(Top10Category category);
+    void insertBatch(List<Top10Category> categories);
 }
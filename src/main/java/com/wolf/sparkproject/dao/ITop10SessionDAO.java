@@ -1,5 +1,7 @@
 package com.wolf.sparkproject.dao;
 
+import java.util.List;
+
 import com.wolf.sparkproject.domain.Top10Session;
 
 /**
@@ -7,4 +9,5 @@ import com.wolf.sparkproject.domain.Top10Session;
  */
 public interface ITop10SessionDAO {
     void insert(Top10Session top10Session);
+    void insertBatch(List<Top10Session> top10Sessions);
 }
\ No newline at end of file
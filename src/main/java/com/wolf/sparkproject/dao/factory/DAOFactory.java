@@ -1,12 +1,59 @@
 package com.wolf.sparkproject.dao.factory;
 
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
 import com.wolf.sparkproject.dao.*;
 import com.wolf.sparkproject.impl.*;
+import com.wolf.sparkproject.sink.FileResultSink;
+import com.wolf.sparkproject.sink.JDBCResultSink;
+import com.wolf.sparkproject.sink.LoadDataResultSink;
+import com.wolf.sparkproject.sink.ResultSink;
 
 /**
  * DAO工厂类
+ *
+ * 结果表的DAO通过ResultSink输出数据，每张表使用哪种输出在my.properties中配置：
+ * result.sink.<表名>=jdbc|loaddata|file，没有配置时写入MySQL
+ * 写入结束时需要调用awaitWrites等待数据全部写完，写入失败时调用discardWrites丢弃没写出的数据
  */
 public class DAOFactory {
+
+    /**
+     * 等待当前线程输出的结果数据全部写完
+     * 在task写完结果数据之后调用
+     */
+    public static void awaitWrites() {
+        JDBCResultSink.getInstance().flush();
+        LoadDataResultSink.getInstance().flush();
+        FileResultSink.getInstance().flush();
+    }
+
+    /**
+     * 丢弃当前线程还没写出的结果数据
+     * 输出的缓冲区都是线程本地的，task失败时不丢弃的话，会被这个线程执行的下一个task写出去
+     */
+    public static void discardWrites() {
+        JDBCResultSink.getInstance().discard();
+        LoadDataResultSink.getInstance().discard();
+        FileResultSink.getInstance().discard();
+    }
+
+    /**
+     * 获取结果表配置的输出
+     * @param table 表名
+     * @return ResultSink
+     */
+    private static ResultSink getResultSink(String table) {
+        String sink = ConfigurationManager.getProperty(Constants.RESULT_SINK_PREFIX + table);
+        if(Constants.RESULT_SINK_LOAD_DATA.equals(sink)) {
+            return LoadDataResultSink.getInstance();
+        }
+        if(Constants.RESULT_SINK_FILE.equals(sink)) {
+            return FileResultSink.getInstance();
+        }
+        return JDBCResultSink.getInstance();
+    }
+
     /**
      * 获取任务管理DAO
      * @return ITaskDAO
@@ -28,7 +75,7 @@ public class DAOFactory {
      * @return ISessionRandomExtractDAO
      */
     public static ISessionRandomExtractDAO getSessionRandomExtractDAO() {
-        return new SessionRandomExtractDAOImpl();
+        return new SessionRandomExtractDAOImpl(getResultSink("session_random_extract"));
     }
 
     /**
@@ -36,7 +83,7 @@ public class DAOFactory {
      * @return ISessionDetailDAO
      */
     public static ISessionDetailDAO getSessionDetailDAO() {
-        return new SessionDetailDAOImpl();
+        return new SessionDetailDAOImpl(getResultSink("session_detail"));
     }
 
     /**
@@ -44,7 +91,7 @@ public class DAOFactory {
      * @return ITop10CategoryDAO
      */
     public static ITop10CategoryDAO getTop10CategoryDAO() {
-        return new Top10CategoryDAOImpl();
+        return new Top10CategoryDAOImpl(getResultSink("top10_category"));
     }
 
     /**
@@ -52,6 +99,6 @@ public class DAOFactory {
      * @return ITop10SessionDAO
      */
     public static ITop10SessionDAO getTop10SessionDAO() {
-        return new Top10SessionDAOImpl();
+        return new Top10SessionDAOImpl(getResultSink("top10_session"));
     }
 }
@@ -0,0 +1,112 @@
+package com.wolf.sparkproject.domain;
+
+import java.io.Serializable;
+
+/**
+ * 用户访问行为
+ *
+ * 替代user_visit_action查询出来的Row，作为持久化的行为数据和session明细数据
+ * GenericRow中的字段都是装箱后的对象，并且只能按位置访问
+ * 这里id和时间都使用基本类型保存，可能为null的id使用NULL_ID表示
+ * 行为时间使用毫秒值，只有写入MySQL的时候才格式化
+ * 配合ActionRecordSerializer使用Kryo进行序列化
+ */
+public class ActionRecord implements Serializable {
+    private static final long serialVersionUID = -4470932051385924818L;
+
+    /**
+     * 表示id为null
+     */
+    public static final long NULL_ID = -1L;
+
+    //user_visit_action的date分区，按日期范围筛选行为数据时使用，与扫描时的分区条件一致
+    private String date;
+    private long userid;
+    private String sessionid;
+    private long pageid;
+    private long actionTime;
+    private String searchKeyword;
+    private long clickCategoryId = NULL_ID;
+    private long clickProductId = NULL_ID;
+    private String orderCategoryIds;
+    private String orderProductIds;
+    private String payCategoryIds;
+    private String payProductIds;
+
+    public boolean hasClickCategoryId() {
+        return clickCategoryId != NULL_ID;
+    }
+
+    public String getDate() {
+        return date;
+    }
+    public void setDate(String date) {
+        this.date = date;
+    }
+    public long getUserid() {
+        return userid;
+    }
+    public void setUserid(long userid) {
+        this.userid = userid;
+    }
+    public String getSessionid() {
+        return sessionid;
+    }
+    public void setSessionid(String sessionid) {
+        this.sessionid = sessionid;
+    }
+    public long getPageid() {
+        return pageid;
+    }
+    public void setPageid(long pageid) {
+        this.pageid = pageid;
+    }
+    public long getActionTime() {
+        return actionTime;
+    }
+    public void setActionTime(long actionTime) {
+        this.actionTime = actionTime;
+    }
+    public String getSearchKeyword() {
+        return searchKeyword;
+    }
+    public void setSearchKeyword(String searchKeyword) {
+        this.searchKeyword = searchKeyword;
+    }
+    public long getClickCategoryId() {
+        return clickCategoryId;
+    }
+    public void setClickCategoryId(long clickCategoryId) {
+        this.clickCategoryId = clickCategoryId;
+    }
+    public long getClickProductId() {
+        return clickProductId;
+    }
+    public void setClickProductId(long clickProductId) {
+        this.clickProductId = clickProductId;
+    }
+    public String getOrderCategoryIds() {
+        return orderCategoryIds;
+    }
+    public void setOrderCategoryIds(String orderCategoryIds) {
+        this.orderCategoryIds = orderCategoryIds;
+    }
+    public String getOrderProductIds() {
+        return orderProductIds;
+    }
+    public void setOrderProductIds(String orderProductIds) {
+        this.orderProductIds = orderProductIds;
+    }
+    public String getPayCategoryIds() {
+        return payCategoryIds;
+    }
+    public void setPayCategoryIds(String payCategoryIds) {
+        this.payCategoryIds = payCategoryIds;
+    }
+    public String getPayProductIds() {
+        return payProductIds;
+    }
+    public void setPayProductIds(String payProductIds) {
+        this.payProductIds = payProductIds;
+    }
+}
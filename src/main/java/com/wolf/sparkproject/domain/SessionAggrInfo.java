@@ -0,0 +1,93 @@
+package com.wolf.sparkproject.domain;
+
+import java.io.Serializable;
+
+/**
+ * session聚合信息
+ *
+ * 替代原来key=value|key=value格式的聚合串，在各个算子之间直接传递
+ * 职业、城市、性别使用UserInfoDict编码后的int值，时间使用毫秒值
+ * 只有在写入MySQL的时候才格式化成字符串
+ */
+public class SessionAggrInfo implements Serializable {
+    private static final long serialVersionUID = 6083471265108840173L;
+
+    private String sessionid;
+    private long userid;
+    private String[] searchKeywords;
+    private long[] clickCategoryIds;
+    private long visitLength;
+    private int stepLength;
+    private long startTime;
+    private int age;
+    private int professional;
+    private int city;
+    private int sex;
+
+    public String getSessionid() {
+        return sessionid;
+    }
+    public void setSessionid(String sessionid) {
+        this.sessionid = sessionid;
+    }
+    public long getUserid() {
+        return userid;
+    }
+    public void setUserid(long userid) {
+        this.userid = userid;
+    }
+    public String[] getSearchKeywords() {
+        return searchKeywords;
+    }
+    public void setSearchKeywords(String[] searchKeywords) {
+        this.searchKeywords = searchKeywords;
+    }
+    public long[] getClickCategoryIds() {
+        return clickCategoryIds;
+    }
+    public void setClickCategoryIds(long[] clickCategoryIds) {
+        this.clickCategoryIds = clickCategoryIds;
+    }
+    public long getVisitLength() {
+        return visitLength;
+    }
+    public void setVisitLength(long visitLength) {
+        this.visitLength = visitLength;
+    }
+    public int getStepLength() {
+        return stepLength;
+    }
+    public void setStepLength(int stepLength) {
+        this.stepLength = stepLength;
+    }
+    public long getStartTime() {
+        return startTime;
+    }
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+    public int getAge() {
+        return age;
+    }
+    public void setAge(int age) {
+        this.age = age;
+    }
+    public int getProfessional() {
+        return professional;
+    }
+    public void setProfessional(int professional) {
+        this.professional = professional;
+    }
+    public int getCity() {
+        return city;
+    }
+    public void setCity(int city) {
+        this.city = city;
+    }
+    public int getSex() {
+        return sex;
+    }
+    public void setSex(int sex) {
+        this.sex = sex;
+    }
+}
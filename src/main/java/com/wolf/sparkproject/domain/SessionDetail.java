@@ -10,8 +10,8 @@ public class SessionDetail {
     private long pageid;
     private String actionTime;
     private String searchKeyword;
-    private long clickCategoryId;
-    private long clickProductId;
+    private Long clickCategoryId;
+    private Long clickProductId;
     private String orderCategoryIds;
     private String orderProductIds;
     private String payCategoryIds;
@@ -53,16 +53,16 @@ public class SessionDetail {
     public void setSearchKeyword(String searchKeyword) {
         this.searchKeyword = searchKeyword;
     }
-    public long getClickCategoryId() {
+    public Long getClickCategoryId() {
         return clickCategoryId;
     }
-    public void setClickCategoryId(long clickCategoryId) {
+    public void setClickCategoryId(Long clickCategoryId) {
         this.clickCategoryId = clickCategoryId;
     }
-    public long getClickProductId() {
+    public Long getClickProductId() {
         return clickProductId;
     }
-    public void setClickProductId(long clickProductId) {
+    public void setClickProductId(Long clickProductId) {
         this.clickProductId = clickProductId;
     }
     public String getOrderCategoryIds() {
@@ -1,16 +1,44 @@
 package com.wolf.sparkproject.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.wolf.sparkproject.dao.ISessionDetailDAO;
 import com.wolf.sparkproject.domain.SessionDetail;
-import com.wolf.sparkproject.jdbc.JDBCHelper;
+import com.wolf.sparkproject.sink.ResultSink;
 
 /**
  * session明细DAO实现类
+ * 数据写到哪里由ResultSink决定
  */
-public class SessionDetailDAOImpl implements ISessionDetailDAO{
+public class SessionDetailDAOImpl implements ISessionDetailDAO {
+    private static final String TABLE = "session_detail";
+    private static final String[] COLUMNS = new String[]{
+            "task_id", "user_id", "session_id", "page_id",
+            "action_time", "search_keyword", "click_category_id", "click_product_id",
+            "order_category_ids", "order_product_ids", "pay_category_ids", "pay_product_ids"};
+
+    private final ResultSink sink;
+
+    public SessionDetailDAOImpl(ResultSink sink) {
+        this.sink = sink;
+    }
+
     public void insert(SessionDetail sessionDetail) {
-        String sql = "insert into session_detail value(?,?,?,?,?,?,?,?,?,?,?,?)";
-        Object[] params = new Object[] {
+        sink.write(TABLE, COLUMNS, Collections.singletonList(toParams(sessionDetail)));
+    }
+
+    public void insertBatch(List<SessionDetail> sessionDetails) {
+        List<Object[]> paramsList = new ArrayList<Object[]>(sessionDetails.size());
+        for(SessionDetail sessionDetail : sessionDetails) {
+            paramsList.add(toParams(sessionDetail));
+        }
+        sink.write(TABLE, COLUMNS, paramsList);
+    }
+
+    private static Object[] toParams(SessionDetail sessionDetail) {
+        return new Object[] {
                 sessionDetail.getTaskid(),
                 sessionDetail.getUserid(),
                 sessionDetail.getSessionid(),
@@ -23,8 +51,5 @@ public class SessionDetailDAOImpl implements ISessionDetailDAO{
                 sessionDetail.getOrderProductIds(),
                 sessionDetail.getPayCategoryIds(),
                 sessionDetail.getPayProductIds()};
-
-        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
-        jdbcHelper.executeUpdate(sql, params);
     }
 }
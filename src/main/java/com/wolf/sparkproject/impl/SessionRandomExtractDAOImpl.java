@@ -1,24 +1,46 @@
 package com.wolf.sparkproject.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.wolf.sparkproject.dao.ISessionRandomExtractDAO;
 import com.wolf.sparkproject.domain.SessionRandomExtract;
-import com.wolf.sparkproject.jdbc.JDBCHelper;
+import com.wolf.sparkproject.sink.ResultSink;
 
 /**
  * 随机抽取session的DAO实现
+ * 数据写到哪里由ResultSink决定
  */
-public class SessionRandomExtractDAOImpl implements ISessionRandomExtractDAO{
-    //插入session随机抽取
+public class SessionRandomExtractDAOImpl implements ISessionRandomExtractDAO {
+    private static final String TABLE = "session_random_extract";
+    private static final String[] COLUMNS = new String[]{
+            "task_id", "session_id", "start_time", "search_keywords",
+            "click_category_ids"};
+
+    private final ResultSink sink;
+
+    public SessionRandomExtractDAOImpl(ResultSink sink) {
+        this.sink = sink;
+    }
+
     public void insert(SessionRandomExtract sessionRandomExtract) {
-        String sql = "insert into session_random_extract values(?,?,?,?,?)";
+        sink.write(TABLE, COLUMNS, Collections.singletonList(toParams(sessionRandomExtract)));
+    }
+
+    public void insertBatch(List<SessionRandomExtract> sessionRandomExtracts) {
+        List<Object[]> paramsList = new ArrayList<Object[]>(sessionRandomExtracts.size());
+        for(SessionRandomExtract sessionRandomExtract : sessionRandomExtracts) {
+            paramsList.add(toParams(sessionRandomExtract));
+        }
+        sink.write(TABLE, COLUMNS, paramsList);
+    }
 
-        Object[] params = new Object[]{sessionRandomExtract.getTaskid(),
+    private static Object[] toParams(SessionRandomExtract sessionRandomExtract) {
+        return new Object[]{sessionRandomExtract.getTaskid(),
                 sessionRandomExtract.getSessionid(),
                 sessionRandomExtract.getStartTime(),
                 sessionRandomExtract.getSearchKeywords(),
                 sessionRandomExtract.getClickCategoryIds()};
-
-        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
-        jdbcHelper.executeUpdate(sql, params);
     }
 }
@@ -1,10 +1,13 @@
 package com.wolf.sparkproject.impl;
 
+import com.wolf.sparkproject.constant.Constants;
 import com.wolf.sparkproject.dao.ITaskDAO;
 import com.wolf.sparkproject.domain.Task;
 import com.wolf.sparkproject.jdbc.JDBCHelper;
 
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 任务管理DAO实现类
@@ -26,26 +29,88 @@ public class TaskDAOImpl implements ITaskDAO {
             @Override
             public void process(ResultSet rs) throws Exception {
                 if(rs.next()) {
-                    long taskid = rs.getLong(1);
-                    String taskName = rs.getString(2);
-                    String createTime = rs.getString(3);
-                    String startTime = rs.getString(4);
-                    String finishTime = rs.getString(5);
-                    String taskType = rs.getString(6);
-                    String taskStatus = rs.getString(7);
-                    String taskParam = rs.getString(8);
-
-                    task.setTaskid(taskid);
-                    task.setTaskName(taskName);
-                    task.setCreateTime(createTime);
-                    task.setStartTime(startTime);
-                    task.setFinishTime(finishTime);
-                    task.setTaskType(taskType);
-                    task.setTaskStatus(taskStatus);
-                    task.setTaskParam(taskParam);
+                    toTask(rs, task);
                 }
             }
         });
         return task;
     }
+
+    /**
+     * 查询指定状态的任务
+     */
+    @Override
+    public List<Task> findByStatus(String taskStatus) {
+        final List<Task> tasks = new ArrayList<Task>();
+
+        String sql = "select * from task where task_status=? order by task_id";
+        Object[] params = new Object[]{taskStatus};
+
+        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
+        jdbcHelper.executeQuery(sql, params, new JDBCHelper.QueryCallback() {
+
+            @Override
+            public void process(ResultSet rs) throws Exception {
+                while(rs.next()) {
+                    Task task = new Task();
+                    toTask(rs, task);
+                    tasks.add(task);
+                }
+            }
+        });
+        return tasks;
+    }
+
+    /**
+     * 领取任务
+     * 带上当前状态作为更新条件，更新行数为1才表示领取成功
+     */
+    @Override
+    public boolean start(long taskid, String expectedStatus, String startTime) {
+        String sql = "update task set task_status=?,start_time=? where task_id=? and task_status=?";
+        Object[] params = new Object[]{Constants.TASK_STATUS_RUNNING, startTime, taskid, expectedStatus};
+
+        return executeUpdate(sql, params) == 1;
+    }
+
+    /**
+     * 任务执行结束
+     */
+    @Override
+    public void finish(long taskid, String taskStatus, String finishTime) {
+        String sql = "update task set task_status=?,finish_time=? where task_id=?";
+        Object[] params = new Object[]{taskStatus, finishTime, taskid};
+
+        executeUpdate(sql, params);
+    }
+
+    /**
+     * 执行更新语句
+     * 单元测试中覆盖这个方法，不连接MySQL
+     * @return 更新的行数
+     */
+    int executeUpdate(String sql, Object[] params) {
+        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
+        return jdbcHelper.executeUpdate(sql, params);
+    }
+
+    private static void toTask(ResultSet rs, Task task) throws Exception {
+        long taskid = rs.getLong(1);
+        String taskName = rs.getString(2);
+        String createTime = rs.getString(3);
+        String startTime = rs.getString(4);
+        String finishTime = rs.getString(5);
+        String taskType = rs.getString(6);
+        String taskStatus = rs.getString(7);
+        String taskParam = rs.getString(8);
+
+        task.setTaskid(taskid);
+        task.setTaskName(taskName);
+        task.setCreateTime(createTime);
+        task.setStartTime(startTime);
+        task.setFinishTime(finishTime);
+        task.setTaskType(taskType);
+        task.setTaskStatus(taskStatus);
+        task.setTaskParam(taskParam);
+    }
 }
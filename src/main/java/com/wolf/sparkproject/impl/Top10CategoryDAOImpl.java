@@ -1,24 +1,47 @@
 package com.wolf.sparkproject.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.wolf.sparkproject.dao.ITop10CategoryDAO;
 import com.wolf.sparkproject.domain.Top10Category;
-import com.wolf.sparkproject.jdbc.JDBCHelper;
+import com.wolf.sparkproject.sink.ResultSink;
 
 /**
  * top10品类DAO实现
+ * 数据写到哪里由ResultSink决定
  */
 public class Top10CategoryDAOImpl implements ITop10CategoryDAO {
+    private static final String TABLE = "top10_category";
+    private static final String[] COLUMNS = new String[]{
+            "task_id", "category_id", "click_count", "order_count",
+            "pay_count"};
+
+    private final ResultSink sink;
+
+    public Top10CategoryDAOImpl(ResultSink sink) {
+        this.sink = sink;
+    }
 
     public void insert(Top10Category category) {
-        String sql = "insert into top10_category values(?,?,?,?,?)";
-        Object[] params = new Object[]{
+        sink.write(TABLE, COLUMNS, Collections.singletonList(toParams(category)));
+    }
+
+    public void insertBatch(List<Top10Category> categories) {
+        List<Object[]> paramsList = new ArrayList<Object[]>(categories.size());
+        for(Top10Category category : categories) {
+            paramsList.add(toParams(category));
+        }
+        sink.write(TABLE, COLUMNS, paramsList);
+    }
+
+    private static Object[] toParams(Top10Category category) {
+        return new Object[]{
                 category.getTaskid(),
                 category.getCategoryid(),
                 category.getClickCount(),
                 category.getOrderCount(),
                 category.getPayCount()};
-
-        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
-        jdbcHelper.executeUpdate(sql, params);
     }
 }
@@ -1,22 +1,45 @@
 package com.wolf.sparkproject.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.wolf.sparkproject.dao.ITop10SessionDAO;
 import com.wolf.sparkproject.domain.Top10Session;
-import com.wolf.sparkproject.jdbc.JDBCHelper;
+import com.wolf.sparkproject.sink.ResultSink;
 
 /**
  * top10活跃session的DAO实现
+ * 数据写到哪里由ResultSink决定
  */
 public class Top10SessionDAOImpl implements ITop10SessionDAO {
+    private static final String TABLE = "top10_session";
+    private static final String[] COLUMNS = new String[]{
+            "task_id", "category_id", "session_id", "click_count"};
+
+    private final ResultSink sink;
+
+    public Top10SessionDAOImpl(ResultSink sink) {
+        this.sink = sink;
+    }
 
     public void insert(Top10Session top10Session) {
-        String sql = "insert into top10_session values(?,?,?,?)";
-        Object[] params = new Object[]{
+        sink.write(TABLE, COLUMNS, Collections.singletonList(toParams(top10Session)));
+    }
+
+    public void insertBatch(List<Top10Session> top10Sessions) {
+        List<Object[]> paramsList = new ArrayList<Object[]>(top10Sessions.size());
+        for(Top10Session top10Session : top10Sessions) {
+            paramsList.add(toParams(top10Session));
+        }
+        sink.write(TABLE, COLUMNS, paramsList);
+    }
+
+    private static Object[] toParams(Top10Session top10Session) {
+        return new Object[]{
                 top10Session.getTaskid(),
                 top10Session.getCategoryid(),
                 top10Session.getSessionid(),
                 top10Session.getClickCount()};
-        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
-        jdbcHelper.executeUpdate(sql, params);
     }
 }
@@ -5,8 +5,11 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.wolf.sparkproject.conf.ConfigurationManager;
 import com.wolf.sparkproject.constant.Constants;
@@ -46,8 +49,54 @@ public class JDBCHelper {
 			}
 			return instance;
 		}
-	//数据库连接池
-	private LinkedList<Connection> datasource = new LinkedList<Connection>();
+	/**
+	 * 数据库连接池
+	 * 
+	 * 之前的连接池是一个LinkedList，getConnection用synchronized加锁后sleep轮询，
+	 * 归还连接时又不加锁直接push，连接也从不校验，executor上大量线程同时写MySQL时，
+	 * task会在getConnection中空转好几秒
+	 * 
+	 * 现在空闲连接放在阻塞队列中，获取连接时：
+	 * 1.有空闲连接直接取出，空闲时间较长的连接先校验是否有效，失效的关闭后重新创建
+	 * 2.没有空闲连接，并且连接总数没有达到上限，就新建一个连接（连接是按需创建的）
+	 * 3.否则在队列上等待其他线程归还连接，超过最大等待时间抛出异常
+	 */
+	private final LinkedBlockingQueue<IdleConnection> idleConnections =
+			new LinkedBlockingQueue<IdleConnection>();
+	//已经创建的连接数（空闲的加上正在使用的）
+	private final AtomicInteger totalConnections = new AtomicInteger(0);
+	private final int maxConnections;
+	private final long maxWaitMillis;
+	private final String url;
+	private final String user;
+	private final String password;
+	
+	//连接池等待的统计信息
+	private final AtomicLong waitCount = new AtomicLong(0);
+	private final AtomicLong waitTimeoutCount = new AtomicLong(0);
+	private final AtomicLong totalWaitNanos = new AtomicLong(0);
+	private final AtomicLong maxWaitNanos = new AtomicLong(0);
+	
+	/**
+	 * 空闲超过该时间（毫秒）的连接，取出时要先校验是否有效
+	 */
+	private static final long VALIDATION_IDLE_MILLIS = 30 * 1000L;
+	/**
+	 * 校验连接的超时时间（秒）
+	 */
+	private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+	
+	//批量执行时每批的条数
+	private final int batchSize;
+	//批量执行的统计信息
+	private final AtomicLong batchChunkCount = new AtomicLong(0);
+	private final AtomicLong batchRowCount = new AtomicLong(0);
+	private final AtomicLong batchTotalNanos = new AtomicLong(0);
+	private final AtomicLong batchMaxNanos = new AtomicLong(0);
+	/**
+	 * 等待归还连接时每次等待的最长时间（纳秒）
+	 */
+	private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 		
 	/**
 	 * 第三步：实现单例的过程中，创建唯一的数据库连接池
@@ -56,65 +105,206 @@ public class JDBCHelper {
 	 * 
 	 * JDBCHelper在整个程序运行生命周期中，只会创建一次实例
 	 * 在这一次创建实例的过程中，就会调用JDBCHelper()的方法
-	 * 此时，就可以在构造方法中，去创建自己唯一的一个数据库连接池
+	 * 此时只读取连接池的配置，连接在第一次使用时才创建
 	 */
 	private JDBCHelper() {
-		//首先第一步，获取数据库连接池大小，
-		//可以通过在配置文件中配置的方式来灵活设定
-		//在my.propertiesz中添加jdbc.datasource.size=10
-		//在Constants类中添加String JDBC_DATASOURCE_SIZE="jdbc.datasource.size";
-		//先在ConfigurationManager类中添加
-		//public static Integer getInteger (String key) {
-		//	String value = getProperty(key);
-		//	try {
-		//		return Integer.valueOf(value);
-		//	} catch (NumberFormatException e) {
-		//		e.printStackTrace();
-		//	}
-		//	return 0;
-		//}
-		int datasourcesSize = ConfigurationManager.getInteger(Constants.JDBC_DATASOURCE_SIZE);
+		//连接池的最大连接数
+		//在my.properties中配置jdbc.datasource.size=10
+		maxConnections = ConfigurationManager.getInteger(Constants.JDBC_DATASOURCE_SIZE);
+		//获取连接的最大等待时间（毫秒）
+		//在my.properties中配置jdbc.datasource.maxwait=10000
+		maxWaitMillis = ConfigurationManager.getLong(Constants.JDBC_DATASOURCE_MAX_WAIT);
 		
-		//然后创建指定数量的数据库连接，并放入数据库连接池中
-		for(int i = 0; i < datasourcesSize; i++) {
-			//要先在my.properties创建jdbc url user password
-			//jdbc.url=jdbc:mysql://localhost:3306/sparkproject
-			//jdbc.user=root
-			//jdbc.password=root
-			
-			//然后在Constants.java中添加JDBC_URL等信息
-			//String JDBC_URL="jdbc.url";
-			//String JDBC_USER="jdbc.user";
-			//String JDBC_PASSWORD="jdbc.password";
-			//String SPARK_LOCAL = "spark.local";
-			String url = ConfigurationManager.getProperty(Constants.JDBC_URL);
-			String user = ConfigurationManager.getProperty(Constants.JDBC_USER);
-			String password =ConfigurationManager.getProperty(Constants.JDBC_PASSWORD);
-			try {
-				Connection conn = DriverManager.getConnection(url, user, password);
-				datasource.push(conn);
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
-		}
+		//批量执行时每批的条数
+		//在my.properties中配置jdbc.batch.size=500
+		batchSize = ConfigurationManager.getInteger(Constants.JDBC_BATCH_SIZE);
+		
+		url = ConfigurationManager.getProperty(Constants.JDBC_URL);
+		user = ConfigurationManager.getProperty(Constants.JDBC_USER);
+		password = ConfigurationManager.getProperty(Constants.JDBC_PASSWORD);
 	}
 	
 	/**
 	 * 第四步，提供获取数据库连接的方法
 	 * 有可能，获取的时候连接池已经用光了，暂时获取不到数据库连接
-	 * 所以要编写一个简单的等待机制，等待获取到数据库连接
+	 * 这时在阻塞队列上等待其他线程归还连接，最多等待jdbc.datasource.maxwait毫秒
 	 * 
-	 * synchronized设置多线程并发访问限制
+	 * 使用完的连接必须调用returnConnection归还
+	 * @return 数据库连接
+	 * @throws SQLException 创建连接失败或者等待超时
 	 */
-	public synchronized Connection getConnection() {
+	public Connection getConnection() throws SQLException {
+		//先取空闲连接，没有的话尝试新建连接
+		Connection conn = pollIdleConnection();
+		if(conn != null) {
+			return conn;
+		}
+		conn = tryCreateConnection();
+		if(conn != null) {
+			return conn;
+		}
+		
+		//连接池已满，等待其他线程归还连接
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
 		try {
-			while (datasource.size() == 0) {
-				Thread.sleep(10);
+			while(true) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					waitTimeoutCount.incrementAndGet();
+					//超时说明连接池不够用，带上统计信息方便判断是连接数太少还是连接被长时间占用
+					String poolStats = getPoolStats();
+					System.out.println("jdbc connection wait timeout, pool: " + poolStats);
+					throw new SQLException("获取数据库连接超时，等待了" + maxWaitMillis + "毫秒，"
+							+ "连接池大小为" + maxConnections + "，" + poolStats);
+				}
+				//分段等待，失效的连接被关闭腾出位置时，不会有连接归还到队列中，需要定期尝试新建连接
+				IdleConnection idle = idleConnections.poll(
+						Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+				if(idle != null) {
+					conn = validate(idle);
+				} else {
+					conn = tryCreateConnection();
+				}
+				if(conn != null) {
+					return conn;
+				}
 			}
 		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("等待数据库连接时被中断", e);
+		} finally {
+			recordWait(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * 归还数据库连接
+	 * 
+	 * 归还之前恢复自动提交，未提交的事务会被回滚
+	 * 已经关闭或者无法恢复状态的连接直接丢弃
+	 * @param conn 数据库连接
+	 */
+	public void returnConnection(Connection conn) {
+		if(conn == null) {
+			return;
+		}
+		try {
+			if(conn.isClosed()) {
+				discard(conn);
+				return;
+			}
+			if(!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			discard(conn);
+			return;
+		}
+		idleConnections.offer(new IdleConnection(conn, System.currentTimeMillis()));
+	}
+	
+	private Connection pollIdleConnection() {
+		IdleConnection idle;
+		while((idle = idleConnections.poll()) != null) {
+			Connection conn = validate(idle);
+			if(conn != null) {
+				return conn;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * 校验空闲连接，失效的连接关闭后返回null
+	 */
+	private Connection validate(IdleConnection idle) {
+		if(System.currentTimeMillis() - idle.idleSince < VALIDATION_IDLE_MILLIS) {
+			return idle.conn;
+		}
+		try {
+			if(idle.conn.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+				return idle.conn;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		discard(idle.conn);
+		return null;
+	}
+	
+	/**
+	 * 连接总数没有达到上限时新建一个连接，否则返回null
+	 */
+	private Connection tryCreateConnection() throws SQLException {
+		while(true) {
+			int total = totalConnections.get();
+			if(total >= maxConnections) {
+				return null;
+			}
+			if(totalConnections.compareAndSet(total, total + 1)) {
+				break;
+			}
+		}
+		try {
+			return DriverManager.getConnection(url, user, password);
+		} catch (SQLException e) {
+			totalConnections.decrementAndGet();
+			throw e;
+		}
+	}
+	
+	private void discard(Connection conn) {
+		totalConnections.decrementAndGet();
+		try {
+			conn.close();
+		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		return datasource.poll();
+	}
+	
+	private void recordWait(long nanos) {
+		waitCount.incrementAndGet();
+		totalWaitNanos.addAndGet(nanos);
+		long max = maxWaitNanos.get();
+		while(nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+	
+	/**
+	 * 获取连接池的统计信息
+	 * @return 连接数、空闲连接数、等待次数、等待超时次数、平均和最大等待时间
+	 */
+	public String getPoolStats() {
+		long count = waitCount.get();
+		long avgWaitMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / count);
+		return "total=" + totalConnections.get()
+				+ "|idle=" + idleConnections.size()
+				+ "|max=" + maxConnections
+				+ "|waitCount=" + count
+				+ "|waitTimeoutCount=" + waitTimeoutCount.get()
+				+ "|avgWaitMillis=" + avgWaitMillis
+				+ "|maxWaitMillis=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+	
+	private static void closeQuietly(ResultSet rs, PreparedStatement pstmt) {
+		if(rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		if(pstmt != null) {
+			try {
+				pstmt.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
 	/**
@@ -144,9 +334,8 @@ public class JDBCHelper {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}finally {
-			if (conn != null){
-				datasource.push(conn);
-			}
+			closeQuietly(null, pstmt);
+			returnConnection(conn);
 		}
 		return rtn;
 	}
@@ -167,9 +356,8 @@ public class JDBCHelper {
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
-			if (conn != null) {
-				datasource.push(conn);
-			}
+			closeQuietly(rs, pstmt);
+			returnConnection(conn);
 		}
 	}
 	
@@ -187,12 +375,44 @@ public class JDBCHelper {
 	 * 执行的时候，也仅仅编译一次就可以
 	 * 这种批量执行SQL语句的方式，可以大大提升性能
 	 * 
+	 * 每批的条数由jdbc.batch.size配置
+	 * 
 	 * @param sql
 	 * @param paramsList
 	 * @return每条SQL语句影响的行数
 	 */
 	public int[] executeBatch (String sql, List<Object[]> paramsList) {
-		int[] rtn = null;
+		return executeBatch(sql, paramsList, batchSize);
+	}
+	
+	/**
+	 * 分批执行SQL语句
+	 * 
+	 * 之前是在每加入一条参数之后就调用executeBatch，实际上每条SQL还是一次网络请求，
+	 * 而且连接从不归还，自动提交也没有恢复
+	 * 
+	 * 现在每攒够chunkSize条参数执行一次executeBatch并提交，一批一个事务
+	 * jdbc.url中配置rewriteBatchedStatements=true以后，MySQL驱动会把一批insert改写成
+	 * 一条多行的insert语句，一批只需要一次网络请求，这时每条SQL影响的行数为Statement.SUCCESS_NO_INFO
+	 * 
+	 * 某一批执行失败时，这一批会回滚，之前已经提交的批次不受影响，
+	 * 之后的批次不再执行，直接抛出RuntimeException，调用方不需要再检查每条SQL的结果
+	 * 每一批执行完都会打印条数和耗时，汇总的统计信息通过getBatchStats获取
+	 * 
+	 * @param sql
+	 * @param paramsList
+	 * @param chunkSize 每批的条数
+	 * @return 每条SQL语句影响的行数
+	 */
+	public int[] executeBatch (String sql, List<Object[]> paramsList, int chunkSize) {
+		int[] rtn = new int[paramsList.size()];
+		if(paramsList.isEmpty()) {
+			return rtn;
+		}
+		if(chunkSize <= 0) {
+			chunkSize = paramsList.size();
+		}
+		
 		Connection conn = null;
 		PreparedStatement pstmt = null;
 		try {
@@ -200,23 +420,90 @@ public class JDBCHelper {
 			//第一步：使用Connection对象，取消自动提交
 			conn.setAutoCommit(false);
 			pstmt = conn.prepareStatement(sql);
-			//第二步：使用PreparedStatement.addBatch()方法加入批量的SQL参数
-			for(Object[] params : paramsList) {
-				for(int i = 0; i < params.length; i++) {
-					pstmt.setObject(i + 1, params[i]);
+			
+			int chunkStart = 0;
+			while(chunkStart < paramsList.size()) {
+				int chunkEnd = Math.min(chunkStart + chunkSize, paramsList.size());
+				long start = System.nanoTime();
+				
+				//第二步：使用PreparedStatement.addBatch()方法加入这一批的SQL参数
+				for(int index = chunkStart; index < chunkEnd; index++) {
+					Object[] params = paramsList.get(index);
+					for(int i = 0; i < params.length; i++) {
+						pstmt.setObject(i + 1, params[i]);
+					}
+					pstmt.addBatch();
 				}
-				pstmt.addBatch();
-			//第三步：使用PreparedStatement.executeBatch（）方法，执行批量SQL语句
-				rtn = pstmt.executeBatch();
+				//第三步：使用PreparedStatement.executeBatch（）方法，执行这一批SQL语句
+				int[] chunkRtn = pstmt.executeBatch();
+				//最后一步，使用Connecion对象，提交这一批SQL语句
+				conn.commit();
+				
+				long nanos = System.nanoTime() - start;
+				recordBatchChunk(chunkEnd - chunkStart, nanos);
+				System.out.println("jdbc batch chunk: rows=" + (chunkEnd - chunkStart)
+						+ "|millis=" + TimeUnit.NANOSECONDS.toMillis(nanos) + "|sql=" + sql);
+				System.arraycopy(chunkRtn, 0, rtn, chunkStart, chunkRtn.length);
+				chunkStart = chunkEnd;
 			}
-			//最后一步，使用Connecion对象，提交批量的SQL语句
-			conn.commit();
 		} catch (Exception e) {
-			e.printStackTrace();
+			rollbackQuietly(conn);
+			throw new RuntimeException("批量执行SQL失败：" + sql, e);
+		} finally {
+			//归还连接时会回滚未提交的批次，并恢复自动提交
+			closeQuietly(null, pstmt);
+			returnConnection(conn);
 		}
 		return rtn;
 	}
+	
+	private void rollbackQuietly(Connection conn) {
+		if(conn == null) {
+			return;
+		}
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void recordBatchChunk(int rows, long nanos) {
+		batchChunkCount.incrementAndGet();
+		batchRowCount.addAndGet(rows);
+		batchTotalNanos.addAndGet(nanos);
+		long max = batchMaxNanos.get();
+		while(nanos > max && !batchMaxNanos.compareAndSet(max, nanos)) {
+			max = batchMaxNanos.get();
+		}
+	}
+	
+	/**
+	 * 获取批量执行的统计信息
+	 * @return 批次数、总条数、每批的平均和最大耗时
+	 */
+	public String getBatchStats() {
+		long count = batchChunkCount.get();
+		long avgChunkMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(batchTotalNanos.get() / count);
+		return "chunkCount=" + count
+				+ "|rowCount=" + batchRowCount.get()
+				+ "|avgChunkMillis=" + avgChunkMillis
+				+ "|maxChunkMillis=" + TimeUnit.NANOSECONDS.toMillis(batchMaxNanos.get());
+	}
+		
+	/**
+	 * 空闲连接，记录开始空闲的时间
+	 */
+	private static class IdleConnection {
+		final Connection conn;
+		final long idleSince;
 		
+		IdleConnection(Connection conn, long idleSince) {
+			this.conn = conn;
+			this.idleSince = idleSince;
+		}
+	}
+	
 	/**
 	 *内部类：查询回调接口
 	 */
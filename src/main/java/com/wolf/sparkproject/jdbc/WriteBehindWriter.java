@@ -0,0 +1,284 @@
+package com.wolf.sparkproject.jdbc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+
+/**
+ * 异步写入组件（write-behind）
+ * 
+ * 之前结果数据都是在Spark task中同步写入MySQL的，MySQL的延迟会直接阻塞计算线程
+ * 现在DAO只把要执行的SQL和参数放入一个有界队列，由后台的写线程批量写入MySQL，
+ * 计算和数据库IO可以同时进行
+ * 
+ * 1.队列满了以后，write会阻塞，直到写线程腾出空间（反压），内存占用是有界的
+ * 2.写线程每次从队列中取出最多jdbc.batch.size条数据，按SQL分组以后批量执行
+ * 3.task结束之前必须调用flush，等待当前线程之前放入队列的数据全部写完
+ * 
+ * 每个调用线程有自己的写入凭证（WriteTicket），放入队列的每条数据都带着调用线程的凭证，
+ * 写线程执行完以后在凭证上计数，flush只等待当前线程的凭证，不受其他task写入的影响，
+ * 当前线程的数据有写入失败时，flush抛出RuntimeException
+ * 
+ * 每个executor（JVM）只有一个实例，和JDBCHelper一样使用单例
+ */
+public class WriteBehindWriter {
+	
+	private static volatile WriteBehindWriter instance = null;
+	
+	public static WriteBehindWriter getInstance() {
+		if(instance == null) {
+			synchronized(WriteBehindWriter.class) {
+				if(instance == null) {
+					instance = new WriteBehindWriter();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	private final ArrayBlockingQueue<PendingWrite> queue;
+	private final int batchSize;
+	private final BatchExecutor batchExecutor;
+	
+	//放入队列的条数、已经执行完的条数、执行失败的条数，只用于统计
+	private final AtomicLong submittedCount = new AtomicLong(0);
+	private final AtomicLong completedCount = new AtomicLong(0);
+	private final AtomicLong failedCount = new AtomicLong(0);
+	
+	//当前线程还没有flush的写入凭证
+	private final ThreadLocal<WriteTicket> tickets = new ThreadLocal<WriteTicket>();
+	
+	private WriteBehindWriter() {
+		//在my.properties中配置
+		//jdbc.writebehind.queue.size=10000
+		//jdbc.writebehind.threads=2
+		this(ConfigurationManager.getInteger(Constants.JDBC_WRITE_BEHIND_QUEUE_SIZE),
+				ConfigurationManager.getInteger(Constants.JDBC_WRITE_BEHIND_THREADS),
+				ConfigurationManager.getInteger(Constants.JDBC_BATCH_SIZE),
+				new BatchExecutor() {
+					public void executeBatch(String sql, List<Object[]> paramsList) {
+						JDBCHelper.getInstance().executeBatch(sql, paramsList);
+					}
+				});
+	}
+	
+	/**
+	 * 指定批量执行方式的构造方法，单元测试中不连接MySQL
+	 */
+	WriteBehindWriter(int queueSize, int threads, int configuredBatchSize, BatchExecutor batchExecutor) {
+		this.queue = new ArrayBlockingQueue<PendingWrite>(Math.max(queueSize, 1));
+		this.batchSize = Math.max(configuredBatchSize, 1);
+		this.batchExecutor = batchExecutor;
+		
+		for(int i = 0; i < Math.max(threads, 1); i++) {
+			Thread writerThread = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, "write-behind-" + i);
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+	}
+	
+	/**
+	 * 将一条SQL放入写入队列，队列满时阻塞
+	 * @param sql
+	 * @param params
+	 */
+	public void write(String sql, Object[] params) {
+		WriteTicket ticket = tickets.get();
+		if(ticket == null) {
+			ticket = new WriteTicket();
+			tickets.set(ticket);
+		}
+		
+		ticket.submit();
+		submittedCount.incrementAndGet();
+		try {
+			queue.put(new PendingWrite(sql, params, ticket));
+		} catch (InterruptedException e) {
+			ticket.complete(false);
+			submittedCount.decrementAndGet();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("等待写入队列时被中断", e);
+		}
+	}
+	
+	/**
+	 * 将多条SQL放入写入队列，队列满时阻塞
+	 * @param sql
+	 * @param paramsList
+	 */
+	public void write(String sql, List<Object[]> paramsList) {
+		for(Object[] params : paramsList) {
+			write(sql, params);
+		}
+	}
+	
+	/**
+	 * 丢弃当前线程的写入凭证
+	 * 已经放入队列的数据无法撤回，仍然会被写线程执行，但是当前线程的下一次写入使用新的凭证，
+	 * 下一个task的flush不会等待这些数据，也不会因为这些数据写入失败而抛出异常
+	 */
+	public void discard() {
+		tickets.remove();
+	}
+	
+	/**
+	 * 等待当前线程之前放入队列的数据全部写完
+	 * 其中有写入失败的数据时抛出RuntimeException
+	 */
+	public void flush() {
+		WriteTicket ticket = tickets.get();
+		if(ticket == null) {
+			return;
+		}
+		
+		int failed;
+		try {
+			failed = ticket.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("等待写入完成时被中断", e);
+		}
+		
+		//凭证上的数据都已经执行完，下一次写入使用新的凭证
+		tickets.remove();
+		if(failed > 0) {
+			throw new RuntimeException("异步写入失败，失败的条数：" + failed);
+		}
+	}
+	
+	/**
+	 * 写线程：取出一批数据，按SQL分组批量执行
+	 */
+	private void writeLoop() {
+		List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>(batchSize);
+		
+		while(true) {
+			try {
+				pendingWrites.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(pendingWrites, batchSize - 1);
+			
+			try {
+				//同一批中可能有多张表的数据，按SQL分组，保持放入队列的顺序
+				Map<String, List<PendingWrite>> sql2Writes = new LinkedHashMap<String, List<PendingWrite>>();
+				for(PendingWrite pendingWrite : pendingWrites) {
+					List<PendingWrite> writes = sql2Writes.get(pendingWrite.sql);
+					if(writes == null) {
+						writes = new ArrayList<PendingWrite>();
+						sql2Writes.put(pendingWrite.sql, writes);
+					}
+					writes.add(pendingWrite);
+				}
+				
+				//每组单独执行，一组失败时只把这一组的数据记为失败
+				for(Map.Entry<String, List<PendingWrite>> entry : sql2Writes.entrySet()) {
+					List<PendingWrite> writes = entry.getValue();
+					List<Object[]> paramsList = new ArrayList<Object[]>(writes.size());
+					for(PendingWrite write : writes) {
+						paramsList.add(write.params);
+					}
+					
+					boolean success = false;
+					try {
+						batchExecutor.executeBatch(entry.getKey(), paramsList);
+						success = true;
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					complete(writes, success);
+				}
+			} finally {
+				pendingWrites.clear();
+			}
+		}
+	}
+	
+	private void complete(List<PendingWrite> writes, boolean success) {
+		for(PendingWrite write : writes) {
+			write.ticket.complete(success);
+		}
+		completedCount.addAndGet(writes.size());
+		if(!success) {
+			failedCount.addAndGet(writes.size());
+		}
+	}
+	
+	/**
+	 * 获取写入的统计信息
+	 * @return 放入队列的条数、已执行的条数、失败的条数、队列中的条数
+	 */
+	public String getStats() {
+		return "submitted=" + submittedCount.get()
+				+ "|completed=" + completedCount.get()
+				+ "|failed=" + failedCount.get()
+				+ "|queued=" + queue.size();
+	}
+	
+	/**
+	 * 等待写入的SQL
+	 */
+	private static class PendingWrite {
+		final String sql;
+		final Object[] params;
+		final WriteTicket ticket;
+		
+		PendingWrite(String sql, Object[] params, WriteTicket ticket) {
+			this.sql = sql;
+			this.params = params;
+			this.ticket = ticket;
+		}
+	}
+	
+	/**
+	 * 一个调用线程的写入凭证
+	 * 记录这个线程放入队列、还没有执行完的条数，以及执行失败的条数
+	 */
+	private static class WriteTicket {
+		private int pending = 0;
+		private int failed = 0;
+		
+		synchronized void submit() {
+			pending++;
+		}
+		
+		synchronized void complete(boolean success) {
+			pending--;
+			if(!success) {
+				failed++;
+			}
+			if(pending == 0) {
+				notifyAll();
+			}
+		}
+		
+		/**
+		 * 等待凭证上的数据全部执行完
+		 * @return 执行失败的条数
+		 */
+		synchronized int await() throws InterruptedException {
+			while(pending > 0) {
+				wait();
+			}
+			return failed;
+		}
+	}
+	
+	/**
+	 * 批量执行SQL，执行失败时抛出异常
+	 */
+	interface BatchExecutor {
+		void executeBatch(String sql, List<Object[]> paramsList);
+	}
+}
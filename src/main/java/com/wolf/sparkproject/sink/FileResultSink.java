@@ -0,0 +1,149 @@
+package com.wolf.sparkproject.sink;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.alibaba.fastjson.JSONObject;
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+
+/**
+ * 写入本地文件的结果输出
+ *
+ * 每行数据写成一个JSON对象（JSON lines格式），文件按表名和task_id分目录：
+ * <result.sink.file.dir>/<表名>/task_id=<任务id>/part-<uuid>.json
+ * 这种目录结构可以直接用sqlContext.read().json()读取，task_id会被识别为分区列，
+ * 需要列式存储时再转换成Parquet，比如sqlContext.read().json(dir).write().parquet(parquetDir)
+ * 这里不直接写Parquet：DAO只传入每行的值，null值无法推断列的类型，
+ * 各个task写出的文件schema可能不一致，读取时由Spark统一推断更可靠
+ *
+ * 每个线程（Spark中就是每个task）对每个目录只打开一个文件，一直追加写入，flush时关闭
+ * task失败时调用discard关闭并删除这些文件，失败的task写了一半的文件不会留下，
+ * 这个线程执行的下一个task也不会追加到这些文件上
+ */
+public class FileResultSink implements ResultSink {
+
+    private static volatile FileResultSink instance = null;
+
+    public static FileResultSink getInstance() {
+        if(instance == null) {
+            synchronized(FileResultSink.class) {
+                if(instance == null) {
+                    instance = new FileResultSink();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static final String TASK_ID_COLUMN = "task_id";
+
+    private final String rootDir;
+    //当前线程打开的文件，<目录,文件>
+    private final ThreadLocal<Map<String, PartFile>> partFiles = new ThreadLocal<Map<String, PartFile>>() {
+        @Override
+        protected Map<String, PartFile> initialValue() {
+            return new HashMap<String, PartFile>();
+        }
+    };
+
+    private FileResultSink() {
+        rootDir = ConfigurationManager.getProperty(Constants.RESULT_SINK_FILE_DIR);
+    }
+
+    public void write(String table, String[] columns, List<Object[]> rows) {
+        int taskIdIndex = -1;
+        for(int i = 0; i < columns.length; i++) {
+            if(TASK_ID_COLUMN.equals(columns[i])) {
+                taskIdIndex = i;
+            }
+        }
+
+        try {
+            for(Object[] row : rows) {
+                Object taskid = taskIdIndex == -1 ? null : row[taskIdIndex];
+                Writer writer = getWriter(table, taskid);
+
+                //保持列的顺序
+                JSONObject json = new JSONObject(true);
+                for(int i = 0; i < columns.length; i++) {
+                    json.put(columns[i], row[i]);
+                }
+                writer.write(json.toJSONString());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("写入结果文件失败：" + table, e);
+        }
+    }
+
+    public void flush() {
+        Map<String, PartFile> threadPartFiles = partFiles.get();
+        IOException exception = null;
+        for(PartFile partFile : threadPartFiles.values()) {
+            try {
+                partFile.writer.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        threadPartFiles.clear();
+        if(exception != null) {
+            throw new RuntimeException("关闭结果文件失败", exception);
+        }
+    }
+
+    public void discard() {
+        Map<String, PartFile> threadPartFiles = partFiles.get();
+        for(PartFile partFile : threadPartFiles.values()) {
+            try {
+                partFile.writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if(!partFile.file.delete()) {
+                System.out.println("删除结果文件失败：" + partFile.file);
+            }
+        }
+        threadPartFiles.clear();
+    }
+
+    private Writer getWriter(String table, Object taskid) throws IOException {
+        String dir = rootDir + File.separator + table + File.separator
+                + TASK_ID_COLUMN + "=" + taskid;
+        Map<String, PartFile> threadPartFiles = partFiles.get();
+        PartFile partFile = threadPartFiles.get(dir);
+        if(partFile == null) {
+            File directory = new File(dir);
+            if(!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("无法创建目录：" + dir);
+            }
+            File file = new File(directory, "part-" + UUID.randomUUID() + ".json");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            partFile = new PartFile(file, writer);
+            threadPartFiles.put(dir, partFile);
+        }
+        return partFile.writer;
+    }
+
+    /**
+     * 当前线程正在写入的文件
+     */
+    private static class PartFile {
+        final File file;
+        final Writer writer;
+
+        PartFile(File file, Writer writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.wolf.sparkproject.sink;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.jdbc.JDBCHelper;
+import com.wolf.sparkproject.jdbc.WriteBehindWriter;
+
+/**
+ * 写入MySQL的结果输出
+ *
+ * jdbc.writebehind=true时，数据放入WriteBehindWriter的队列，由后台线程批量写入，
+ * 否则直接通过JDBCHelper批量写入，写入失败时抛出异常
+ */
+public class JDBCResultSink implements ResultSink {
+
+    private static volatile JDBCResultSink instance = null;
+
+    public static JDBCResultSink getInstance() {
+        if(instance == null) {
+            synchronized(JDBCResultSink.class) {
+                if(instance == null) {
+                    instance = new JDBCResultSink();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final boolean writeBehind;
+    //每张表的insert语句，<表名,insert语句>
+    private final ConcurrentHashMap<String, String> insertSqls = new ConcurrentHashMap<String, String>();
+
+    private JDBCResultSink() {
+        writeBehind = ConfigurationManager.getBoolean(Constants.JDBC_WRITE_BEHIND);
+    }
+
+    public void write(String table, String[] columns, List<Object[]> rows) {
+        if(rows.isEmpty()) {
+            return;
+        }
+        String sql = getInsertSql(table, columns);
+        if(writeBehind) {
+            WriteBehindWriter.getInstance().write(sql, rows);
+        } else {
+            //只有一行也走executeBatch，executeUpdate失败时只打印异常，这一行会被悄悄丢掉
+            JDBCHelper.getInstance().executeBatch(sql, rows);
+        }
+    }
+
+    public void flush() {
+        if(writeBehind) {
+            WriteBehindWriter.getInstance().flush();
+        }
+    }
+
+    public void discard() {
+        if(writeBehind) {
+            WriteBehindWriter.getInstance().discard();
+        }
+    }
+
+    private String getInsertSql(String table, String[] columns) {
+        String sql = insertSqls.get(table);
+        if(sql == null) {
+            StringBuilder buffer = new StringBuilder("insert into ").append(table).append("(");
+            for(int i = 0; i < columns.length; i++) {
+                buffer.append(i == 0 ? "" : ",").append(columns[i]);
+            }
+            buffer.append(") values(");
+            for(int i = 0; i < columns.length; i++) {
+                buffer.append(i == 0 ? "?" : ",?");
+            }
+            sql = buffer.append(")").toString();
+            insertSqls.put(table, sql);
+        }
+        return sql;
+    }
+}
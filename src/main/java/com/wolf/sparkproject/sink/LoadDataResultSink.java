@@ -0,0 +1,195 @@
+package com.wolf.sparkproject.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.jdbc.JDBCHelper;
+
+/**
+ * 通过LOAD DATA LOCAL INFILE批量导入MySQL的结果输出
+ *
+ * 即使使用了批量insert，逐行insert还是比MySQL的批量导入慢很多
+ * 这里每个线程先把数据按MySQL默认的格式（tab分隔字段、换行分隔行、反斜杠转义、null写成\N）
+ * 写入内存中的缓冲区，攒够result.sink.loaddata.rows行或者flush时，
+ * 通过MySQL驱动的setLocalInfileInputStream把缓冲区作为文件内容，执行一次LOAD DATA LOCAL INFILE
+ * 不需要在本地生成临时文件
+ *
+ * 需要MySQL服务端开启local_infile
+ *
+ * 缓冲区是线程本地的，task失败时需要调用discard清空，否则会被这个线程执行的下一个task导入
+ */
+public class LoadDataResultSink implements ResultSink {
+
+    private static volatile LoadDataResultSink instance = null;
+
+    public static LoadDataResultSink getInstance() {
+        if(instance == null) {
+            synchronized(LoadDataResultSink.class) {
+                if(instance == null) {
+                    instance = new LoadDataResultSink();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final int maxBufferedRows;
+    //当前线程每张表的缓冲区，<表名,缓冲区>
+    private final ThreadLocal<Map<String, TableBuffer>> buffers = new ThreadLocal<Map<String, TableBuffer>>() {
+        @Override
+        protected Map<String, TableBuffer> initialValue() {
+            return new HashMap<String, TableBuffer>();
+        }
+    };
+
+    private LoadDataResultSink() {
+        int rows = ConfigurationManager.getInteger(Constants.RESULT_SINK_LOAD_DATA_ROWS);
+        maxBufferedRows = rows > 0 ? rows : 50000;
+    }
+
+    public void write(String table, String[] columns, List<Object[]> rows) {
+        Map<String, TableBuffer> threadBuffers = buffers.get();
+        TableBuffer buffer = threadBuffers.get(table);
+        if(buffer == null) {
+            buffer = new TableBuffer(table, columns);
+            threadBuffers.put(table, buffer);
+        }
+        try {
+            for(Object[] row : rows) {
+                buffer.append(row);
+                if(buffer.rowCount >= maxBufferedRows) {
+                    load(buffer);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("导入结果数据失败：" + table, e);
+        }
+    }
+
+    public void flush() {
+        try {
+            for(TableBuffer buffer : buffers.get().values()) {
+                if(buffer.rowCount > 0) {
+                    load(buffer);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("导入结果数据失败", e);
+        } finally {
+            buffers.get().clear();
+        }
+    }
+
+    /**
+     * 丢弃当前线程缓冲区中还没导入的数据
+     */
+    public void discard() {
+        buffers.get().clear();
+    }
+
+    /**
+     * 执行LOAD DATA LOCAL INFILE，导入缓冲区中的数据，然后清空缓冲区
+     */
+    private void load(TableBuffer buffer) throws IOException, SQLException {
+        byte[] data = buffer.toByteArray();
+        buffer.reset();
+
+        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
+        Connection conn = null;
+        Statement stmt = null;
+        try {
+            conn = jdbcHelper.getConnection();
+            stmt = conn.createStatement();
+            if(!(stmt instanceof com.mysql.jdbc.Statement)) {
+                throw new SQLException("LOAD DATA LOCAL INFILE只支持MySQL驱动");
+            }
+            //文件名不会被使用，驱动直接读取这里设置的输入流
+            ((com.mysql.jdbc.Statement) stmt).setLocalInfileInputStream(new ByteArrayInputStream(data));
+            stmt.execute(buffer.loadSql);
+        } finally {
+            if(stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            jdbcHelper.returnConnection(conn);
+        }
+    }
+
+    /**
+     * 一张表的缓冲区
+     */
+    private static class TableBuffer {
+        final String loadSql;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer;
+        int rowCount = 0;
+
+        TableBuffer(String table, String[] columns) {
+            StringBuilder sql = new StringBuilder("load data local infile 'stream' into table ")
+                    .append(table).append(" character set utf8 (");
+            for(int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ",").append(columns[i]);
+            }
+            loadSql = sql.append(")").toString();
+            reset();
+        }
+
+        void append(Object[] row) throws IOException {
+            for(int i = 0; i < row.length; i++) {
+                if(i > 0) {
+                    writer.write('\t');
+                }
+                if(row[i] == null) {
+                    writer.write("\\N");
+                } else {
+                    writeEscaped(String.valueOf(row[i]));
+                }
+            }
+            writer.write('\n');
+            rowCount++;
+        }
+
+        private void writeEscaped(String value) throws IOException {
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch(c) {
+                    case '\\': writer.write("\\\\"); break;
+                    case '\t': writer.write("\\t"); break;
+                    case '\n': writer.write("\\n"); break;
+                    case '\r': writer.write("\\r"); break;
+                    case '\0': writer.write("\\0"); break;
+                    default: writer.write(c);
+                }
+            }
+        }
+
+        byte[] toByteArray() throws IOException {
+            writer.flush();
+            return bytes.toByteArray();
+        }
+
+        void reset() {
+            bytes.reset();
+            try {
+                writer = new OutputStreamWriter(bytes, "UTF-8");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            rowCount = 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.wolf.sparkproject.sink;
+
+import java.util.List;
+
+/**
+ * 结果数据输出接口
+ *
+ * DAO把要写入的结果表数据转换成表名、列名和每行的值，交给ResultSink输出
+ * 每张结果表使用哪种输出，通过my.properties中的result.sink.<表名>配置，由DAOFactory选择
+ * 1.jdbc：写入MySQL（默认）
+ * 2.loaddata：通过LOAD DATA LOCAL INFILE批量导入MySQL
+ * 3.file：按task_id分目录写成JSON lines文件
+ */
+public interface ResultSink {
+
+    /**
+     * 输出多行数据，调用返回时数据不一定已经写完
+     * @param table 表名
+     * @param columns 列名
+     * @param rows 每行的值，顺序和列名一致
+     */
+    void write(String table, String[] columns, List<Object[]> rows);
+
+    /**
+     * 等待当前线程之前输出的数据全部写完
+     * 在task写完结果数据之后调用
+     */
+    void flush();
+
+    /**
+     * 丢弃当前线程还没写出的数据
+     * 在task写入失败时调用，当前线程执行的下一个task不会写出或者追加到这些数据上
+     */
+    void discard();
+}
@@ -0,0 +1,50 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.wolf.sparkproject.domain.ActionRecord;
+
+/**
+ * ActionRecord的Kryo序列化器
+ *
+ * 按固定顺序直接写字段，不写字段名和类型信息
+ * id使用变长编码（NULL_ID为-1，zigzag编码后只占1个字节），字符串可以为null
+ */
+public class ActionRecordSerializer extends Serializer<ActionRecord> {
+
+    @Override
+    public void write(Kryo kryo, Output output, ActionRecord record) {
+        output.writeString(record.getDate());
+        output.writeLong(record.getUserid(), false);
+        output.writeString(record.getSessionid());
+        output.writeLong(record.getPageid(), false);
+        output.writeLong(record.getActionTime(), true);
+        output.writeString(record.getSearchKeyword());
+        output.writeLong(record.getClickCategoryId(), false);
+        output.writeLong(record.getClickProductId(), false);
+        output.writeString(record.getOrderCategoryIds());
+        output.writeString(record.getOrderProductIds());
+        output.writeString(record.getPayCategoryIds());
+        output.writeString(record.getPayProductIds());
+    }
+
+    @Override
+    public ActionRecord read(Kryo kryo, Input input, Class<ActionRecord> type) {
+        ActionRecord record = new ActionRecord();
+        record.setDate(input.readString());
+        record.setUserid(input.readLong(false));
+        record.setSessionid(input.readString());
+        record.setPageid(input.readLong(false));
+        record.setActionTime(input.readLong(true));
+        record.setSearchKeyword(input.readString());
+        record.setClickCategoryId(input.readLong(false));
+        record.setClickProductId(input.readLong(false));
+        record.setOrderCategoryIds(input.readString());
+        record.setOrderProductIds(input.readString());
+        record.setPayCategoryIds(input.readString());
+        record.setPayProductIds(input.readString());
+        return record;
+    }
+}
@@ -0,0 +1,21 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+import scala.Tuple2;
+
+/**
+ * 热门品类比较器
+ *
+ * 配合takeOrdered对<categoryid,sortKey>使用，按照CategorySortKey降序排列，点击、下单、支付次数越多的品类越靠前
+ * takeOrdered会把比较器发送到各个task中，所以必须实现Serializable接口
+ */
+public class CategoryCountComparator implements Comparator<Tuple2<Long, CategorySortKey>>, Serializable {
+
+    private static final long serialVersionUID = 3209567428510683911L;
+
+    public int compare(Tuple2<Long, CategorySortKey> o1, Tuple2<Long, CategorySortKey> o2) {
+        return CategorySortKey.COMPARATOR.compare(o2._2, o1._2);
+    }
+}
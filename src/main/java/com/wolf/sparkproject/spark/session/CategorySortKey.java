@@ -1,6 +1,7 @@
 package com.wolf.sparkproject.spark.session;
 
 import java.io.Serializable;
+import java.util.Comparator;
 
 import scala.math.Ordered;
 
@@ -14,11 +15,18 @@ import scala.math.Ordered;
  * 依次使用三个次数进行比较，如果某一个相等，那么就比较下一个
  *
  * 自定义的二次排序key，必须要实现serializable接口，表明是可以序列化 的，否则会报错
+ *
+ * 所有比较都使用同一个compare方法，需要Comparator的地方（比如takeOrdered、有界堆）使用COMPARATOR
  */
 public class CategorySortKey implements Ordered<CategorySortKey>, Serializable {
 
     private static final long serialVersionUID = -565992549650791884L;
 
+    /**
+     * 升序比较器，可以序列化，能够直接在Spark算子中使用
+     */
+    public static final Comparator<CategorySortKey> COMPARATOR = new SortKeyComparator();
+
     private long clickCount;
     private long orderCount;
     private long payCount;
@@ -30,76 +38,45 @@ public class CategorySortKey implements Ordered<CategorySortKey>, Serializable {
         this.payCount = payCount;
     }
 
-    public boolean $greater(CategorySortKey other) {
-        if (clickCount > other.getClickCount()) {
-            return true;
-        } else if (clickCount == other.getClickCount() &&
-                orderCount > other.getOrderCount()) {
-            return true;
-        } else if (clickCount == other.getClickCount() &&
-                orderCount == other.getOrderCount() &&
-                payCount > other.getPayCount()) {
-            return true;
+    /**
+     * 依次比较点击、下单和支付次数
+     *
+     * 不能用两个次数相减再强转成int的方式比较，次数超过int范围时会截断或溢出，导致排序错误
+     */
+    public static int compare(CategorySortKey a, CategorySortKey b) {
+        int result = Long.compare(a.clickCount, b.clickCount);
+        if (result != 0) {
+            return result;
         }
-        return false;
+        result = Long.compare(a.orderCount, b.orderCount);
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(a.payCount, b.payCount);
+    }
+
+    public boolean $greater(CategorySortKey other) {
+        return compare(this, other) > 0;
     }
 
     public boolean $greater$eq(CategorySortKey other) {
-        if ($greater(other)) {
-            return true;
-        } else if (clickCount == other.getClickCount() &&
-                orderCount == other.getOrderCount() &&
-                payCount == other.getPayCount()) {
-            return true;
-        }
-        return false;
+        return compare(this, other) >= 0;
     }
 
     public boolean $less(CategorySortKey other) {
-        if (clickCount < other.getClickCount()) {
-            return true;
-        } else if (clickCount == other.getClickCount() &&
-                orderCount < other.getOrderCount()) {
-            return true;
-        } else if (clickCount == other.getClickCount() &&
-                orderCount == other.getOrderCount() &&
-                payCount < other.getPayCount()) {
-            return true;
-        }
-        return false;
+        return compare(this, other) < 0;
     }
 
     public boolean $less$eq(CategorySortKey other) {
-        if ($less(other)) {
-            return true;
-        } else if (clickCount == other.getClickCount() &&
-                orderCount == other.getOrderCount() &&
-                payCount == other.getPayCount()) {
-            return true;
-        }
-        return false;
+        return compare(this, other) <= 0;
     }
 
     public int compare(CategorySortKey other) {
-        if (clickCount - other.getClickCount() != 0) {
-            return (int) (clickCount - other.getClickCount());
-        } else if (orderCount - other.getOrderCount() != 0) {
-            return (int) (orderCount - other.getOrderCount());
-        } else if (payCount - other.getPayCount() != 0) {
-            return (int) (payCount - other.getPayCount());
-        }
-        return 0;
+        return compare(this, other);
     }
 
     public int compareTo(CategorySortKey other) {
-        if (clickCount - other.getClickCount() != 0) {
-            return (int) (clickCount - other.getClickCount());
-        } else if (orderCount - other.getOrderCount() != 0) {
-            return (int) (orderCount - other.getOrderCount());
-        } else if (payCount - other.getPayCount() != 0) {
-            return (int) (payCount - other.getPayCount());
-        }
-        return 0;
+        return compare(this, other);
     }
 
     public long getClickCount() {
@@ -125,4 +102,13 @@ public class CategorySortKey implements Ordered<CategorySortKey>, Serializable {
     public void setPayCount(long payCount) {
         this.payCount = payCount;
     }
+
+    private static class SortKeyComparator implements Comparator<CategorySortKey>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public int compare(CategorySortKey o1, CategorySortKey o2) {
+            return CategorySortKey.compare(o1, o2);
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.domain.ActionRecord;
+import com.wolf.sparkproject.util.DateUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 每日session聚合作业
+ *
+ * 已经结束的日期，session的访问行为不会再变化，但是之前每个任务都要从行为数据重新聚合一遍
+ * 这个作业每天把前一天的行为数据按session聚合一次，以Parquet格式写入session.aggr.daily.dir/date=yyyy-MM-dd目录，
+ * 任务执行时，已经结束并且物化过的日期直接读取聚合结果，只有还没有结束的日期才从行为数据聚合
+ *
+ * 物化的是与用户信息join之前的SessionAggrBuffer，每个session每天一行，
+ * 用户信息的过滤和join仍然在任务中进行，user_info变化以后不需要重新物化
+ * 同一天重新执行会覆盖当天的结果
+ *
+ * 使用方式：spark-submit时传入要物化的日期（yyyy-MM-dd），可以传入多个，不传时物化昨天
+ */
+public class DailySessionAggrSpark {
+
+    /**
+     * 每日session聚合结果的表结构
+     */
+    private static final StructType SCHEMA = DataTypes.createStructType(Arrays.asList(
+            DataTypes.createStructField("session_id", DataTypes.StringType, false),
+            DataTypes.createStructField("user_id", DataTypes.LongType, false),
+            DataTypes.createStructField("search_keywords",
+                    DataTypes.createArrayType(DataTypes.StringType, false), false),
+            DataTypes.createStructField("click_category_ids",
+                    DataTypes.createArrayType(DataTypes.LongType, false), false),
+            DataTypes.createStructField("start_time", DataTypes.LongType, false),
+            DataTypes.createStructField("end_time", DataTypes.LongType, false),
+            DataTypes.createStructField("step_length", DataTypes.IntegerType, false)));
+
+    public static void main(String[] args) {
+        List<String> dates = new ArrayList<String>();
+        if(args != null && args.length > 0) {
+            dates.addAll(Arrays.asList(args));
+        } else {
+            dates.add(DateUtils.getYesterdayDate());
+        }
+
+        JavaSparkContext sc = UserVisitSessionAnalyzeSpark.createSparkContext();
+        SQLContext sqlContext = UserVisitSessionAnalyzeSpark.getSQLContext(sc.sc());
+
+        //生成模拟测试数据
+        UserVisitSessionAnalyzeSpark.mockData(sc, sqlContext);
+
+        for(String date : dates) {
+            materialize(sqlContext, date);
+        }
+
+        //关闭spark上下文
+        sc.close();
+    }
+
+    /**
+     * 聚合一天的行为数据，并写入这一天的目录
+     * 还没有结束的日期不物化
+     * @param sqlContext SQLContext
+     * @param date 日期
+     */
+    static void materialize(SQLContext sqlContext, String date) {
+        if(!isClosed(date)) {
+            System.err.println("日期" + date + "还没有结束，不能物化session聚合结果");
+            return;
+        }
+
+        JavaPairRDD<String, ActionRecord> sessionid2ActionRDD = UserVisitSessionAnalyzeSpark.getSessionid2ActionRDD(
+                UserVisitSessionAnalyzeSpark.getActionRDD(
+                        sqlContext, UserVisitSessionAnalyzeSpark.dateBetween(date, date)));
+
+        JavaRDD<Row> rowRDD = UserVisitSessionAnalyzeSpark.aggregateActions(sessionid2ActionRDD).map(
+                new Function<Tuple2<String, SessionAggrBuffer>, Row>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Row call(Tuple2<String, SessionAggrBuffer> tuple) throws Exception {
+                        SessionAggrBuffer buffer = tuple._2;
+                        return RowFactory.create(tuple._1, buffer.getUserid(),
+                                buffer.getSearchKeywords().toArray(new String[0]),
+                                buffer.getClickCategoryIds().toArray(new Long[0]),
+                                buffer.getStartTime(), buffer.getEndTime(), buffer.getStepLength());
+                    }
+                });
+
+        sqlContext.createDataFrame(rowRDD, SCHEMA).write().mode(SaveMode.Overwrite).parquet(getPath(date));
+    }
+
+    /**
+     * 读取多天的session聚合结果
+     * 跨天的session每天各有一个缓冲区，需要调用方按sessionid合并
+     * @param sqlContext SQLContext
+     * @param dates 已经物化的日期
+     * @return <sessionid,聚合缓冲区>
+     */
+    static JavaPairRDD<String, SessionAggrBuffer> load(SQLContext sqlContext, List<String> dates) {
+        String[] paths = new String[dates.size()];
+        for(int i = 0; i < dates.size(); i++) {
+            paths[i] = getPath(dates.get(i));
+        }
+
+        return sqlContext.read().parquet(paths).javaRDD().mapToPair(
+                new PairFunction<Row, String, SessionAggrBuffer>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Tuple2<String, SessionAggrBuffer> call(Row row) throws Exception {
+                        SessionAggrBuffer buffer = SessionAggrBuffer.restore(row.getLong(1),
+                                row.<String>getList(2), row.<Long>getList(3),
+                                row.getLong(4), row.getLong(5), row.getInt(6));
+                        return new Tuple2<String, SessionAggrBuffer>(row.getString(0), buffer);
+                    }
+                });
+    }
+
+    /**
+     * 日期是否已经结束，今天及以后的日期还会有新的访问行为
+     */
+    static boolean isClosed(String date) {
+        return date.compareTo(DateUtils.getTodayDate()) < 0;
+    }
+
+    /**
+     * 日期是否已经物化
+     */
+    static boolean isMaterialized(JavaSparkContext sc, String date) {
+        return hasSuccessMarker(sc, getPath(date));
+    }
+
+    /**
+     * 目录是否已经写入成功
+     * Parquet写入成功以后，目录中才会有_SUCCESS文件
+     */
+    static boolean hasSuccessMarker(JavaSparkContext sc, String dir) {
+        Path successPath = new Path(dir, "_SUCCESS");
+        try {
+            FileSystem fs = successPath.getFileSystem(sc.hadoopConfiguration());
+            return fs.exists(successPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static String getPath(String date) {
+        return ConfigurationManager.getProperty(Constants.SESSION_AGGR_DAILY_DIR) + "/date=" + date;
+    }
+}
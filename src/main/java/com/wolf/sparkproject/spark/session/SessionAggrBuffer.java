@@ -0,0 +1,184 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.wolf.sparkproject.domain.ActionRecord;
+import com.wolf.sparkproject.domain.SessionAggrInfo;
+import com.wolf.sparkproject.util.StringUtils;
+
+/**
+ * session聚合缓冲区
+ *
+ * 配合aggregateByKey使用，替代原来的groupByKey
+ * groupByKey会将每一行访问行为数据都shuffle到reduce端，再把整个session的行为放到一个Iterable里
+ * 对于访问步长很长的session，很容易导致executor OOM
+ *
+ * 使用aggregateByKey后，map端会先对同一个session的行为数据进行局部聚合（combine）
+ * shuffle的只是聚合后的缓冲区对象，reduce端再对各个局部缓冲区进行合并
+ *
+ * 缓冲区中保存：userid、搜索词集合、点击品类集合、起始结束时间、访问步长
+ * 该类需要在Kryo中注册
+ */
+public class SessionAggrBuffer implements Serializable {
+
+    private static final long serialVersionUID = 4718365012593412879L;
+
+    private long userid = -1L;
+    //使用LinkedHashSet去重，同时保留搜索词和点击品类出现的顺序
+    private Set<String> searchKeywords = new LinkedHashSet<String>();
+    private Set<Long> clickCategoryIds = new LinkedHashSet<Long>();
+    //session的起始和结束时间（毫秒）
+    private long startTime = Long.MAX_VALUE;
+    private long endTime = Long.MIN_VALUE;
+    //session的访问步长
+    private int stepLength = 0;
+
+    /**
+     * 将一行访问行为数据累加到缓冲区中（seqOp）
+     * @param action 访问行为数据
+     * @return 缓冲区本身
+     */
+    public SessionAggrBuffer add(ActionRecord action) {
+        if(userid == -1L) {
+            userid = action.getUserid();
+        }
+
+        //只有搜索行为有searchKeyword字段，只有点击行为有clickCategoryId字段
+        String searchKeyword = action.getSearchKeyword();
+        if(StringUtils.isNotEmpty(searchKeyword)) {
+            searchKeywords.add(searchKeyword);
+        }
+        if(action.hasClickCategoryId()) {
+            clickCategoryIds.add(action.getClickCategoryId());
+        }
+
+        long actionTime = action.getActionTime();
+        if(actionTime < startTime) {
+            startTime = actionTime;
+        }
+        if(actionTime > endTime) {
+            endTime = actionTime;
+        }
+
+        stepLength ++;
+        return this;
+    }
+
+    /**
+     * 合并另一个局部缓冲区（combOp）
+     * @param other 另一个缓冲区
+     * @return 缓冲区本身
+     */
+    public SessionAggrBuffer merge(SessionAggrBuffer other) {
+        if(userid == -1L) {
+            userid = other.userid;
+        }
+        searchKeywords.addAll(other.searchKeywords);
+        clickCategoryIds.addAll(other.clickCategoryIds);
+        if(other.startTime < startTime) {
+            startTime = other.startTime;
+        }
+        if(other.endTime > endTime) {
+            endTime = other.endTime;
+        }
+        stepLength += other.stepLength;
+        return this;
+    }
+
+    /**
+     * 根据保存下来的聚合结果还原缓冲区（见DailySessionAggrSpark）
+     * @return 缓冲区
+     */
+    public static SessionAggrBuffer restore(long userid, List<String> searchKeywords,
+            List<Long> clickCategoryIds, long startTime, long endTime, int stepLength) {
+        SessionAggrBuffer buffer = new SessionAggrBuffer();
+        buffer.userid = userid;
+        buffer.searchKeywords.addAll(searchKeywords);
+        buffer.clickCategoryIds.addAll(clickCategoryIds);
+        buffer.startTime = startTime;
+        buffer.endTime = endTime;
+        buffer.stepLength = stepLength;
+        return buffer;
+    }
+
+    /**
+     * 是否搜索过任何一个指定的关键词
+     */
+    public boolean containsAnySearchKeyword(Set<String> keywords) {
+        for(String keyword : searchKeywords) {
+            if(keywords.contains(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否点击过任何一个指定的品类
+     */
+    public boolean containsAnyClickCategoryId(Set<Long> categoryIds) {
+        for(Long categoryId : clickCategoryIds) {
+            if(categoryIds.contains(categoryId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * session访问时长（秒）
+     */
+    public long getVisitLength() {
+        return (endTime - startTime) / 1000;
+    }
+
+    /**
+     * 生成session的部分聚合信息，用户信息相关的字段在与user_info进行join之后再填充
+     * @param sessionid session id
+     * @return session聚合信息
+     */
+    public SessionAggrInfo toAggrInfo(String sessionid) {
+        long[] categoryIds = new long[clickCategoryIds.size()];
+        int i = 0;
+        for(Long clickCategoryId : clickCategoryIds) {
+            categoryIds[i++] = clickCategoryId;
+        }
+
+        SessionAggrInfo aggrInfo = new SessionAggrInfo();
+        aggrInfo.setSessionid(sessionid);
+        aggrInfo.setUserid(userid);
+        aggrInfo.setSearchKeywords(searchKeywords.toArray(new String[searchKeywords.size()]));
+        aggrInfo.setClickCategoryIds(categoryIds);
+        aggrInfo.setVisitLength(getVisitLength());
+        aggrInfo.setStepLength(stepLength);
+        aggrInfo.setStartTime(startTime);
+        return aggrInfo;
+    }
+
+    public long getUserid() {
+        return userid;
+    }
+
+    public Set<String> getSearchKeywords() {
+        return searchKeywords;
+    }
+
+    public Set<Long> getClickCategoryIds() {
+        return clickCategoryIds;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public int getStepLength() {
+        return stepLength;
+    }
+}
@@ -0,0 +1,211 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.dao.ITaskDAO;
+import com.wolf.sparkproject.dao.factory.DAOFactory;
+import com.wolf.sparkproject.domain.Task;
+import com.wolf.sparkproject.util.DateUtils;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SQLContext;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 常驻的session分析任务服务
+ *
+ * 每个任务单独spark-submit一次时，JVM、SparkContext、Hive元数据和JDBC连接池都要重新初始化，
+ * 对于数据量很小的交互式任务，启动时间占了大部分的耗时
+ * 这里只构建一次spark上下文，然后轮询task表中created状态的任务，在同一个上下文中执行，
+ * 并更新任务的task_status、start_time和finish_time
+ *
+ * 任务在单独的线程中提交，最多同时执行task.server.concurrency个任务，
+ * 不同任务的job按调度池公平调度（见UserVisitSessionAnalyzeSpark.run）
+ * 没有空闲线程时不领取任务，任务留在task表中，其他driver也可以领取
+ *
+ * 任务状态：created -> running -> finished / failed
+ */
+public class SessionAnalyzeTaskServer {
+
+    /**
+     * 没有配置轮询间隔时，默认的轮询间隔（毫秒）
+     */
+    private static final long DEFAULT_POLL_INTERVAL = 2000L;
+
+    /**
+     * 没有配置并发数时，默认同时执行的任务数
+     */
+    private static final int DEFAULT_CONCURRENCY = 1;
+
+    private final JavaSparkContext sc;
+    private final SQLContext sqlContext;
+    private final ITaskDAO taskDAO;
+    private final long pollInterval;
+    private final Semaphore slots;
+    private final ExecutorService executor;
+
+    private volatile boolean running = true;
+
+    public SessionAnalyzeTaskServer(JavaSparkContext sc, SQLContext sqlContext) {
+        this.sc = sc;
+        this.sqlContext = sqlContext;
+        this.taskDAO = DAOFactory.getTaskDAO();
+
+        Long interval = ConfigurationManager.getLong(Constants.TASK_SERVER_POLL_INTERVAL);
+        this.pollInterval = interval != null && interval > 0 ? interval : DEFAULT_POLL_INTERVAL;
+
+        Integer concurrency = ConfigurationManager.getInteger(Constants.TASK_SERVER_CONCURRENCY);
+        if(concurrency == null || concurrency <= 0) {
+            concurrency = DEFAULT_CONCURRENCY;
+        }
+        this.slots = new Semaphore(concurrency);
+        this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "session-task-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        final JavaSparkContext sc = UserVisitSessionAnalyzeSpark.createSparkContext();
+        SQLContext sqlContext = UserVisitSessionAnalyzeSpark.getSQLContext(sc.sc());
+
+        //生成模拟测试数据，只在启动时生成一次
+        UserVisitSessionAnalyzeSpark.mockData(sc, sqlContext);
+
+        final SessionAnalyzeTaskServer server = new SessionAnalyzeTaskServer(sc, sqlContext);
+
+        //进程退出时停止轮询，取消正在执行的job，等任务状态更新为failed以后再关闭spark上下文
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+                sc.cancelAllJobs();
+                server.awaitTermination();
+                sc.close();
+            }
+        });
+
+        server.serve();
+    }
+
+    /**
+     * 轮询task表并执行任务，直到调用stop()
+     */
+    public void serve() {
+        while(running) {
+            List<Task> tasks;
+            try {
+                tasks = taskDAO.findByStatus(Constants.TASK_STATUS_CREATED);
+            } catch (Exception e) {
+                e.printStackTrace();
+                tasks = null;
+            }
+
+            int submitted = 0;
+            if(tasks != null) {
+                for(Task task : tasks) {
+                    //没有空闲线程时，剩下的任务等下一轮再领取
+                    if(!running || !slots.tryAcquire()) {
+                        break;
+                    }
+                    if(submit(task)) {
+                        submitted++;
+                    } else {
+                        slots.release();
+                    }
+                }
+            }
+
+            //本轮提交过任务时立即开始下一轮，否则等待一个轮询间隔
+            if(submitted == 0) {
+                try {
+                    Thread.sleep(pollInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止轮询，不再领取新的任务，已经提交的任务会执行完毕
+     */
+    public void stop() {
+        running = false;
+        executor.shutdown();
+    }
+
+    /**
+     * 等待已经提交的任务全部结束
+     */
+    public void awaitTermination() {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 领取一个任务，并提交到线程池中执行
+     * 领取失败说明任务已经被其他driver领取，或者状态已经被修改，直接跳过
+     * @return 是否提交成功
+     */
+    private boolean submit(final Task task) {
+        String startTime = DateUtils.formatTime(System.currentTimeMillis());
+        if(!taskDAO.start(task.getTaskid(), Constants.TASK_STATUS_CREATED, startTime)) {
+            return false;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(task);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //领取任务的同时服务被停止，任务已经没有机会执行了
+            taskDAO.finish(task.getTaskid(), Constants.TASK_STATUS_FAILED,
+                    DateUtils.formatTime(System.currentTimeMillis()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 执行一个已经领取的任务，并记录执行结果
+     * 默认记为failed，只有run正常返回才记为finished，抛出Error时任务也不会被记为finished
+     */
+    private void execute(Task task) {
+        String taskStatus = Constants.TASK_STATUS_FAILED;
+        try {
+            UserVisitSessionAnalyzeSpark.run(sc, sqlContext, task);
+            taskStatus = Constants.TASK_STATUS_FINISHED;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            taskDAO.finish(task.getTaskid(), taskStatus,
+                    DateUtils.formatTime(System.currentTimeMillis()));
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.alibaba.fastjson.JSONObject;
+import com.wolf.sparkproject.conf.ConfigurationManager;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.domain.Task;
+import com.wolf.sparkproject.util.DateUtils;
+import com.wolf.sparkproject.util.ParamUtils;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import scala.Tuple2;
+import scala.Tuple4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 每日session cube作业
+ *
+ * filterSessionAndAggrStat中的用户属性条件（年龄、职业、城市、性别）取值都不多，
+ * 而session_aggr_stat只需要各个访问时长、访问步长区间的session数量
+ * 这个作业每天按<年龄,职业,城市,性别>对session进行预聚合，每个维度组合保存
+ * 与SesssionAggrStatAccumulator相同的16个计数（session总数和各个区间的数量），
+ * 以Parquet格式写入session.cube.dir/date=yyyy-MM-dd目录
+ *
+ * 只需要统计占比的任务（任务参数statOnly为true）直接在cube上过滤、求和，不需要读取行为数据
+ * 指定了搜索词或点击品类条件的任务，或者日期范围内有还没有生成cube的日期时，仍然执行完整的计算过程
+ *
+ * 访问时长和访问步长的区间不是过滤条件，所以作为计数而不是维度保存，cube的行数只取决于用户属性的组合
+ * 年龄不分段，任务的年龄范围是任意的，分段以后无法精确过滤
+ *
+ * cube按天生成，只用于计算日期范围是单独一天的任务
+ * 单独一天的任务只扫描这一天的date分区，跨天的session也只统计这一天的行为，与cube一致；
+ * 多天的任务会把同一个session各天的行为合并以后再划分区间，各天cube的计数不能直接相加，仍然执行完整的计算过程
+ *
+ * 用户属性取的是生成cube时user_info中的值，之后user_info有变化时，cube不会自动更新，
+ * 需要对受影响的日期重新执行这个作业，在此之前使用cube的任务仍然按旧的用户属性统计
+ *
+ * 使用方式：spark-submit时传入要生成cube的日期（yyyy-MM-dd），可以传入多个，不传时生成昨天
+ */
+public class SessionCubeSpark {
+
+    /**
+     * session cube的表结构，用户属性的列名与user_info一致，任务的过滤条件可以直接使用
+     */
+    private static final StructType SCHEMA = DataTypes.createStructType(Arrays.asList(
+            DataTypes.createStructField("age", DataTypes.IntegerType, true),
+            DataTypes.createStructField("professional", DataTypes.StringType, true),
+            DataTypes.createStructField("city", DataTypes.StringType, true),
+            DataTypes.createStructField("sex", DataTypes.StringType, true),
+            DataTypes.createStructField("bucket_counts",
+                    DataTypes.createArrayType(DataTypes.LongType, false), false)));
+
+    /**
+     * 两个计数数组按位置相加，结果保存在第一个数组中
+     */
+    private static final Function2<long[], long[], long[]> ADD_COUNTS = new Function2<long[], long[], long[]>() {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public long[] call(long[] counts1, long[] counts2) throws Exception {
+            for(int i = 0; i < SesssionAggrStatAccumulator.BUCKET_COUNT; i++) {
+                counts1[i] += counts2[i];
+            }
+            return counts1;
+        }
+    };
+
+    public static void main(String[] args) {
+        List<String> dates = new ArrayList<String>();
+        if(args != null && args.length > 0) {
+            dates.addAll(Arrays.asList(args));
+        } else {
+            dates.add(DateUtils.getYesterdayDate());
+        }
+
+        JavaSparkContext sc = UserVisitSessionAnalyzeSpark.createSparkContext();
+        SQLContext sqlContext = UserVisitSessionAnalyzeSpark.getSQLContext(sc.sc());
+
+        //生成模拟测试数据
+        UserVisitSessionAnalyzeSpark.mockData(sc, sqlContext);
+
+        for(String date : dates) {
+            materialize(sc, sqlContext, date);
+        }
+
+        //关闭spark上下文
+        sc.close();
+    }
+
+    /**
+     * 生成一天的session cube
+     * 这一天的session聚合结果已经物化时直接读取，否则从行为数据聚合
+     * @param sc spark上下文
+     * @param sqlContext SQLContext
+     * @param date 日期
+     */
+    static void materialize(JavaSparkContext sc, SQLContext sqlContext, String date) {
+        if(!DailySessionAggrSpark.isClosed(date)) {
+            System.err.println("日期" + date + "还没有结束，不能生成session cube");
+            return;
+        }
+
+        JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD;
+        if(DailySessionAggrSpark.isMaterialized(sc, date)) {
+            sessionid2AggrBufferRDD = DailySessionAggrSpark.load(sqlContext, Collections.singletonList(date));
+        } else {
+            sessionid2AggrBufferRDD = UserVisitSessionAnalyzeSpark.aggregateActions(
+                    UserVisitSessionAnalyzeSpark.getSessionid2ActionRDD(UserVisitSessionAnalyzeSpark.getActionRDD(
+                            sqlContext, UserVisitSessionAnalyzeSpark.dateBetween(date, date))));
+        }
+
+        //先按用户汇总计数，join的只是每个用户一行
+        JavaPairRDD<Long, long[]> userid2CountsRDD = sessionid2AggrBufferRDD.mapToPair(
+                new PairFunction<Tuple2<String, SessionAggrBuffer>, Long, long[]>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Tuple2<Long, long[]> call(Tuple2<String, SessionAggrBuffer> tuple) throws Exception {
+                        SessionAggrBuffer buffer = tuple._2;
+                        return new Tuple2<Long, long[]>(buffer.getUserid(), bucketCounts(buffer));
+                    }
+                }).reduceByKey(ADD_COUNTS);
+
+        JavaPairRDD<Long, Row> userid2InfoRDD = sqlContext.sql(
+                "select user_id, age, professional, city, sex from user_info").javaRDD().mapToPair(
+                new PairFunction<Row, Long, Row>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Tuple2<Long, Row> call(Row row) throws Exception {
+                        return new Tuple2<Long, Row>(row.getLong(0), row);
+                    }
+                });
+
+        //按用户属性的组合汇总计数
+        JavaPairRDD<Tuple4<Integer, String, String, String>, long[]> cubeRDD = userid2CountsRDD
+                .join(userid2InfoRDD)
+                .mapToPair(new PairFunction<Tuple2<Long, Tuple2<long[], Row>>,
+                        Tuple4<Integer, String, String, String>, long[]>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Tuple2<Tuple4<Integer, String, String, String>, long[]> call(
+                            Tuple2<Long, Tuple2<long[], Row>> tuple) throws Exception {
+                        Row userInfoRow = tuple._2._2;
+                        Tuple4<Integer, String, String, String> dimensions = new Tuple4<Integer, String, String, String>(
+                                (Integer) userInfoRow.get(1), userInfoRow.getString(2),
+                                userInfoRow.getString(3), userInfoRow.getString(4));
+                        //下面的reduceByKey会直接修改计数数组，这里复制一份
+                        return new Tuple2<Tuple4<Integer, String, String, String>, long[]>(
+                                dimensions, tuple._2._1.clone());
+                    }
+                })
+                .reduceByKey(ADD_COUNTS);
+
+        JavaRDD<Row> rowRDD = cubeRDD.map(
+                new Function<Tuple2<Tuple4<Integer, String, String, String>, long[]>, Row>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Row call(Tuple2<Tuple4<Integer, String, String, String>, long[]> tuple) throws Exception {
+                        long[] counts = tuple._2;
+                        Long[] bucketCounts = new Long[counts.length];
+                        for(int i = 0; i < counts.length; i++) {
+                            bucketCounts[i] = counts[i];
+                        }
+                        return RowFactory.create(tuple._1._1(), tuple._1._2(), tuple._1._3(), tuple._1._4(),
+                                bucketCounts);
+                    }
+                });
+
+        sqlContext.createDataFrame(rowRDD, SCHEMA).write().mode(SaveMode.Overwrite).parquet(getPath(date));
+    }
+
+    /**
+     * 尝试使用session cube计算任务的session占比，并写入MySQL
+     * @param sc spark上下文
+     * @param sqlContext SQLContext
+     * @param task 任务
+     * @param taskParam 任务参数
+     * @return 是否已经使用cube完成计算，返回false时需要执行完整的计算过程
+     */
+    static boolean tryAnswer(JavaSparkContext sc, SQLContext sqlContext, Task task, JSONObject taskParam) {
+        if(!ConfigurationManager.getBoolean(Constants.SESSION_CUBE_ENABLED)) {
+            return false;
+        }
+        if(!"true".equals(ParamUtils.getParam(taskParam, Constants.PARAM_STAT_ONLY))) {
+            return false;
+        }
+
+        //搜索词和点击品类不是cube的维度
+        if(ParamUtils.getParam(taskParam, Constants.PARAM_KEYWORDS) != null
+                || ParamUtils.getParam(taskParam, Constants.PARAM_CATEGORY_IDS) != null) {
+            return false;
+        }
+
+        //只计算单独一天的任务，并且这一天必须已经生成cube
+        String startDate = ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE);
+        String endDate = ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE);
+        if(startDate == null || !startDate.equals(endDate)) {
+            return false;
+        }
+        String path = getPath(startDate);
+        if(!DailySessionAggrSpark.isClosed(startDate) || !DailySessionAggrSpark.hasSuccessMarker(sc, path)) {
+            return false;
+        }
+
+        DataFrame cubeDF = sqlContext.read().parquet(path);
+        String userInfoFilter = UserVisitSessionAnalyzeSpark.getUserInfoFilter(taskParam);
+        if(userInfoFilter != null) {
+            cubeDF = cubeDF.where(userInfoFilter);
+        }
+
+        long[] counts = cubeDF.javaRDD().map(new Function<Row, long[]>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public long[] call(Row row) throws Exception {
+                List<Long> bucketCounts = row.getList(4);
+                long[] counts = new long[SesssionAggrStatAccumulator.BUCKET_COUNT];
+                for(int i = 0; i < counts.length; i++) {
+                    counts[i] = bucketCounts.get(i);
+                }
+                return counts;
+            }
+        }).fold(new long[SesssionAggrStatAccumulator.BUCKET_COUNT], ADD_COUNTS);
+
+        UserVisitSessionAnalyzeSpark.calculateAndPersistAggrStat(counts, task.getTaskid());
+        return true;
+    }
+
+    /**
+     * 计算一个session在cube中的计数：session总数为1，所在的访问时长和访问步长区间各加1
+     * 区间的划分与SesssionAggrStatAccumulator一致
+     * @param buffer session聚合缓冲区
+     * @return 计数数组
+     */
+    static long[] bucketCounts(SessionAggrBuffer buffer) {
+        return SesssionAggrStatAccumulator.addSession(new long[SesssionAggrStatAccumulator.BUCKET_COUNT],
+                buffer.getVisitLength(), buffer.getStepLength());
+    }
+
+    private static String getPath(String date) {
+        return ConfigurationManager.getProperty(Constants.SESSION_CUBE_DIR) + "/date=" + date;
+    }
+}
@@ -0,0 +1,189 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.alibaba.fastjson.JSONObject;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.domain.SessionAggrInfo;
+import com.wolf.sparkproject.util.ParamUtils;
+
+/**
+ * session过滤器
+ *
+ * 之前每过滤一个session，ValidUtils都要重新解析一遍参数连接串，再对逗号分隔的列表做双重循环比较
+ * 现在在driver端把任务参数编译成这个过滤器，再广播到各个executor上
+ * 年龄是int区间，职业和城市是按UserInfoDict编码的BitSet，性别是编码值，
+ * 搜索词和点击品类是HashSet，每个条件的判断都是O(1)的
+ *
+ * 某个条件为null表示任务没有指定该条件，所有session都满足
+ */
+public class SessionFilter implements Serializable {
+
+    private static final long serialVersionUID = 7931283564810218851L;
+
+    /**
+     * 参数中的取值在字典中不存在时使用的编码，不会与任何session匹配
+     */
+    private static final int NO_MATCH = Integer.MIN_VALUE;
+
+    private boolean hasAgeRange;
+    private int startAge;
+    private int endAge;
+    private BitSet professionals;
+    private BitSet cities;
+    private Integer sex;
+    private Set<String> keywords;
+    private Set<Long> categoryIds;
+
+    private SessionFilter() {
+    }
+
+    /**
+     * 根据任务参数编译过滤器
+     * @param taskParam 任务参数
+     * @param userInfoDict 用户信息字典
+     * @return session过滤器
+     */
+    public static SessionFilter compile(JSONObject taskParam, UserInfoDict userInfoDict) {
+        SessionFilter filter = new SessionFilter();
+
+        String startAge = ParamUtils.getParam(taskParam, Constants.PARAM_START_AGE);
+        String endAge = ParamUtils.getParam(taskParam, Constants.PARAM_END_AGE);
+        if(startAge != null && endAge != null) {
+            filter.hasAgeRange = true;
+            filter.startAge = Integer.valueOf(startAge);
+            filter.endAge = Integer.valueOf(endAge);
+        }
+
+        String professionals = ParamUtils.getParam(taskParam, Constants.PARAM_PROFESSIONALS);
+        if(professionals != null) {
+            filter.professionals = encode(professionals, userInfoDict.getProfessionals());
+        }
+
+        String cities = ParamUtils.getParam(taskParam, Constants.PARAM_CITIES);
+        if(cities != null) {
+            filter.cities = encode(cities, userInfoDict.getCities());
+        }
+
+        String sex = ParamUtils.getParam(taskParam, Constants.PARAM_SEX);
+        if(sex != null) {
+            int code = userInfoDict.getSexes().encode(sex);
+            filter.sex = code != UserInfoDict.UNKNOWN ? code : NO_MATCH;
+        }
+
+        String keywords = ParamUtils.getParam(taskParam, Constants.PARAM_KEYWORDS);
+        if(keywords != null) {
+            filter.keywords = new HashSet<String>();
+            for(String keyword : keywords.split(",")) {
+                //参数里逗号后面常带空格，去掉空白后再匹配，空的关键词直接跳过
+                keyword = keyword.trim();
+                if(!keyword.isEmpty()) {
+                    filter.keywords.add(keyword);
+                }
+            }
+        }
+
+        String categoryIds = ParamUtils.getParam(taskParam, Constants.PARAM_CATEGORY_IDS);
+        if(categoryIds != null) {
+            filter.categoryIds = new HashSet<Long>();
+            for(String categoryId : categoryIds.split(",")) {
+                categoryId = categoryId.trim();
+                if(!categoryId.isEmpty()) {
+                    filter.categoryIds.add(Long.valueOf(categoryId));
+                }
+            }
+        }
+
+        return filter;
+    }
+
+    private static BitSet encode(String values, UserInfoDict.Dimension dimension) {
+        BitSet codes = new BitSet(dimension.size());
+        for(String value : values.split(",")) {
+            int code = dimension.encode(value);
+            if(code != UserInfoDict.UNKNOWN) {
+                codes.set(code);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * 校验session的用户属性（年龄、职业、城市、性别）
+     */
+    public boolean acceptUser(SessionAggrInfo aggrInfo) {
+        if(hasAgeRange && (aggrInfo.getAge() < startAge || aggrInfo.getAge() > endAge)) {
+            return false;
+        }
+        if(professionals != null && !containsCode(professionals, aggrInfo.getProfessional())) {
+            return false;
+        }
+        if(cities != null && !containsCode(cities, aggrInfo.getCity())) {
+            return false;
+        }
+        if(sex != null && sex != aggrInfo.getSex()) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 校验session的行为（搜索词、点击品类）
+     */
+    public boolean acceptActions(SessionAggrInfo aggrInfo) {
+        if(keywords != null && !containsAnyKeyword(aggrInfo.getSearchKeywords())) {
+            return false;
+        }
+        if(categoryIds != null && !containsAnyCategoryId(aggrInfo.getClickCategoryIds())) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 校验session是否满足所有条件
+     */
+    public boolean accept(SessionAggrInfo aggrInfo) {
+        return acceptUser(aggrInfo) && acceptActions(aggrInfo);
+    }
+
+    private static boolean containsCode(BitSet codes, int code) {
+        return code >= 0 && codes.get(code);
+    }
+
+    private boolean containsAnyKeyword(String[] sessionKeywords) {
+        for(String keyword : sessionKeywords) {
+            if(keywords.contains(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsAnyCategoryId(long[] sessionCategoryIds) {
+        for(long categoryId : sessionCategoryIds) {
+            if(categoryIds.contains(categoryId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 任务是否指定了搜索词或点击品类条件
+     */
+    public boolean hasActionCondition() {
+        return keywords != null || categoryIds != null;
+    }
+
+    public Set<String> getKeywords() {
+        return keywords;
+    }
+
+    public Set<Long> getCategoryIds() {
+        return categoryIds;
+    }
+}
@@ -0,0 +1,19 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.wolf.sparkproject.domain.ActionRecord;
+import org.apache.spark.serializer.KryoRegistrator;
+
+/**
+ * Kryo注册器
+ *
+ * registerKryoClasses只能注册类，需要指定序列化器的类在这里注册
+ * 通过spark.kryo.registrator配置生效
+ */
+public class SessionKryoRegistrator implements KryoRegistrator {
+
+    @Override
+    public void registerClasses(Kryo kryo) {
+        kryo.register(ActionRecord.class, new ActionRecordSerializer());
+    }
+}
@@ -0,0 +1,106 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.wolf.sparkproject.domain.SessionAggrInfo;
+
+/**
+ * session抽样缓冲区
+ *
+ * 配合随机抽取session使用，替代原来按小时groupByKey再按随机索引抽取的做法
+ * 每个session都有一个随机的优先级，缓冲区只保留优先级最小的capacity个session
+ * 对一个小时内所有session的优先级取最小的k个，就是从中不放回地均匀抽取k个session
+ *
+ * 每个partition先在本地对每个小时抽样，shuffle的只有各个partition的抽样结果，
+ * reduce端再合并缓冲区，合并后仍然只保留优先级最小的capacity个，所以结果和全局抽样一致
+ * capacity最多为100，合并时直接线性查找优先级最大的元素
+ * 该类需要在Kryo中注册
+ */
+public class SessionSampleBuffer implements Serializable {
+
+    private static final long serialVersionUID = -2519733780604319468L;
+
+    private int capacity;
+    private int size = 0;
+    private long[] priorities;
+    private SessionAggrInfo[] sessions;
+    //当前优先级最大的元素下标，缓冲区满了以后新元素只需要和它比较
+    private int maxIndex = -1;
+
+    public SessionSampleBuffer(int capacity) {
+        this.capacity = capacity;
+        this.priorities = new long[capacity];
+        this.sessions = new SessionAggrInfo[capacity];
+    }
+
+    /**
+     * 尝试将一个session加入缓冲区
+     * @param priority 随机优先级
+     * @param session session聚合信息
+     * @return 缓冲区本身
+     */
+    public SessionSampleBuffer offer(long priority, SessionAggrInfo session) {
+        if(size < capacity) {
+            priorities[size] = priority;
+            sessions[size] = session;
+            if(maxIndex == -1 || priority > priorities[maxIndex]) {
+                maxIndex = size;
+            }
+            size++;
+        } else if(capacity > 0 && priority < priorities[maxIndex]) {
+            priorities[maxIndex] = priority;
+            sessions[maxIndex] = session;
+            maxIndex = 0;
+            for(int i = 1; i < size; i++) {
+                if(priorities[i] > priorities[maxIndex]) {
+                    maxIndex = i;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 合并另一个缓冲区（combOp）
+     * @param other 另一个缓冲区
+     * @return 缓冲区本身
+     */
+    public SessionSampleBuffer merge(SessionSampleBuffer other) {
+        for(int i = 0; i < other.size; i++) {
+            offer(other.priorities[i], other.sessions[i]);
+        }
+        return this;
+    }
+
+    public List<SessionAggrInfo> getSessions() {
+        List<SessionAggrInfo> result = new ArrayList<SessionAggrInfo>(size);
+        for(int i = 0; i < size; i++) {
+            result.add(sessions[i]);
+        }
+        return result;
+    }
+
+    /**
+     * 根据随机种子和sessionid计算session的优先级
+     *
+     * 优先级只取决于种子和sessionid，task失败重算时抽取的结果不变
+     * @param seed 随机种子
+     * @param sessionid sessionid
+     * @return 优先级
+     */
+    public static long priority(long seed, String sessionid) {
+        long h = seed;
+        for(int i = 0; i < sessionid.length(); i++) {
+            h = 31 * h + sessionid.charAt(i);
+        }
+        //MurmurHash3的64位finalizer，打散低位相近的哈希值
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3f98e6a5b8bL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
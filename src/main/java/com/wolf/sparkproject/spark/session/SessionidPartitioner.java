@@ -0,0 +1,45 @@
+package com.wolf.sparkproject.spark.session;
+
+import org.apache.spark.Partitioner;
+import scala.Tuple2;
+
+/**
+ * 按sessionid分区的partitioner
+ *
+ * key是<sessionid,date>，只按照sessionid计算分区，
+ * 同一个session在不同日期的聚合缓冲区都在同一个partition中，
+ * 按日期范围合并一个session的多天数据时，在partition内部就可以完成，不需要再shuffle
+ */
+public class SessionidPartitioner extends Partitioner {
+
+    private static final long serialVersionUID = -2839187465309283746L;
+
+    private final int numPartitions;
+
+    public SessionidPartitioner(int numPartitions) {
+        this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public int numPartitions() {
+        return numPartitions;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+        Object sessionid = ((Tuple2<?, ?>) key)._1();
+        int mod = sessionid.hashCode() % numPartitions;
+        return mod < 0 ? mod + numPartitions : mod;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SessionidPartitioner
+                && ((SessionidPartitioner) other).numPartitions == numPartitions;
+    }
+
+    @Override
+    public int hashCode() {
+        return numPartitions;
+    }
+}
@@ -1,8 +1,6 @@
 package com.wolf.sparkproject.spark.session;
 
-import com.wolf.sparkproject.constant.Constants;
-import com.wolf.sparkproject.util.StringUtils;
-import org.apache.spark.AccumulatorParam;
+import org.apache.spark.AccumulableParam;
 
 /**
  * session聚合统计Accumulator
@@ -11,86 +9,140 @@ import org.apache.spark.AccumulatorParam;
  * 各个task分布式在运行，可以根据自己的需求，task给Accumulator传入不同的值
  * 根据不同的值，去做复杂的逻辑
  *
+ * 之前使用key=value|key=value的连接串保存各个范围区间的数量，每次累加都要切分、重新拼接整个串
+ * 现在使用long数组保存，数组下标就是范围区间的序号，task传入的是区间序号
+ * 累加就是对数组中对应位置加1，合并各个task的结果就是16个元素的数组相加
+ *
  * Spark Core里很实用的高端技术
  */
-public class SesssionAggrStatAccumulator implements AccumulatorParam<String> {
+public class SesssionAggrStatAccumulator implements AccumulableParam<long[], Integer> {
 
     private static final long serialVersionUID = -2113961376143864034L;
 
+    /**
+     * 各个范围区间在数组中的序号
+     * 与Constants.java中的SESSION_COUNT、TIME_PERIOD_*、STEP_PERIOD_*一一对应
+     */
+    public static final int SESSION_COUNT = 0;
+    public static final int TIME_PERIOD_1s_3s = 1;
+    public static final int TIME_PERIOD_4s_6s = 2;
+    public static final int TIME_PERIOD_7s_9s = 3;
+    public static final int TIME_PERIOD_10s_30s = 4;
+    public static final int TIME_PERIOD_30s_60s = 5;
+    public static final int TIME_PERIOD_1m_3m = 6;
+    public static final int TIME_PERIOD_3m_10m = 7;
+    public static final int TIME_PERIOD_10m_30m = 8;
+    public static final int TIME_PERIOD_30m = 9;
+    public static final int STEP_PERIOD_1_3 = 10;
+    public static final int STEP_PERIOD_4_6 = 11;
+    public static final int STEP_PERIOD_7_9 = 12;
+    public static final int STEP_PERIOD_10_30 = 13;
+    public static final int STEP_PERIOD_30_60 = 14;
+    public static final int STEP_PERIOD_60 = 15;
+
+    /**
+     * 范围区间的数量
+     */
+    public static final int BUCKET_COUNT = 16;
+
+    /**
+     * 不属于任何范围区间
+     */
+    public static final int NO_BUCKET = -1;
+
     //zero方法，主要用于数据初始化
     //这里就返回一个值，就是初始化中，所有范围区间的数值都是0
-    //各个范围区间的统计数量的拼接，还是采用key=value|key=value的连接串格式
-    //在Constants.java中添加
-    //String SESSION_COUNT = "session_count";
-    //String TIME_PERIOD_1s_3s = "1s_3s";
-    //String TIME_PERIOD_4s_6s = "4s_6s";
-    //String TIME_PERIOD_7s_9s = "7s_9s";
-    //String TIME_PERIOD_10s_30s = "10s_30s";
-    //String TIME_PERIOD_30s_60s = "30s_60s";
-    //String TIME_PERIOD_1m_3m = "1m_3m";
-    //String TIME_PERIOD_3m_10m = "3m_10m";
-    //String TIME_PERIOD_10m_30m = "10m_30m";
-    //String TIME_PERIOD_30m = "30m";
-    //String STEP_PERIOD_1_3 = "1_3";
-    //String STEP_PERIOD_4_6 = "4_6";
-    //String STEP_PERIOD_7_9 = "7_9";
-    //String STEP_PERIOD_10_30 = "10_30";
-    //String STEP_PERIOD_30_60 = "30_60";
-    //String STEP_PERIOD_60 = "60";
     @Override
-    public String zero(String v) {
-        return Constants.SESSION_COUNT + "=0|"
-            + Constants.TIME_PERIOD_1s_3s + "=0|"
-            + Constants.TIME_PERIOD_4s_6s + "=0|"
-            + Constants.TIME_PERIOD_7s_9s + "=0|"
-            + Constants.TIME_PERIOD_10s_30s + "=0|"
-            + Constants.TIME_PERIOD_30s_60s + "=0|"
-            + Constants.TIME_PERIOD_1m_3m + "=0|"
-            + Constants.TIME_PERIOD_3m_10m + "=0|"
-            + Constants.TIME_PERIOD_10m_30m + "=0|"
-            + Constants.TIME_PERIOD_30m + "=0|"
-            + Constants.STEP_PERIOD_1_3 + "=0|"
-            + Constants.STEP_PERIOD_4_6 + "=0|"
-            + Constants.STEP_PERIOD_7_9 + "=0|"
-            + Constants.STEP_PERIOD_10_30 + "=0|"
-            + Constants.STEP_PERIOD_30_60 + "=0|"
-            + Constants.STEP_PERIOD_60 + "=0";
+    public long[] zero(long[] initialValue) {
+        return new long[BUCKET_COUNT];
     }
 
-    //addInPlace和addAccumulator可以理解为是一样的
-    //这两个方法，主要实现，v1可能就是我们初始化的那个连接串
-    //v2就是在遍历session的时候，判断出某个session对应的区间，然后用Constants.TIME_PERIOD_1S_3S
-    //所以，我们要做的事情就是在v1中，找到对应的v2对应的value，累加1，然后再更新到连接串里面去
+    //addAccumulator是task端的累加，bucket就是在遍历session的时候，判断出某个session对应的区间序号
+    //所以，我们要做的事情就是在数组中，找到对应的位置，累加1
     @Override
-    public String addInPlace(String v1, String v2) {
-        return null;
+    public long[] addAccumulator(long[] counts, Integer bucket) {
+        if(bucket != NO_BUCKET) {
+            counts[bucket] ++;
+        }
+        return counts;
     }
 
+    //addInPlace是合并两个task的累加结果，直接按位置相加
     @Override
-    public String addAccumulator(String v1, String v2) {
-        return null;
+    public long[] addInPlace(long[] counts1, long[] counts2) {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            counts1[i] += counts2[i];
+        }
+        return counts1;
+    }
+
+    /**
+     * 将一个session计入统计数组：session总数加1，所在的访问时长和访问步长区间各加1
+     * @param counts 统计数组
+     * @param visitLength 访问时长（秒）
+     * @param stepLength 访问步长
+     * @return 统计数组本身
+     */
+    public static long[] addSession(long[] counts, long visitLength, long stepLength) {
+        counts[SESSION_COUNT] ++;
+        int visitLengthBucket = visitLengthBucket(visitLength);
+        if(visitLengthBucket != NO_BUCKET) {
+            counts[visitLengthBucket] ++;
+        }
+        int stepLengthBucket = stepLengthBucket(stepLength);
+        if(stepLengthBucket != NO_BUCKET) {
+            counts[stepLengthBucket] ++;
+        }
+        return counts;
     }
 
     /**
-     * session统计计算逻辑
-     * @param v1 连接串
-     * @param v2 范围区间
-     * @return 更新以后的连接串
+     * 计算访问时长所在的范围区间
+     * @param visitLength 访问时长（秒）
+     * @return 区间序号
      */
-    private String add(String v1, String v2) {
-        //校验：v1为空的时候，直接返回v2
-        if(StringUtils.isEmpty(v1)) {
-            return v2;
+    public static int visitLengthBucket(long visitLength) {
+        if(visitLength >= 1 && visitLength <= 3) {
+            return TIME_PERIOD_1s_3s;
+        }else if(visitLength >= 4 && visitLength <= 6) {
+            return TIME_PERIOD_4s_6s;
+        }else if(visitLength >= 7 && visitLength <= 9) {
+            return TIME_PERIOD_7s_9s;
+        }else if(visitLength >= 10 && visitLength <= 30) {
+            return TIME_PERIOD_10s_30s;
+        }else if(visitLength > 30 && visitLength <= 60) {
+            return TIME_PERIOD_30s_60s;
+        }else if(visitLength > 60 && visitLength <= 180) {
+            return TIME_PERIOD_1m_3m;
+        }else if(visitLength > 180 && visitLength <= 600) {
+            return TIME_PERIOD_3m_10m;
+        }else if(visitLength > 600 && visitLength <= 1800) {
+            return TIME_PERIOD_10m_30m;
+        }else if(visitLength > 1800) {
+            return TIME_PERIOD_30m;
         }
+        return NO_BUCKET;
+    }
 
-        //使用StringUtils工具类，从v1中提取v2对应的值，并累加1
-        String oldValue = StringUtils.getFieldFromConcatString(v1, "\\|", v2);
-        if(oldValue != null) {
-            //将范围区间原有的值累加1
-            int newValue = Integer.valueOf(oldValue) + 1;
-            //使用StringUtils工具类，将v1中，v2对应的值设置成新的累加后的值
-            return StringUtils.setFieldInConcatString(v1, "\\|", v2, String.valueOf(newValue));
+    /**
+     * 计算访问步长所在的范围区间
+     * @param stepLength 访问步长
+     * @return 区间序号
+     */
+    public static int stepLengthBucket(long stepLength) {
+        if(stepLength >= 1 && stepLength <= 3) {
+            return STEP_PERIOD_1_3;
+        }else if(stepLength >= 4 && stepLength <= 6) {
+            return STEP_PERIOD_4_6;
+        }else if(stepLength >= 7 && stepLength <= 9) {
+            return STEP_PERIOD_7_9;
+        }else if(stepLength >= 10 && stepLength <= 30) {
+            return STEP_PERIOD_10_30;
+        }else if(stepLength > 30 && stepLength <= 60) {
+            return STEP_PERIOD_30_60;
+        }else if(stepLength > 60) {
+            return STEP_PERIOD_60;
         }
-        return v1;
+        return NO_BUCKET;
     }
 }
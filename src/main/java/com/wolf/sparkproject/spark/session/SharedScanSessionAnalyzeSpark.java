@@ -0,0 +1,346 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.alibaba.fastjson.JSONObject;
+import com.wolf.sparkproject.constant.Constants;
+import com.wolf.sparkproject.dao.ITaskDAO;
+import com.wolf.sparkproject.dao.factory.DAOFactory;
+import com.wolf.sparkproject.domain.ActionRecord;
+import com.wolf.sparkproject.domain.SessionAggrInfo;
+import com.wolf.sparkproject.domain.Task;
+import com.wolf.sparkproject.util.DateUtils;
+import com.wolf.sparkproject.util.ParamUtils;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.storage.StorageLevel;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 共享扫描的session分析批量作业
+ *
+ * 一起排队的任务（比如每天晚上的报表任务）日期范围大多相同或者重叠，
+ * 逐个执行时，每个任务都要重新扫描一遍user_visit_action，再重新按session聚合一遍
+ *
+ * 这里一次执行一批任务：
+ * 1.合并所有任务的日期范围，只扫描一次user_visit_action，行为数据持久化后所有任务共用
+ * 2.按<sessionid,date>聚合一次，得到每个session每一天的聚合缓冲区，同样持久化后共用
+ * 3.每个任务只取自己日期范围内的行为数据和聚合缓冲区，把同一个session多天的缓冲区合并，
+ *   再执行与单个任务相同的过滤、join用户信息和后续的统计分析
+ *
+ * 聚合缓冲区按<sessionid,date>保存，而不是直接按sessionid聚合整个扫描范围，
+ * 这样跨天的session在每个任务中只会统计任务日期范围内的行为，结果与单独执行任务一致
+ * 这里的日期取user_visit_action的date分区列，与单独执行任务时的扫描条件一致
+ *
+ * 可以使用session cube计算的任务（见SessionCubeSpark）不参与共享扫描
+ *
+ * 与SessionAnalyzeTaskServer一样，先把created状态的任务领取为running，
+ * 执行结束后更新为finished或failed，没有领取成功的任务不执行
+ *
+ * 使用方式：spark-submit时传入多个任务id
+ */
+public class SharedScanSessionAnalyzeSpark {
+
+    public static void main(String[] args) {
+        List<Long> taskids = ParamUtils.getTaskIdsFromArgs(args);
+        if(taskids == null) {
+            System.err.println("请在命令行参数中指定任务id");
+            return;
+        }
+
+        JavaSparkContext sc = UserVisitSessionAnalyzeSpark.createSparkContext();
+        SQLContext sqlContext = UserVisitSessionAnalyzeSpark.getSQLContext(sc.sc());
+
+        //生成模拟测试数据
+        UserVisitSessionAnalyzeSpark.mockData(sc, sqlContext);
+
+        ITaskDAO taskDAO = DAOFactory.getTaskDAO();
+        List<Task> tasks = new ArrayList<Task>();
+        for(long taskid : taskids) {
+            tasks.add(taskDAO.findById(taskid));
+        }
+        run(sc, sqlContext, tasks);
+
+        //关闭spark上下文
+        sc.close();
+    }
+
+    /**
+     * 共享扫描执行一批任务
+     * 某个任务执行失败时，打印异常，任务记为failed，并继续执行其他任务
+     * @param sc spark上下文
+     * @param sqlContext SQLContext
+     * @param allTasks 任务列表
+     */
+    static void run(JavaSparkContext sc, SQLContext sqlContext, List<Task> allTasks) {
+        ITaskDAO taskDAO = DAOFactory.getTaskDAO();
+
+        //能够使用session cube计算的任务先计算，不参与共享扫描
+        List<Task> tasks = new ArrayList<Task>(allTasks.size());
+        List<JSONObject> taskParams = new ArrayList<JSONObject>(allTasks.size());
+        for(Task task : allTasks) {
+            if(!taskDAO.start(task.getTaskid(), Constants.TASK_STATUS_CREATED,
+                    DateUtils.formatTime(System.currentTimeMillis()))) {
+                System.err.println("任务" + task.getTaskid() + "不是created状态，或者已经被其他driver领取，跳过");
+                continue;
+            }
+
+            JSONObject taskParam;
+            try {
+                taskParam = JSONObject.parseObject(task.getTaskParam());
+            } catch (Exception e) {
+                e.printStackTrace();
+                finish(taskDAO, task, Constants.TASK_STATUS_FAILED);
+                continue;
+            }
+
+            if(answerFromCube(sc, sqlContext, task, taskParam)) {
+                finish(taskDAO, task, Constants.TASK_STATUS_FINISHED);
+            } else {
+                tasks.add(task);
+                taskParams.add(taskParam);
+            }
+        }
+
+        //已经领取、还没有记录结果的任务，共享的扫描和聚合失败时全部记为failed
+        List<Task> unfinishedTasks = new ArrayList<Task>(tasks);
+        try {
+            runSharedScan(sc, sqlContext, taskDAO, tasks, taskParams, unfinishedTasks);
+        } finally {
+            for(Task task : unfinishedTasks) {
+                finish(taskDAO, task, Constants.TASK_STATUS_FAILED);
+            }
+        }
+    }
+
+    /**
+     * 在共享的行为数据和聚合缓冲区上依次执行任务
+     * 每个任务记录执行结果以后，从unfinishedTasks中移除
+     */
+    private static void runSharedScan(JavaSparkContext sc, SQLContext sqlContext, ITaskDAO taskDAO,
+            List<Task> tasks, List<JSONObject> taskParams, List<Task> unfinishedTasks) {
+        /**
+         * 第一步：扫描所有任务日期范围的并集
+         */
+        List<String[]> dateRanges = mergeDateRanges(taskParams);
+        if(dateRanges.isEmpty()) {
+            return;
+        }
+
+        Column dateCondition = null;
+        for(String[] dateRange : dateRanges) {
+            Column condition = UserVisitSessionAnalyzeSpark.dateBetween(dateRange[0], dateRange[1]);
+            dateCondition = dateCondition == null ? condition : dateCondition.or(condition);
+        }
+
+        JavaPairRDD<String, ActionRecord> sharedActionRDD = UserVisitSessionAnalyzeSpark.getSessionid2ActionRDD(
+                UserVisitSessionAnalyzeSpark.getActionRDD(sqlContext, dateCondition));
+        sharedActionRDD = sharedActionRDD.persist(StorageLevel.MEMORY_ONLY_SER());
+
+        /**
+         * 第二步：按<sessionid,date>聚合，按sessionid分区
+         *
+         * 任务合并缓冲区时会修改缓冲区对象，这里必须使用序列化的持久化级别，
+         * 每次读取的都是反序列化出来的新对象，不会影响其他任务
+         */
+        JavaPairRDD<Tuple2<String, String>, ActionRecord> sessionDate2ActionRDD = sharedActionRDD.mapToPair(
+                new PairFunction<Tuple2<String, ActionRecord>, Tuple2<String, String>, ActionRecord>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Tuple2<Tuple2<String, String>, ActionRecord> call(
+                            Tuple2<String, ActionRecord> tuple) throws Exception {
+                        return new Tuple2<Tuple2<String, String>, ActionRecord>(
+                                new Tuple2<String, String>(tuple._1, tuple._2.getDate()), tuple._2);
+                    }
+                });
+        JavaPairRDD<Tuple2<String, String>, SessionAggrBuffer> sharedAggrBufferRDD =
+                UserVisitSessionAnalyzeSpark.aggregateActions(sessionDate2ActionRDD,
+                        new SessionidPartitioner(sharedActionRDD.partitions().size()));
+        sharedAggrBufferRDD = sharedAggrBufferRDD.persist(StorageLevel.MEMORY_ONLY_SER());
+
+        //用户信息字典所有任务共用
+        UserInfoDict userInfoDict = UserInfoDict.build(sqlContext);
+        Broadcast<UserInfoDict> userInfoDictBroadcast = sc.broadcast(userInfoDict);
+
+        /**
+         * 第三步：在共享的数据上依次执行每个任务
+         */
+        for(int i = 0; i < tasks.size(); i++) {
+            Task task = tasks.get(i);
+            JSONObject taskParam = taskParams.get(i);
+
+            UserVisitSessionAnalyzeSpark.beginTask(sc, task, taskParam);
+            Broadcast<SessionFilter> sessionFilterBroadcast = null;
+            String taskStatus = Constants.TASK_STATUS_FAILED;
+            try {
+                String startDate = ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE);
+                String endDate = ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE);
+
+                sessionFilterBroadcast = sc.broadcast(SessionFilter.compile(taskParam, userInfoDict));
+
+                JavaPairRDD<String, ActionRecord> sessionid2ActionRDD =
+                        filterActionsByDate(sharedActionRDD, startDate, endDate);
+                JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD =
+                        mergeAggrBuffersByDate(sharedAggrBufferRDD, startDate, endDate);
+                JavaPairRDD<String, SessionAggrInfo> sessionid2AggrInfoRDD = UserVisitSessionAnalyzeSpark.joinUserInfo(
+                        sc, sqlContext, taskParam, sessionid2AggrBufferRDD,
+                        userInfoDictBroadcast, sessionFilterBroadcast);
+
+                UserVisitSessionAnalyzeSpark.analyzeSessions(sc, task, taskParam,
+                        sessionid2ActionRDD, sessionid2AggrInfoRDD, sessionFilterBroadcast);
+                taskStatus = Constants.TASK_STATUS_FINISHED;
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if(sessionFilterBroadcast != null) {
+                    sessionFilterBroadcast.destroy();
+                }
+                UserVisitSessionAnalyzeSpark.endTask(sc);
+                finish(taskDAO, task, taskStatus);
+                unfinishedTasks.remove(task);
+            }
+        }
+
+        //释放共享的持久化RDD和广播变量
+        sharedActionRDD.unpersist(false);
+        sharedAggrBufferRDD.unpersist(false);
+        userInfoDictBroadcast.destroy();
+    }
+
+    private static void finish(ITaskDAO taskDAO, Task task, String taskStatus) {
+        taskDAO.finish(task.getTaskid(), taskStatus, DateUtils.formatTime(System.currentTimeMillis()));
+    }
+
+    /**
+     * 尝试使用session cube执行任务
+     * @return 是否已经完成，执行失败时打印异常并返回false，任务改为参与共享扫描
+     */
+    private static boolean answerFromCube(JavaSparkContext sc, SQLContext sqlContext,
+            Task task, JSONObject taskParam) {
+        UserVisitSessionAnalyzeSpark.beginTask(sc, task, taskParam);
+        try {
+            return SessionCubeSpark.tryAnswer(sc, sqlContext, task, taskParam);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            UserVisitSessionAnalyzeSpark.endTask(sc);
+        }
+    }
+
+    /**
+     * 合并所有任务的日期范围，重叠的范围合并成一个
+     * 日期格式为yyyy-MM-dd，可以直接按字符串比较
+     * @param taskParams 任务参数
+     * @return 合并后的日期范围，每个元素为{startDate,endDate}
+     */
+    private static List<String[]> mergeDateRanges(List<JSONObject> taskParams) {
+        List<String[]> dateRanges = new ArrayList<String[]>();
+        for(JSONObject taskParam : taskParams) {
+            String startDate = ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE);
+            String endDate = ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE);
+            if(startDate != null && endDate != null) {
+                dateRanges.add(new String[]{startDate, endDate});
+            }
+        }
+
+        Collections.sort(dateRanges, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] range1, String[] range2) {
+                return range1[0].compareTo(range2[0]);
+            }
+        });
+
+        List<String[]> mergedRanges = new ArrayList<String[]>();
+        String[] current = null;
+        for(String[] dateRange : dateRanges) {
+            if(current != null && dateRange[0].compareTo(current[1]) <= 0) {
+                if(dateRange[1].compareTo(current[1]) > 0) {
+                    current[1] = dateRange[1];
+                }
+            } else {
+                current = new String[]{dateRange[0], dateRange[1]};
+                mergedRanges.add(current);
+            }
+        }
+        return mergedRanges;
+    }
+
+    /**
+     * 从共享的行为数据中取出任务日期范围内的行为数据
+     * 按date分区列筛选，与单独执行任务时扫描的分区一致
+     * 日期格式为yyyy-MM-dd，可以直接按字符串比较
+     */
+    private static JavaPairRDD<String, ActionRecord> filterActionsByDate(
+            JavaPairRDD<String, ActionRecord> sharedActionRDD, final String startDate, final String endDate) {
+        return sharedActionRDD.filter(new Function<Tuple2<String, ActionRecord>, Boolean>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Boolean call(Tuple2<String, ActionRecord> tuple) throws Exception {
+                String date = tuple._2.getDate();
+                return date.compareTo(startDate) >= 0 && date.compareTo(endDate) <= 0;
+            }
+        });
+    }
+
+    /**
+     * 合并每个session在任务日期范围内各天的聚合缓冲区
+     * 共享的聚合缓冲区按sessionid分区，同一个session的各天数据在同一个partition中，
+     * 在partition内部合并即可，不需要shuffle
+     */
+    private static JavaPairRDD<String, SessionAggrBuffer> mergeAggrBuffersByDate(
+            JavaPairRDD<Tuple2<String, String>, SessionAggrBuffer> sharedAggrBufferRDD,
+            final String startDate, final String endDate) {
+        return sharedAggrBufferRDD.mapPartitionsToPair(
+                new PairFlatMapFunction<Iterator<Tuple2<Tuple2<String, String>, SessionAggrBuffer>>,
+                        String, SessionAggrBuffer>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Iterable<Tuple2<String, SessionAggrBuffer>> call(
+                            Iterator<Tuple2<Tuple2<String, String>, SessionAggrBuffer>> iterator)
+                            throws Exception {
+                        Map<String, SessionAggrBuffer> bufferMap = new LinkedHashMap<String, SessionAggrBuffer>();
+                        while(iterator.hasNext()) {
+                            Tuple2<Tuple2<String, String>, SessionAggrBuffer> tuple = iterator.next();
+                            String sessionid = tuple._1._1;
+                            String date = tuple._1._2;
+                            if(date.compareTo(startDate) < 0 || date.compareTo(endDate) > 0) {
+                                continue;
+                            }
+
+                            SessionAggrBuffer buffer = bufferMap.get(sessionid);
+                            if(buffer == null) {
+                                bufferMap.put(sessionid, tuple._2);
+                            } else {
+                                buffer.merge(tuple._2);
+                            }
+                        }
+
+                        List<Tuple2<String, SessionAggrBuffer>> buffers =
+                                new ArrayList<Tuple2<String, SessionAggrBuffer>>(bufferMap.size());
+                        for(Map.Entry<String, SessionAggrBuffer> entry : bufferMap.entrySet()) {
+                            buffers.add(new Tuple2<String, SessionAggrBuffer>(entry.getKey(), entry.getValue()));
+                        }
+                        return buffers;
+                    }
+                });
+    }
+}
@@ -0,0 +1,134 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import scala.Tuple2;
+
+/**
+ * 品类topN活跃session缓冲区
+ *
+ * 配合aggregateByKey使用，替代原来按品类groupByKey再用String[]排序的做法
+ * 内部是一个大小为capacity的小顶堆，堆顶是当前点击次数最少的session，
+ * 新session的点击次数比堆顶多时替换堆顶，每次插入的代价是O(log N)
+ * 点击次数相同时sessionid小的优先，保证结果是确定的
+ *
+ * 该类需要在Kryo中注册
+ */
+public class TopSessionBuffer implements Serializable {
+
+    private static final long serialVersionUID = 5061384411376265740L;
+
+    private int capacity;
+    private int size = 0;
+    private String[] sessionids;
+    private long[] clickCounts;
+
+    public TopSessionBuffer(int capacity) {
+        this.capacity = capacity;
+        this.sessionids = new String[capacity];
+        this.clickCounts = new long[capacity];
+    }
+
+    /**
+     * 尝试将一个session的点击次数加入缓冲区（seqOp）
+     * @param sessionid sessionid
+     * @param clickCount 点击次数
+     * @return 缓冲区本身
+     */
+    public TopSessionBuffer offer(String sessionid, long clickCount) {
+        if(size < capacity) {
+            sessionids[size] = sessionid;
+            clickCounts[size] = clickCount;
+            siftUp(size++);
+        } else if(capacity > 0 && isBetter(sessionid, clickCount, sessionids[0], clickCounts[0])) {
+            sessionids[0] = sessionid;
+            clickCounts[0] = clickCount;
+            siftDown(0);
+        }
+        return this;
+    }
+
+    /**
+     * 合并另一个缓冲区（combOp）
+     * @param other 另一个缓冲区
+     * @return 缓冲区本身
+     */
+    public TopSessionBuffer merge(TopSessionBuffer other) {
+        for(int i = 0; i < other.size; i++) {
+            offer(other.sessionids[i], other.clickCounts[i]);
+        }
+        return this;
+    }
+
+    /**
+     * 获取缓冲区中的session，按点击次数降序排列
+     * @return <sessionid,点击次数>
+     */
+    public List<Tuple2<String, Long>> getSessionCounts() {
+        List<Tuple2<String, Long>> result = new ArrayList<Tuple2<String, Long>>(size);
+        for(int i = 0; i < size; i++) {
+            result.add(new Tuple2<String, Long>(sessionids[i], clickCounts[i]));
+        }
+        Collections.sort(result, new Comparator<Tuple2<String, Long>>() {
+            public int compare(Tuple2<String, Long> o1, Tuple2<String, Long> o2) {
+                if(isBetter(o1._1, o1._2, o2._1, o2._2)) {
+                    return -1;
+                }
+                return isBetter(o2._1, o2._2, o1._1, o1._2) ? 1 : 0;
+            }
+        });
+        return result;
+    }
+
+    private static boolean isBetter(String sessionid1, long clickCount1,
+            String sessionid2, long clickCount2) {
+        if(clickCount1 != clickCount2) {
+            return clickCount1 > clickCount2;
+        }
+        return sessionid1.compareTo(sessionid2) < 0;
+    }
+
+    private void siftUp(int index) {
+        while(index > 0) {
+            int parent = (index - 1) >>> 1;
+            if(!isBetter(sessionids[parent], clickCounts[parent], sessionids[index], clickCounts[index])) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while(true) {
+            int left = 2 * index + 1;
+            if(left >= size) {
+                break;
+            }
+            int worst = left;
+            int right = left + 1;
+            if(right < size && isBetter(sessionids[left], clickCounts[left],
+                    sessionids[right], clickCounts[right])) {
+                worst = right;
+            }
+            if(!isBetter(sessionids[index], clickCounts[index], sessionids[worst], clickCounts[worst])) {
+                break;
+            }
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String sessionid = sessionids[i];
+        sessionids[i] = sessionids[j];
+        sessionids[j] = sessionid;
+        long clickCount = clickCounts[i];
+        clickCounts[i] = clickCounts[j];
+        clickCounts[j] = clickCount;
+    }
+}
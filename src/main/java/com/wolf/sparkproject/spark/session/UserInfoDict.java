@@ -0,0 +1,117 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+
+/**
+ * 用户信息字典
+ *
+ * 职业、城市、性别都是基数很小的字符串维度
+ * 在driver端从user_info表中查询出所有取值，分别编码成从0开始的int值
+ * 编码后的值放到SessionAggrInfo中，在各个算子之间传递和比较的都是int值
+ * 该字典会被广播到各个executor上使用
+ */
+public class UserInfoDict implements Serializable {
+
+    private static final long serialVersionUID = -3306405981287254470L;
+
+    /**
+     * 字典中不存在的取值的编码
+     */
+    public static final int UNKNOWN = -1;
+
+    private Dimension professionals;
+    private Dimension cities;
+    private Dimension sexes;
+
+    private UserInfoDict(Dimension professionals, Dimension cities, Dimension sexes) {
+        this.professionals = professionals;
+        this.cities = cities;
+        this.sexes = sexes;
+    }
+
+    /**
+     * 从user_info表构建字典
+     * @param sqlContext SQLContext
+     * @return 用户信息字典
+     */
+    public static UserInfoDict build(SQLContext sqlContext) {
+        return new UserInfoDict(
+                loadDimension(sqlContext, "professional"),
+                loadDimension(sqlContext, "city"),
+                loadDimension(sqlContext, "sex"));
+    }
+
+    private static Dimension loadDimension(SQLContext sqlContext, String column) {
+        String sql = "select distinct " + column + " from user_info";
+        List<String> values = new ArrayList<String>();
+        for(Row row : sqlContext.sql(sql).collect()) {
+            if(!row.isNullAt(0)) {
+                values.add(row.getString(0));
+            }
+        }
+        return new Dimension(values);
+    }
+
+    public Dimension getProfessionals() {
+        return professionals;
+    }
+
+    public Dimension getCities() {
+        return cities;
+    }
+
+    public Dimension getSexes() {
+        return sexes;
+    }
+
+    /**
+     * 单个维度的编码表
+     */
+    public static class Dimension implements Serializable {
+
+        private static final long serialVersionUID = 2180554063317405925L;
+
+        private Map<String, Integer> codes = new HashMap<String, Integer>();
+        private String[] values;
+
+        public Dimension(List<String> values) {
+            this.values = values.toArray(new String[values.size()]);
+            for(int i = 0; i < this.values.length; i++) {
+                codes.put(this.values[i], i);
+            }
+        }
+
+        /**
+         * 编码
+         * @param value 原始取值
+         * @return 编码，不存在时返回UNKNOWN
+         */
+        public int encode(String value) {
+            Integer code = codes.get(value);
+            return code != null ? code : UNKNOWN;
+        }
+
+        /**
+         * 解码
+         * @param code 编码
+         * @return 原始取值，不存在时返回null
+         */
+        public String decode(int code) {
+            if(code < 0 || code >= values.length) {
+                return null;
+            }
+            return values[code];
+        }
+
+        public int size() {
+            return values.length;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import scala.Tuple2;
+
+/**
+ * 用户信息查找表
+ *
+ * 用于session聚合数据与user_info的map端join（广播join）
+ * user_info表不大的时候，直接把用户信息收集到driver端，广播到各个executor上，
+ * 在map端查表填充用户信息，就可以省掉一次对session数据的shuffle
+ *
+ * 为了让广播变量尽量小，userid和用户信息都使用基本类型long保存：
+ * userids按升序排列，使用二分查找；用户信息把年龄、职业、城市、性别各16位打包成一个long
+ * 每个用户只占用16个字节
+ *
+ * 查找表在executor端按partition构建（见Builder），driver端只收集各partition的long数组再拼接，
+ * 不会在driver端产生每个用户一个的Tuple2和装箱Long对象
+ */
+public class UserInfoLookup implements Serializable {
+
+    private static final long serialVersionUID = -1902373355206140231L;
+
+    /**
+     * 每个用户占用的字节数，用于估算广播变量的大小
+     */
+    public static final int BYTES_PER_USER = 16;
+
+    /**
+     * 每个打包字段能表示的最大值
+     */
+    public static final int MAX_FIELD_VALUE = 0xFFFE;
+
+    /**
+     * 每个打包字段能表示的最小值，即UNKNOWN(-1)
+     */
+    public static final int MIN_FIELD_VALUE = -1;
+
+    private static final int FIELD_BITS = 16;
+    private static final long FIELD_MASK = 0xFFFFL;
+
+    private long[] userids;
+    private long[] userInfos;
+
+    /**
+     * 构建查找表
+     * @param userid2InfoList <userid,打包后的用户信息>
+     */
+    public UserInfoLookup(List<Tuple2<Long, Long>> userid2InfoList) {
+        Collections.sort(userid2InfoList, new Comparator<Tuple2<Long, Long>>() {
+            @Override
+            public int compare(Tuple2<Long, Long> o1, Tuple2<Long, Long> o2) {
+                return o1._1.compareTo(o2._1);
+            }
+        });
+
+        int size = userid2InfoList.size();
+        userids = new long[size];
+        userInfos = new long[size];
+        for(int i = 0; i < size; i++) {
+            Tuple2<Long, Long> userid2Info = userid2InfoList.get(i);
+            userids[i] = userid2Info._1;
+            userInfos[i] = userid2Info._2;
+        }
+    }
+
+    /**
+     * 查找用户
+     * @param userid 用户id
+     * @return 用户在查找表中的位置，找不到时返回负数
+     */
+    private UserInfoLookup(long[] userids, long[] userInfos) {
+        this.userids = userids;
+        this.userInfos = userInfos;
+    }
+
+    /**
+     * 按顺序拼接多个查找表
+     * 前一个查找表的userid必须都小于后一个查找表的userid，比如sortByKey之后各个partition构建的查找表
+     * @param lookups 查找表
+     * @return 拼接后的查找表
+     */
+    public static UserInfoLookup concat(List<UserInfoLookup> lookups) {
+        int size = 0;
+        for(UserInfoLookup lookup : lookups) {
+            size += lookup.size();
+        }
+
+        long[] userids = new long[size];
+        long[] userInfos = new long[size];
+        int offset = 0;
+        for(UserInfoLookup lookup : lookups) {
+            System.arraycopy(lookup.userids, 0, userids, offset, lookup.size());
+            System.arraycopy(lookup.userInfos, 0, userInfos, offset, lookup.size());
+            offset += lookup.size();
+        }
+        return new UserInfoLookup(userids, userInfos);
+    }
+
+    public int indexOf(long userid) {
+        return Arrays.binarySearch(userids, userid);
+    }
+
+    /**
+     * 获取指定位置的打包用户信息
+     * @param index 位置
+     * @return 打包的用户信息
+     */
+    public long userInfoAt(int index) {
+        return userInfos[index];
+    }
+
+    public int size() {
+        return userids.length;
+    }
+
+    /**
+     * 打包用户信息
+     * 职业、城市、性别使用UserInfoDict中的编码，UNKNOWN(-1)也需要能表示，所以各字段都加1后保存
+     * 字段超出[MIN_FIELD_VALUE,MAX_FIELD_VALUE]时会覆盖相邻的字段，直接抛出异常
+     */
+    public static long pack(int age, int professional, int city, int sex) {
+        checkField("age", age);
+        checkField("professional", professional);
+        checkField("city", city);
+        checkField("sex", sex);
+        return ((long) (age + 1) << (FIELD_BITS * 3))
+                | ((long) (professional + 1) << (FIELD_BITS * 2))
+                | ((long) (city + 1) << FIELD_BITS)
+                | (long) (sex + 1);
+    }
+
+    private static void checkField(String field, int value) {
+        if(value < MIN_FIELD_VALUE || value > MAX_FIELD_VALUE) {
+            throw new IllegalArgumentException(field + "超出查找表能表示的范围：" + value);
+        }
+    }
+
+    public static int unpackAge(long userInfo) {
+        return (int) ((userInfo >>> (FIELD_BITS * 3)) & FIELD_MASK) - 1;
+    }
+
+    public static int unpackProfessional(long userInfo) {
+        return (int) ((userInfo >>> (FIELD_BITS * 2)) & FIELD_MASK) - 1;
+    }
+
+    public static int unpackCity(long userInfo) {
+        return (int) ((userInfo >>> FIELD_BITS) & FIELD_MASK) - 1;
+    }
+
+    public static int unpackSex(long userInfo) {
+        return (int) (userInfo & FIELD_MASK) - 1;
+    }
+
+    /**
+     * 按userid升序追加用户，构建查找表
+     * 使用基本类型数组，容量不够时翻倍
+     */
+    public static class Builder {
+
+        private long[] userids = new long[16];
+        private long[] userInfos = new long[16];
+        private int size = 0;
+
+        /**
+         * 追加一个用户，userid必须大于之前追加的userid
+         */
+        public Builder add(long userid, long userInfo) {
+            if(size > 0 && userid <= userids[size - 1]) {
+                throw new IllegalArgumentException("userid必须按升序追加：" + userid);
+            }
+            if(size == userids.length) {
+                userids = Arrays.copyOf(userids, size * 2);
+                userInfos = Arrays.copyOf(userInfos, size * 2);
+            }
+            userids[size] = userid;
+            userInfos[size] = userInfo;
+            size++;
+            return this;
+        }
+
+        public UserInfoLookup build() {
+            return new UserInfoLookup(Arrays.copyOf(userids, size), Arrays.copyOf(userInfos, size));
+        }
+    }
+}
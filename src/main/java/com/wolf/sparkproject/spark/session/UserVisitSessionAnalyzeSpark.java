@@ -6,9 +6,10 @@ import com.wolf.sparkproject.constant.Constants;
 import com.wolf.sparkproject.dao.*;
 import com.wolf.sparkproject.dao.factory.DAOFactory;
 import com.wolf.sparkproject.domain.*;
+import com.wolf.sparkproject.jdbc.JDBCHelper;
 import com.wolf.sparkproject.test.MockData;
 import com.wolf.sparkproject.util.*;
-import org.apache.spark.Accumulator;
+import org.apache.spark.Partitioner;
 import org.apache.spark.SparkConf;
 import org.apache.spark.SparkContext;
 import org.apache.spark.api.java.JavaPairRDD;
@@ -16,13 +17,14 @@ import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.*;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.DataFrame;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.functions;
 import org.apache.spark.sql.hive.HiveContext;
 import org.apache.spark.storage.StorageLevel;
 import scala.Tuple2;
-import com.google.common.base.Optional;
 
 import java.util.*;
 
@@ -50,9 +52,68 @@ import java.util.*;
  * 这是spark本身提供的特性
  */
 public class UserVisitSessionAnalyzeSpark {
+
+    /**
+     * 作业需要用到的user_visit_action的列，顺序即Row中字段的位置
+     */
+    private static final String[] ACTION_COLUMNS = new String[]{
+            "date", "user_id", "session_id", "page_id", "action_time", "search_keyword",
+            "click_category_id", "click_product_id", "order_category_ids", "order_product_ids",
+            "pay_category_ids", "pay_product_ids"};
+
+    /**
+     * 任务参数没有指定时，默认取的热门品类个数
+     */
+    private static final int DEFAULT_TOP_CATEGORY_COUNT = 10;
+
+    /**
+     * 任务参数没有指定时，默认每个品类取的活跃session个数
+     */
+    private static final int DEFAULT_TOP_SESSION_COUNT = 10;
+
+    /**
+     * 指定job调度池的线程本地属性
+     */
+    private static final String SCHEDULER_POOL_PROPERTY = "spark.scheduler.pool";
+
+    /**
+     * 任务参数和任务类型都没有指定调度池时使用的调度池
+     */
+    private static final String DEFAULT_SCHEDULER_POOL = "default";
+
+    /**
+     * 单独提交一个任务：spark-submit时传入任务id
+     * 需要常驻driver、轮询task表执行任务时，使用SessionAnalyzeTaskServer
+     */
     public static void main(String[] args) {
-        args = new String[]{"2"};
-        //构建spark上下文
+        Long taskid = ParamUtils.getTaskIdFromArgs(args);
+        if(taskid == null) {
+            System.err.println("请在命令行参数中指定任务id");
+            return;
+        }
+
+        JavaSparkContext sc = createSparkContext();
+        SQLContext sqlContext = getSQLContext(sc.sc());
+
+        //生成模拟测试数据
+        mockData(sc, sqlContext);
+
+        //创建需要使用的DAO组件
+        ITaskDAO taskDAO = DAOFactory.getTaskDAO();
+
+        //那么就首先得查询出来指定的任务，并获取任务的查询参数
+        Task task = taskDAO.findById(taskid);
+        run(sc, sqlContext, task);
+
+        //关闭spark上下文
+        sc.close();
+    }
+
+    /**
+     * 构建spark上下文
+     * @return JavaSparkContext
+     */
+    static JavaSparkContext createSparkContext() {
 
         //首先在Constants.java中设置spark作业相关的常量
         //String SPARK_APP_NAME = "UserVisitSessionAnalyzeSpark";
@@ -87,29 +148,102 @@ public class UserVisitSessionAnalyzeSpark {
                 .setAppName(Constants.SPARK_APP_NAME)
                 .setMaster("local")
                 .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+                .set("spark.kryo.registrator", SessionKryoRegistrator.class.getName())
+                //常驻driver同时执行多个任务时，按调度池公平分配资源，调度池在fairscheduler.xml中配置
+                .set("spark.scheduler.mode", "FAIR")
                 .registerKryoClasses(new Class[]{
-                        CategorySortKey.class});
+                        CategorySortKey.class,
+                        SessionAggrBuffer.class,
+                        SessionAggrInfo.class,
+                        UserInfoDict.class,
+                        UserInfoLookup.class,
+                        SessionFilter.class,
+                        SessionSampleBuffer.class,
+                        TopSessionBuffer.class});
+
+        return new JavaSparkContext(conf);
+    }
 
-        JavaSparkContext sc = new JavaSparkContext(conf);
-        SQLContext sqlContext = getSQLContext(sc.sc());
+    /**
+     * 在给定的spark上下文中执行一个session分析任务
+     *
+     * 常驻的driver会在多个线程中同时调用这个方法，每个任务的job都在当前线程上提交：
+     * job group是任务id，可以按任务查看和取消job；调度池由getSchedulerPool决定，
+     * FAIR调度模式下，小任务不必排在大任务的所有stage后面
+     * 累加器和广播变量都在任务内部创建，任务之间互不影响
+     * @param sc spark上下文
+     * @param sqlContext SQLContext
+     * @param task 任务
+     */
+    static void run(JavaSparkContext sc, SQLContext sqlContext, Task task) {
+        JSONObject taskParam = JSONObject.parseObject(task.getTaskParam());
+        beginTask(sc, task, taskParam);
+        try {
+            analyze(sc, sqlContext, task, taskParam);
+        } finally {
+            endTask(sc);
+        }
+    }
 
-        //生成模拟测试数据
-        mockData(sc, sqlContext);
+    /**
+     * 设置当前线程提交的job所属的job group和调度池
+     * job group和调度池都是线程本地的属性，只影响当前线程提交的job
+     */
+    static void beginTask(JavaSparkContext sc, Task task, JSONObject taskParam) {
+        sc.setJobGroup(String.valueOf(task.getTaskid()), task.getTaskName(), false);
+        sc.setLocalProperty(SCHEDULER_POOL_PROPERTY, getSchedulerPool(task, taskParam));
+    }
 
-        //创建需要使用的DAO组件
-        ITaskDAO taskDAO = DAOFactory.getTaskDAO();
+    /**
+     * 线程会被用来执行下一个任务，清除本任务的设置
+     * 清除之前打印driver端连接池和批量写入的统计信息，连接池是否够用、写入是否变慢可以按任务查看
+     */
+    static void endTask(JavaSparkContext sc) {
+        JDBCHelper jdbcHelper = JDBCHelper.getInstance();
+        System.out.println("task " + sc.getLocalProperty("spark.jobGroup.id")
+                + " finished, jdbc pool: " + jdbcHelper.getPoolStats()
+                + ", jdbc batch: " + jdbcHelper.getBatchStats());
+        sc.clearJobGroup();
+        sc.setLocalProperty(SCHEDULER_POOL_PROPERTY, null);
+    }
 
-        //那么就首先得查询出来指定的任务，并获取任务的查询参数
-        long taskid = ParamUtils.getTaskIdFromArgs(args);
-        Task task = taskDAO.findById(taskid);
-        JSONObject taskParam = JSONObject.parseObject(task.getTaskParam());
-        System.out.println(taskid);
+    /**
+     * 获取任务使用的调度池
+     * 优先使用任务参数中指定的调度池，其次按任务类型，都没有指定时使用默认调度池
+     * 调度池在fairscheduler.xml中配置，没有配置的调度池会按默认设置自动创建
+     */
+    private static String getSchedulerPool(Task task, JSONObject taskParam) {
+        String pool = ParamUtils.getParam(taskParam, Constants.PARAM_SCHEDULER_POOL);
+        if(pool == null || pool.isEmpty()) {
+            pool = task.getTaskType();
+        }
+        return pool == null || pool.isEmpty() ? DEFAULT_SCHEDULER_POOL : pool;
+    }
+
+    /**
+     * session分析的计算过程
+     *
+     * 任务用到的持久化RDD和广播变量在任务结束时释放，
+     * 常驻的driver连续执行多个任务时，不会在内存中越积越多
+     */
+    private static void analyze(JavaSparkContext sc, SQLContext sqlContext, Task task, JSONObject taskParam) {
+        System.out.println(task.getTaskid());
         System.out.println(taskParam);
 
+        //只需要统计占比、没有搜索词和点击品类条件、并且日期范围是单独一天的任务，直接使用session cube计算
+        //cube只是加速手段，读取或计算失败时打印异常，继续走完整的计算流程
+        try {
+            if(SessionCubeSpark.tryAnswer(sc, sqlContext, task, taskParam)) {
+                return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
         //如果要进行session粒度的数据聚合，
         //首先要从user_visit_action表中，查询出来指定日期范围内的数据
         JavaRDD<Row> actionRDD = getActionRDDByDateRange(sqlContext, taskParam);
-        JavaPairRDD<String, Row> sessionid2ActionRDD = getSessionid2ActionRDD(actionRDD);
+        JavaPairRDD<String, ActionRecord> sessionid2ActionRDD = getSessionid2ActionRDD(actionRDD);
 
         /**
          * 持久化
@@ -122,52 +256,94 @@ public class UserVisitSessionAnalyzeSpark {
          * StorageLevel.MEMORY_AND_DISK_SER()，内存 + 磁盘，序列化，第四选择
          * StorageLevel.DISK_ONLY()，纯磁盘，第五选择
          * 如果内存充足，要使用双副本高可靠机制， 选择后缀带_2的策略，比如:StorageLevel.MEMORY_ONLY_2()
+         *
+         * 行为数据是内存占用最大的数据，使用ActionRecord和专门的Kryo序列化器以后，
+         * 序列化存储的数据非常紧凑，所以这里使用MEMORY_ONLY_SER，让更多的数据能够留在内存中
+         *
+         * 日期范围内每一天的session聚合结果都已经物化时（见DailySessionAggrSpark），
+         * 行为数据只用于生成通过筛选的session的明细，只使用一次，不需要持久化
+         *
+         * 注意：即使每一天都已经物化，这里也不能跳过行为数据的扫描，
+         * 物化的只是session粒度的聚合结果，getSessionid2detailRDD仍然要扫描整个日期范围的行为数据，
+         * 并与通过筛选的session做一次shuffle join，见getSessionid2detailRDD的说明
+         * 物化结果只省掉了按session聚合行为数据的那一次shuffle
          */
-        sessionid2ActionRDD = sessionid2ActionRDD.persist(StorageLevel.MEMORY_ONLY());
+        List<String> materializedDates = getMaterializedDates(sc, taskParam);
+        boolean aggregateFromActions = materializedDates.size() < DateUtils.getDatesBetween(
+                ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE),
+                ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE)).size();
+        if(aggregateFromActions) {
+            sessionid2ActionRDD = sessionid2ActionRDD.persist(StorageLevel.MEMORY_ONLY_SER());
+        }
 
         //聚合
-        //首先，可以将行为数据按照session_id进行groupByKey分组
+        //首先，可以将行为数据按照session_id进行aggregateByKey聚合
         //此时的数据粒度就是session粒度了，然后可以将session粒度的数据与用户信息数据进行join
         //然后就可以获取到session粒度的数据，同时数据里面还包含了session对应的user信息
         //到这里为止，获取的数据是<sessionid,(sessionid,searchKeywords,
         //clickCategoryIds,age,professional,city,sex)>
-        JavaPairRDD<String, String> sessionid2AggrInfoRDD = aggregateBySession(sqlContext, sessionid2ActionRDD);
+        //构建职业、城市、性别的编码字典，并广播出去
+        UserInfoDict userInfoDict = UserInfoDict.build(sqlContext);
+        final Broadcast<UserInfoDict> userInfoDictBroadcast = sc.broadcast(userInfoDict);
+
+        //在driver端将任务参数编译成session过滤器，并广播出去
+        final Broadcast<SessionFilter> sessionFilterBroadcast = sc.broadcast(
+                SessionFilter.compile(taskParam, userInfoDict));
+
+        JavaPairRDD<String, SessionAggrInfo> sessionid2AggrInfoRDD = aggregateBySession(sc, sqlContext, taskParam,
+                sessionid2ActionRDD, materializedDates, userInfoDictBroadcast, sessionFilterBroadcast);
 
+        analyzeSessions(sc, task, taskParam, sessionid2ActionRDD, sessionid2AggrInfoRDD, sessionFilterBroadcast);
+
+        //释放任务使用的持久化RDD和广播变量
+        sessionid2ActionRDD.unpersist(false);
+        userInfoDictBroadcast.destroy();
+        sessionFilterBroadcast.destroy();
+    }
+
+    /**
+     * 对session聚合数据进行过滤和统计，并计算随机抽取、top10品类和top10活跃session
+     * 过滤以后的session和明细数据在计算结束时释放
+     * @param sessionid2ActionRDD 任务日期范围内的行为数据
+     * @param sessionid2AggrInfoRDD 任务日期范围内的session聚合数据
+     * @param sessionFilterBroadcast 任务的session过滤器
+     */
+    static void analyzeSessions(JavaSparkContext sc, Task task, JSONObject taskParam,
+            JavaPairRDD<String, ActionRecord> sessionid2ActionRDD,
+            JavaPairRDD<String, SessionAggrInfo> sessionid2AggrInfoRDD,
+            Broadcast<SessionFilter> sessionFilterBroadcast) {
         //接着，就要针对session粒度的聚合数据，按照使用者指定的筛选参数进行数据过滤
         //相当于我们自己编写的算子，是要访问外面的任务参数对象的
         //匿名内部类（算子函数），访问外部对象，是要给外部对象使用final修饰的
 
-        //重构，同时进行过滤和统计
-        Accumulator<String> sessionAggrStatAccumulator = sc.accumulator(
-                "", new SesssionAggrStatAccumulator());
-
-        JavaPairRDD<String, String> filteredSessionid2AggrInfoRDD = filterSessionAndAggrStat(
-                sessionid2AggrInfoRDD, taskParam, sessionAggrStatAccumulator);
+        JavaPairRDD<String, SessionAggrInfo> filteredSessionid2AggrInfoRDD = filterSession(
+                sessionid2AggrInfoRDD, sessionFilterBroadcast);
 
         //持久化 filteredSessionid2AggrInfoRDD
         filteredSessionid2AggrInfoRDD = filteredSessionid2AggrInfoRDD.persist(StorageLevel.MEMORY_ONLY());
 
+        //计算出各个范围的session占比，并写入MySQL
+        calculateAndPersistAggrStat(aggregateSessionStat(filteredSessionid2AggrInfoRDD), task.getTaskid());
+
         //生成公共RDD：通过筛选条件的session的访问明细数据
-        JavaPairRDD<String, Row> sessionid2detailRDD = getSessionid2detailRDD(
+        JavaPairRDD<String, ActionRecord> sessionid2detailRDD = getSessionid2detailRDD(
                 filteredSessionid2AggrInfoRDD, sessionid2ActionRDD);
 
         //持久化 sessionid2detailRDD
         sessionid2detailRDD = sessionid2detailRDD.persist(StorageLevel.MEMORY_ONLY());
 
-        randomExtractSession(sc, task.getTaskid(), filteredSessionid2AggrInfoRDD, sessionid2ActionRDD);
-
-        //计算出各个范围的session占比，并写入MySQL
-        //calculateAndPersistAggrStat(sessionAggrStatAccumulator.value(), task.getTaskid());
+        //抽取出来的session都通过了筛选，直接从明细数据中取访问行为，不需要再join全部的行为数据
+        randomExtractSession(sc, task.getTaskid(), filteredSessionid2AggrInfoRDD, sessionid2detailRDD);
 
         //获取top10热门品类
-        List<Tuple2<CategorySortKey, String>> top10CategoryList =
-                getTop10Category(task.getTaskid(), sessionid2detailRDD);
+        List<Tuple2<Long, CategorySortKey>> top10CategoryList =
+                getTop10Category(task.getTaskid(), taskParam, sessionid2detailRDD);
 
         //获取top10活跃session
-        getTop10Session(sc, task.getTaskid(), top10CategoryList, sessionid2detailRDD);
+        getTop10Session(sc, task.getTaskid(), taskParam, top10CategoryList, sessionid2detailRDD);
 
-        //关闭spark上下文
-        sc.close();
+        filteredSessionid2AggrInfoRDD.unpersist(false);
+        sessionid2detailRDD.unpersist(false);
     }
 
     /**
@@ -177,7 +353,7 @@ public class UserVisitSessionAnalyzeSpark {
      * @param sc SparkContext
      * @return SQLContext
      */
-    private static SQLContext getSQLContext(SparkContext sc) {
+    static SQLContext getSQLContext(SparkContext sc) {
         //在my.properties中配置
         //spark.local=true（打包之前改为flase）
         //在ConfigurationManager.java中添加
@@ -194,11 +370,17 @@ public class UserVisitSessionAnalyzeSpark {
         //String SPARK_LOCAL = "spark.local";
 
         boolean local = ConfigurationManager.getBoolean(Constants.SPARK_LOCAL);
+        SQLContext sqlContext;
         if(local) {
-            return new SQLContext(sc);
+            sqlContext = new SQLContext(sc);
         }else {
-            return new HiveContext(sc);
+            sqlContext = new HiveContext(sc);
         }
+
+        //将过滤条件下推到Parquet和ORC的reader中，按照列统计信息跳过不需要的数据块
+        sqlContext.setConf("spark.sql.parquet.filterPushdown", "true");
+        sqlContext.setConf("spark.sql.orc.filterPushdown", "true");
+        return sqlContext;
     }
 
     /**
@@ -211,7 +393,7 @@ public class UserVisitSessionAnalyzeSpark {
      * [2019-02-26,29,09094d20e0854c1a89649c6ee77d12d9,6,2019-02-26 7:39:38,null,null,null,79,60,null,null]
      * [0,user0,name0,57,professional97,city99,female]
      */
-    private static void mockData(JavaSparkContext sc, SQLContext sqlContext) {
+    static void mockData(JavaSparkContext sc, SQLContext sqlContext) {
         boolean local = ConfigurationManager.getBoolean(Constants.SPARK_LOCAL);
         if(local) {
             MockData.mock(sc, sqlContext);
@@ -220,6 +402,12 @@ public class UserVisitSessionAnalyzeSpark {
 
     /**
      * 获取指定日期范围内的用户访问行为数据
+     *
+     * user_visit_action按date分区，并且使用列式存储
+     * 1.只查询作业用到的列，而不是select *，列式存储只会读取这些列的数据
+     *   列的顺序与后面按位置访问Row的顺序一致，date是分区列，不需要读取数据文件
+     * 2.日期范围作为date分区列上的条件，直接用Column表达式而不是拼接SQL字符串，
+     *   Hive表只会扫描范围内的date分区，其余的过滤条件也会下推到Parquet/ORC的reader中
      * @param sqlContext SQLContext
      * @param taskParam 任务参数
      * @return 行为数据RDD
@@ -231,397 +419,655 @@ public class UserVisitSessionAnalyzeSpark {
         String startDate = ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE);
         String endDate = ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE);
 
-        String sql = "select * "
-                + "from user_visit_action "
-                + " where date >= '" + startDate + "'"
-                + " and date <= '" + endDate + "'";
+        return getActionRDD(sqlContext, dateBetween(startDate, endDate));
+    }
+
+    /**
+     * date分区列在[startDate,endDate]之间的条件
+     */
+    static Column dateBetween(String startDate, String endDate) {
+        Column date = functions.col("date");
+        return date.geq(startDate).and(date.leq(endDate));
+    }
 
-        DataFrame actionDF = sqlContext.sql(sql);
+    /**
+     * 获取满足date分区条件的用户访问行为数据
+     * @param sqlContext SQLContext
+     * @param dateCondition date分区列上的条件
+     * @return 行为数据RDD
+     */
+    static JavaRDD<Row> getActionRDD(SQLContext sqlContext, Column dateCondition) {
+        DataFrame actionDF = sqlContext.table("user_visit_action")
+                .where(dateCondition)
+                .select(ACTION_COLUMNS[0], Arrays.copyOfRange(ACTION_COLUMNS, 1, ACTION_COLUMNS.length));
 
         return actionDF.javaRDD();
     }
 
     /**
      * 获取sessionid2到访问行为数据的映射的RDD
+     * 同时将Row转换成ActionRecord，后面都不再按位置访问Row
      * @param actionRDD 行为数据RDD
      * @return ssionid2到访问行为数据的映射的RDD
      */
-    private static JavaPairRDD<String, Row> getSessionid2ActionRDD(JavaRDD<Row> actionRDD) {
-        return actionRDD.mapToPair(new PairFunction<Row, String, Row>(){
+    static JavaPairRDD<String, ActionRecord> getSessionid2ActionRDD(JavaRDD<Row> actionRDD) {
+        return actionRDD.mapToPair(new PairFunction<Row, String, ActionRecord>(){
 
             private static final long serialVersionUID = 1L;
 
-            public Tuple2<String, Row> call(Row row) throws Exception {
-                return new Tuple2<String, Row>(row.getString(2), row);
+            public Tuple2<String, ActionRecord> call(Row row) throws Exception {
+                ActionRecord action = toActionRecord(row);
+                return new Tuple2<String, ActionRecord>(action.getSessionid(), action);
             }
         });
     }
 
+    /**
+     * 将user_visit_action的Row转换成ActionRecord
+     * Row中字段的位置见ACTION_COLUMNS
+     * @param row 行为数据
+     * @return ActionRecord
+     */
+    private static ActionRecord toActionRecord(Row row) {
+        ActionRecord action = new ActionRecord();
+        action.setDate(row.getString(0));
+        action.setUserid(row.getLong(1));
+        action.setSessionid(row.getString(2));
+        action.setPageid(row.getLong(3));
+        action.setActionTime(DateUtils.parseTimeMillis(row.getString(4)));
+        action.setSearchKeyword(row.getString(5));
+        if(!row.isNullAt(6)) {
+            action.setClickCategoryId(row.getLong(6));
+        }
+        if(!row.isNullAt(7)) {
+            action.setClickProductId(row.getLong(7));
+        }
+        action.setOrderCategoryIds(row.getString(8));
+        action.setOrderProductIds(row.getString(9));
+        action.setPayCategoryIds(row.getString(10));
+        action.setPayProductIds(row.getString(11));
+        return action;
+    }
+
+    /**
+     * 将访问行为封装成session明细
+     * @param taskid 任务id
+     * @param action 访问行为
+     * @return session明细
+     */
+    private static SessionDetail toSessionDetail(long taskid, ActionRecord action) {
+        SessionDetail sessionDetail = new SessionDetail();
+        sessionDetail.setTaskid(taskid);
+        sessionDetail.setUserid(action.getUserid());
+        sessionDetail.setSessionid(action.getSessionid());
+        sessionDetail.setPageid(action.getPageid());
+        sessionDetail.setActionTime(DateUtils.formatTime(action.getActionTime()));
+        sessionDetail.setSearchKeyword(action.getSearchKeyword());
+        if(action.hasClickCategoryId()) {
+            sessionDetail.setClickCategoryId(action.getClickCategoryId());
+        }
+        if(action.getClickProductId() != ActionRecord.NULL_ID) {
+            sessionDetail.setClickProductId(action.getClickProductId());
+        }
+        sessionDetail.setOrderCategoryIds(action.getOrderCategoryIds());
+        sessionDetail.setOrderProductIds(action.getOrderProductIds());
+        sessionDetail.setPayCategoryIds(action.getPayCategoryIds());
+        sessionDetail.setPayProductIds(action.getPayProductIds());
+        return sessionDetail;
+    }
+
     /**
      * 对行为数据按sesssion粒度进行聚合
+     *
+     * 任务参数中的用户属性条件（年龄、职业、城市、性别）会在join之前直接作用在user_info上，
+     * 搜索词和点击品类条件会在join之前作用在session聚合数据上，
+     * 这样只有符合条件的用户和session才参与join，join和后面的数据量都会小很多
+     * @param taskParam 任务参数
      * @param sessionid2ActionRDD 行为数据RDD
+     * @param materializedDates 已经物化过session聚合结果的日期
+     * @param userInfoDictBroadcast 用户信息字典
+     * @param sessionFilterBroadcast session过滤器
      * @return session粒度聚合数据
      */
-    private static JavaPairRDD<String,String> aggregateBySession(
-            SQLContext sqlContext, JavaPairRDD<String, Row> sessionid2ActionRDD) {
+    private static JavaPairRDD<String, SessionAggrInfo> aggregateBySession(
+            JavaSparkContext sc, SQLContext sqlContext, JSONObject taskParam,
+            JavaPairRDD<String, ActionRecord> sessionid2ActionRDD,
+            List<String> materializedDates,
+            Broadcast<UserInfoDict> userInfoDictBroadcast,
+            Broadcast<SessionFilter> sessionFilterBroadcast) {
+        JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD = getSessionAggrBuffers(
+                sqlContext, taskParam, sessionid2ActionRDD, materializedDates);
+        return joinUserInfo(sc, sqlContext, taskParam, sessionid2AggrBufferRDD,
+                userInfoDictBroadcast, sessionFilterBroadcast);
+    }
 
-        //对行为数据按照session粒度进行分组
-        JavaPairRDD<String, Iterable<Row>> sessionid2ActionsRDD = sessionid2ActionRDD.groupByKey();
+    /**
+     * 获取任务日期范围内已经结束并且物化过session聚合结果的日期（见DailySessionAggrSpark）
+     * 没有开启每日session聚合时返回空列表
+     * @param taskParam 任务参数
+     * @return 已经物化的日期
+     */
+    private static List<String> getMaterializedDates(JavaSparkContext sc, JSONObject taskParam) {
+        List<String> materializedDates = new ArrayList<String>();
+        if(!ConfigurationManager.getBoolean(Constants.SESSION_AGGR_DAILY_ENABLED)) {
+            return materializedDates;
+        }
 
-        //对每一个session分组进行聚合，将session中所有的搜索词和点击品类都聚合起来
-        //到此为止，获取的数据格式如下：<userid,partAggrInfo(sessionid,searchKeywords,clickCategoryIds)>
-        JavaPairRDD<Long, String> userid2PartAggrInfoRDD = sessionid2ActionsRDD.mapToPair(
-            new PairFunction<Tuple2<String, Iterable<Row>>, Long, String>() {
+        String startDate = ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE);
+        String endDate = ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE);
+        for(String date : DateUtils.getDatesBetween(startDate, endDate)) {
+            if(DailySessionAggrSpark.isClosed(date) && DailySessionAggrSpark.isMaterialized(sc, date)) {
+                materializedDates.add(date);
+            }
+        }
+        return materializedDates;
+    }
 
-                private static final long serialVersionUID = 1L;
+    /**
+     * 获取任务日期范围内的session聚合缓冲区
+     *
+     * 已经物化过的日期，直接读取每日的session聚合结果，
+     * 只有其余的日期才从行为数据聚合，任务的聚合成本从行为数据的量级降到session的量级
+     * 物化结果和行为数据都按user_visit_action的date分区划分日期，两部分不会重复或者遗漏
+     * 跨天的session在每一天都有一个缓冲区，最后按sessionid合并
+     * @param taskParam 任务参数
+     * @param sessionid2ActionRDD 任务日期范围内的行为数据
+     * @param materializedDates 已经物化的日期
+     * @return <sessionid,聚合缓冲区>
+     */
+    private static JavaPairRDD<String, SessionAggrBuffer> getSessionAggrBuffers(
+            SQLContext sqlContext, JSONObject taskParam,
+            JavaPairRDD<String, ActionRecord> sessionid2ActionRDD, List<String> materializedDates) {
+        if(materializedDates.isEmpty()) {
+            return aggregateActions(sessionid2ActionRDD);
+        }
 
-                @Override
-                public Tuple2<Long, String> call(Tuple2<String, Iterable<Row>> tuple)
-                        throws Exception {
-                    String sessionid = tuple._1;
-                    Iterator<Row> iterator = tuple._2.iterator();
+        String startDate = ParamUtils.getParam(taskParam, Constants.PARAM_START_DATE);
+        String endDate = ParamUtils.getParam(taskParam, Constants.PARAM_END_DATE);
 
-                    StringBuffer searchKeywordsBuffer = new StringBuffer("");
-                    StringBuffer clickCategoryIdsBuffer = new StringBuffer("");
+        List<String> openDates = new ArrayList<String>();
+        for(String date : DateUtils.getDatesBetween(startDate, endDate)) {
+            if(!materializedDates.contains(date)) {
+                openDates.add(date);
+            }
+        }
 
-                    Long userid = null;
+        JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD =
+                DailySessionAggrSpark.load(sqlContext, materializedDates);
+        if(!openDates.isEmpty()) {
+            sessionid2AggrBufferRDD = sessionid2AggrBufferRDD.union(
+                    aggregateActions(filterActionsByDates(sessionid2ActionRDD, openDates)));
+        }
+        if(materializedDates.size() + openDates.size() > 1) {
+            sessionid2AggrBufferRDD = sessionid2AggrBufferRDD.reduceByKey(MERGE_AGGR_BUFFER);
+        }
+        return sessionid2AggrBufferRDD;
+    }
 
-                    //session的起始和结束时间
-                    Date startTime = null;
-                    Date endTime = null;
-                    //session的访问步长
-                    int stepLength = 0;
+    /**
+     * 只保留指定日期的行为数据
+     * 按date分区列筛选，与物化每日session聚合结果时扫描的分区一致
+     */
+    private static JavaPairRDD<String, ActionRecord> filterActionsByDates(
+            JavaPairRDD<String, ActionRecord> sessionid2ActionRDD, List<String> dates) {
+        final Set<String> dateSet = new HashSet<String>(dates);
 
-                    //遍历session所有的访问行为
-                    while(iterator.hasNext()) {
-                        //提取每个 访问行为的搜索词字段和点击品类字段
-                        Row row = iterator.next();
-                        if(userid == null) {
-                            userid = row.getLong(1);
-                        }
-                        String searchKeyword = row.getString(5);
-                        Long clickCategoryId = row.getLong(6);
-
-                        //实际上这里要对数据说明一下
-                        //并不是每一行访问行为都有searchKeyword和clickCategoryId两个字段的
-                        //其实，只有搜索行为是有searchKeyword字段的
-                        //只有点击品类的行为是有clickCaregoryId字段的
-                        //所以，任何一行行为数据，都不可能两个字段都有，所以数据是可能出现null值的
-
-                        //所以是否将搜索词点击品类id拼接到字符串中去
-                        //首先要满足不能是null值
-                        //其次，之前的字符串中还没有搜索词或者点击品类id
-
-                        if(StringUtils.isNotEmpty(searchKeyword)) {
-                            if(!searchKeywordsBuffer.toString().contains(searchKeyword)) {
-                                searchKeywordsBuffer.append(searchKeyword + ",");
-                            }
-                        }
-                        if(clickCategoryId != null) {
-                            if(!clickCategoryIdsBuffer.toString().contains(
-                                    String.valueOf(clickCategoryId))) {
-                                clickCategoryIdsBuffer.append(clickCategoryId + ",");
-                            }
-                        }
+        return sessionid2ActionRDD.filter(new Function<Tuple2<String, ActionRecord>, Boolean>() {
 
-                        //计算session开始和结束时间
-                        //现在DateUtils.java中添加方法
-                        //public static Date parseTime(String time) {
-                        //  try {
-                        //      return TIME_FORMAT.parse(time);
-                        //  } catch (ParseException e) {
-                        //      e.printStackTrace();
-                        //  }
-                        //  return null;
-                        //}
-
-                        //计算session开始和结束时间
-                        Date actionTime = DateUtils.parseTime(row.getString(4));
-                        if(startTime == null) {
-                            startTime = actionTime;
-                        }
-                        if(endTime == null) {
-                            endTime = actionTime;
-                        }
+            private static final long serialVersionUID = 1L;
 
-                        if(actionTime.before(startTime)) {
-                            startTime = actionTime;
-                        }
-                        if(actionTime.after(endTime)) {
-                            endTime = actionTime;
-                        }
+            @Override
+            public Boolean call(Tuple2<String, ActionRecord> tuple) throws Exception {
+                return dateSet.contains(tuple._2.getDate());
+            }
+        });
+    }
 
-                        //计算session访问步长
-                        stepLength ++;
-                    }
+    /**
+     * 对行为数据按照session粒度进行聚合
+     * @param sessionid2ActionRDD 行为数据RDD
+     * @return <sessionid,聚合缓冲区>
+     */
+    static JavaPairRDD<String, SessionAggrBuffer> aggregateActions(
+            JavaPairRDD<String, ActionRecord> sessionid2ActionRDD) {
+        //这里不再使用groupByKey，groupByKey会把每一行访问行为都shuffle出去，
+        //并且把整个session的访问行为放进内存中，访问步长很长的session容易OOM
+        //使用aggregateByKey，在map端先对同一个session进行局部聚合，shuffle的只是聚合缓冲区
+        return sessionid2ActionRDD.aggregateByKey(new SessionAggrBuffer(), ADD_ACTION, MERGE_AGGR_BUFFER);
+    }
 
-                    //StringUtils引入的包是import com.wolf.sparkproject.util.trimComma;
-                    String searchKeywords = StringUtils.trimComma(searchKeywordsBuffer.toString());
-                    String clickCategoryIds = StringUtils.trimComma(clickCategoryIdsBuffer.toString());
-
-                    //计算session访问时长（秒）
-                    long visitLength = (endTime.getTime() - startTime.getTime()) / 1000;
-
-                    //返回的数据即是<sessionid, partAggrInfo>
-                    //但是，这一步聚合后，其实还需要将每一行数据，根对应的用户信息进行聚合
-                    //问题来了，如果是跟用户信息进行聚合的话，那么key就不应该是sessionid，而应该是userid
-                    //才能够跟<userid, Row>格式的用户信息进行聚合
-                    //如果我们这里直接返回<sessionid, partAggrInfo>,还得再做一次mapToPair算子
-                    //将RDD映射成<userid,partAggrInfo>的格式，那么就多此一举
-
-                    //所以，我们这里其实可以直接返回数据格式就是<userid, partAggrInfo>
-                    //然后在直接将返回的Tuple的key设置成sessionid
-                    //最后的数据格式，还是<sessionid,fullAggrInfo>
-
-                    //聚合数据，用什么样的格式进行拼接？
-                    //我们这里统一定义，使用key=value|key=value
-
-                    //在Constants.java中定义spark作业相关的常量
-                    //String FIELD_SESSION_ID = "sessionid";
-                    //String FIELD_SEARCH_KEYWORDS = "searchKeywords";
-                    //String FIELD_CLICK_CATEGORY_IDS = "clickCategoryIds";
-                    //String FIELD_VISIT_LENGTH = "visitLength";
-                    //String FIELD_STEP_LENGTH = "stepLength";
-                    //String FIELD_START_TIME = "starttime";
-                    String partAggrInfo = Constants.FIELD_SESSION_ID + "=" + sessionid + "|"
-                            + Constants.FIELD_SEARCH_KEYWORDS + "=" + searchKeywords + "|"
-                            + Constants.FIELD_CLICK_CATEGORY_IDS + "=" + clickCategoryIds + "|"
-                            + Constants.FIELD_VISIT_LENGTH + "=" + visitLength + "|"
-                            + Constants.FIELD_STEP_LENGTH + "=" + stepLength + "|"
-                            + Constants.FIELD_START_TIME + "=" + DateUtils.formatTime(startTime);
-
-                    return new Tuple2<Long, String>(userid, partAggrInfo);
-                }
-            });
+    /**
+     * 对行为数据按照key进行聚合，聚合结果按照指定的partitioner分区
+     * @param key2ActionRDD 行为数据RDD
+     * @param partitioner 聚合结果的partitioner
+     * @return <key,聚合缓冲区>
+     */
+    static <K> JavaPairRDD<K, SessionAggrBuffer> aggregateActions(
+            JavaPairRDD<K, ActionRecord> key2ActionRDD, Partitioner partitioner) {
+        return key2ActionRDD.aggregateByKey(new SessionAggrBuffer(), partitioner, ADD_ACTION, MERGE_AGGR_BUFFER);
+    }
 
-        //查询所有用户数据
-        String sql = "select * from user_info";
-        JavaRDD<Row> userInfoRDD = sqlContext.sql(sql).javaRDD();
+    /**
+     * 将一行访问行为累加到session聚合缓冲区中
+     */
+    private static final Function2<SessionAggrBuffer, ActionRecord, SessionAggrBuffer> ADD_ACTION =
+        new Function2<SessionAggrBuffer, ActionRecord, SessionAggrBuffer>() {
 
-        JavaPairRDD<Long, Row> userid2InfoRDD = userInfoRDD.mapToPair(
-            new PairFunction<Row, Long, Row>(){
+            private static final long serialVersionUID = 1L;
 
-                private static final long serialVersionUID = 1L;
+            @Override
+            public SessionAggrBuffer call(SessionAggrBuffer buffer, ActionRecord action) throws Exception {
+                return buffer.add(action);
+            }
+        };
 
-                @Override
-                public Tuple2<Long, Row> call(Row row) throws Exception {
-                    return new Tuple2<Long, Row>(row.getLong(0), row);
-                }
-            });
+    /**
+     * 合并两个session聚合缓冲区
+     */
+    private static final Function2<SessionAggrBuffer, SessionAggrBuffer, SessionAggrBuffer> MERGE_AGGR_BUFFER =
+        new Function2<SessionAggrBuffer, SessionAggrBuffer, SessionAggrBuffer>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public SessionAggrBuffer call(SessionAggrBuffer buffer1, SessionAggrBuffer buffer2)
+                    throws Exception {
+                return buffer1.merge(buffer2);
+            }
+        };
+
+    /**
+     * 按照任务的过滤条件过滤session聚合缓冲区，并与用户信息join，得到完整的session聚合信息
+     * @param taskParam 任务参数
+     * @param sessionid2AggrBufferRDD session聚合缓冲区
+     * @param userInfoDictBroadcast 用户信息字典
+     * @param sessionFilterBroadcast session过滤器
+     * @return session粒度聚合数据
+     */
+    static JavaPairRDD<String, SessionAggrInfo> joinUserInfo(
+            JavaSparkContext sc, SQLContext sqlContext, JSONObject taskParam,
+            JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD,
+            Broadcast<UserInfoDict> userInfoDictBroadcast,
+            Broadcast<SessionFilter> sessionFilterBroadcast) {
+        //在join之前，先按照搜索词和点击品类过滤掉不符合条件的session
+        if(sessionFilterBroadcast.value().hasActionCondition()) {
+            sessionid2AggrBufferRDD = filterSessionByKeywordsAndCategoryIds(
+                    sessionid2AggrBufferRDD, sessionFilterBroadcast);
+        }
+
+        //用户属性相关的筛选条件，直接下推到user_info的查询中
+        String userInfoCondition = getUserInfoCondition(taskParam);
 
         //将session粒度聚合数据，与用户信息进行join
-        JavaPairRDD<Long, Tuple2<String, Row>> userid2FullInfoRDD =
-                userid2PartAggrInfoRDD.join(userid2InfoRDD);
+        //user_info表足够小的时候，使用广播join，省掉一次对session数据的shuffle
+        if(canBroadcastUserInfo(sqlContext, userInfoCondition, userInfoDictBroadcast.value())) {
+            return joinUserInfoByBroadcast(sc, sqlContext, userInfoCondition,
+                    sessionid2AggrBufferRDD, userInfoDictBroadcast);
+        }
+        return joinUserInfoByShuffle(sqlContext, userInfoCondition,
+                sessionid2AggrBufferRDD, userInfoDictBroadcast);
+    }
 
-        //对join起来的数据进行拼接，并且返回<sessionid,fullAggrInfo>格式的数据
-        JavaPairRDD<String, String> sessionid2FullAggrInfoRDD = userid2FullInfoRDD.mapToPair(
-            new PairFunction<Tuple2<Long, Tuple2<String, Row>>, String, String>() {
+    /**
+     * 按照搜索词和点击品类过滤session
+     * 只要session搜索过任何一个指定的关键词，或者点击过任何一个指定的品类，就符合条件
+     * @param sessionid2AggrBufferRDD session聚合数据
+     * @param sessionFilterBroadcast session过滤器
+     * @return 过滤后的session聚合数据
+     */
+    private static JavaPairRDD<String, SessionAggrBuffer> filterSessionByKeywordsAndCategoryIds(
+            JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD,
+            final Broadcast<SessionFilter> sessionFilterBroadcast) {
+        return sessionid2AggrBufferRDD.filter(
+            new Function<Tuple2<String, SessionAggrBuffer>, Boolean>() {
 
                 private static final long serialVersionUID = 1L;
 
                 @Override
-                public Tuple2<String, String> call(
-                        Tuple2<Long, Tuple2<String, Row>> tuple) throws Exception {
-                    String partAggrInfo = tuple._2._1;
-                    Row userInfoRow = tuple._2._2;
-
-                    String sessionid = StringUtils.getFieldFromConcatString(
-                            partAggrInfo, "\\|", Constants.FIELD_SESSION_ID);
-
-                    int age = userInfoRow.getInt(3);
-                    String professional = userInfoRow.getString(4);
-                    String city = userInfoRow.getString(5);
-                    String sex = userInfoRow.getString(6);
-
-                    //在Constants.java中添加以下常量
-                    //String FIELD_AGE = "age";
-                    //String FIELD_PROFESSIONAL = "professional";
-                    //String FIELD_CITY = "city";
-                    //String FIELD_SEX = "sex";
-                    String fullAggrInfo = partAggrInfo + "|"
-                            + Constants.FIELD_AGE + "=" + age + "|"
-                            + Constants.FIELD_PROFESSIONAL + "=" + professional + "|"
-                            + Constants.FIELD_CITY + "=" + city + "|"
-                            + Constants.FIELD_SEX + "=" + sex ;
-                    return new Tuple2<String, String>(sessionid, fullAggrInfo);
+                public Boolean call(Tuple2<String, SessionAggrBuffer> tuple) throws Exception {
+                    SessionAggrBuffer buffer = tuple._2;
+                    SessionFilter sessionFilter = sessionFilterBroadcast.value();
+                    if(sessionFilter.getKeywords() != null
+                            && !buffer.containsAnySearchKeyword(sessionFilter.getKeywords())) {
+                        return false;
+                    }
+                    if(sessionFilter.getCategoryIds() != null
+                            && !buffer.containsAnyClickCategoryId(sessionFilter.getCategoryIds())) {
+                        return false;
+                    }
+                    return true;
                 }
             });
-        return sessionid2FullAggrInfoRDD;
     }
 
     /**
-     * 过滤session数据，并进行聚合统计
-     * @param sessionid2AggrInfoRDD
-     * @return
+     * 根据任务参数生成user_info的查询条件
+     * @param taskParam 任务参数
+     * @return 查询条件，以where开头；没有用户属性条件时返回空字符串
      */
-    private static JavaPairRDD<String, String> filterSessionAndAggrStat(
-            JavaPairRDD<String, String> sessionid2AggrInfoRDD,
-            final JSONObject taskParam,
-            final Accumulator<String> sessionAggrAccumulator) {
-        //为了使用后面的ValieUtils,所以，首先将所有的筛选参数拼接成一个连接串
+    private static String getUserInfoCondition(JSONObject taskParam) {
+        String filter = getUserInfoFilter(taskParam);
+        return filter != null ? " where " + filter : "";
+    }
+
+    /**
+     * 根据任务参数生成用户属性（年龄、职业、城市、性别）的过滤表达式
+     * 过滤语义与SessionFilter一致，表达式中的列名与user_info一致
+     * @param taskParam 任务参数
+     * @return 过滤表达式；没有用户属性条件时返回null
+     */
+    static String getUserInfoFilter(JSONObject taskParam) {
         String startAge = ParamUtils.getParam(taskParam, Constants.PARAM_START_AGE);
         String endAge = ParamUtils.getParam(taskParam, Constants.PARAM_END_AGE);
         String professionals = ParamUtils.getParam(taskParam, Constants.PARAM_PROFESSIONALS);
         String cities = ParamUtils.getParam(taskParam, Constants.PARAM_CITIES);
         String sex = ParamUtils.getParam(taskParam, Constants.PARAM_SEX);
-        String keywords = ParamUtils.getParam(taskParam, Constants.PARAM_KEYWORDS);
-        String categoryIds = ParamUtils.getParam(taskParam, Constants.PARAM_CATEGORY_IDS);
-
-        String _parameter = (startAge != null ? Constants.PARAM_START_AGE + "=" + startAge + "|" : "")
-                + (endAge != null ? Constants.PARAM_END_AGE + "=" + endAge + "|" : "")
-                + (professionals != null ? Constants.PARAM_PROFESSIONALS + "=" + professionals + "|" : "")
-                + (cities != null ? Constants.PARAM_CITIES + "=" + cities + "|" : "")
-                + (sex != null ? Constants.PARAM_SEX + "=" + sex + "|" : "")
-                + (keywords != null ? Constants.PARAM_KEYWORDS + "=" + keywords + "|" : "")
-                + (categoryIds != null ? Constants.PARAM_CATEGORY_IDS + "=" + categoryIds : "");
-
-        if (_parameter.endsWith("\\|")) {
-            _parameter = _parameter.substring(0, _parameter.length() - 1);
-        }
 
-        final String parameter = _parameter;
-
-        //根据筛选参数进行过滤
-        JavaPairRDD<String, String> filteredSessionid2AggrInfoRDD = sessionid2AggrInfoRDD.filter(
+        List<String> conditions = new ArrayList<String>();
+        if(startAge != null && endAge != null) {
+            conditions.add("age >= " + Integer.valueOf(startAge) + " and age <= " + Integer.valueOf(endAge));
+        }
+        if(professionals != null) {
+            conditions.add("professional in (" + toSqlValues(professionals) + ")");
+        }
+        if(cities != null) {
+            conditions.add("city in (" + toSqlValues(cities) + ")");
+        }
+        if(sex != null) {
+            conditions.add("sex = " + toSqlValues(sex));
+        }
 
-            new Function<Tuple2<String, String>, Boolean>() {
+        StringBuilder condition = new StringBuilder();
+        for(int i = 0; i < conditions.size(); i++) {
+            if(i > 0) {
+                condition.append(" and ");
+            }
+            condition.append(conditions.get(i));
+        }
+        return condition.length() > 0 ? condition.toString() : null;
+    }
 
-                private static final long serialVersionUID = 1L;
+    /**
+     * 将逗号分隔的参数值转换成SQL中的字符串常量列表
+     */
+    private static String toSqlValues(String values) {
+        StringBuilder builder = new StringBuilder();
+        for(String value : values.split(",")) {
+            if(builder.length() > 0) {
+                builder.append(",");
+            }
+            builder.append("'").append(value.replace("'", "''")).append("'");
+        }
+        return builder.toString();
+    }
 
-                public Boolean call(Tuple2<String, String> tuple) throws Exception {
-                    //首先，从tuple中，获取聚合数据
-                    String aggrInfo = tuple._2;
-
-                    //接着，依次按照筛选条件进行过滤
-                    //按照年龄范围进行过滤（startAge、endAge）
-                    //先在Constants.java中添加常量
-                    //String PARAM_START_AGE = "startAge";
-                    //String PARAM_END_AGE = "endage";
-                    //String PARAM_PROFESSIONALS = "professionals";
-                    //String PARAM_CITIES = "cities";
-                    //String PARAM_SEX = "sex";
-                    //String PARAM_KEYWORDS = "keywords";
-                    //String PARAM_CATEGORY_IDS = "categoryIds";
-                    if(!ValidUtils.between(aggrInfo, Constants.FIELD_AGE,
-                            parameter, Constants.PARAM_START_AGE, Constants.PARAM_END_AGE)) {
-                        return false;
-                    }
+    /**
+     * 判断user_info是否可以广播
+     * 按照每个用户占用的字节数估算查找表的大小，不超过配置的阈值时使用广播join
+     * driver端会同时持有各partition收集上来的数组和拼接后的查找表，所以按两份估算
+     * 只需要估算满足用户属性条件的用户
+     * @param sqlContext SQLContext
+     * @param userInfoCondition user_info的查询条件
+     * @param userInfoDict 用户信息字典
+     * @return 是否使用广播join
+     */
+    private static boolean canBroadcastUserInfo(SQLContext sqlContext,
+            String userInfoCondition, UserInfoDict userInfoDict) {
+        long thresholdMB = ConfigurationManager.getLong(Constants.SPARK_USER_INFO_BROADCAST_THRESHOLD);
+        if(thresholdMB < 0) {
+            return false;
+        }
 
-                    //按照职业范围进行过滤（professionals）
-                    if(!ValidUtils.in(aggrInfo, Constants.FIELD_PROFESSIONAL,
-                            parameter, Constants.PARAM_PROFESSIONALS)) {
-                        return false;
-                    }
+        //字典编码超过打包字段的范围时，不能使用查找表
+        if(userInfoDict.getProfessionals().size() > UserInfoLookup.MAX_FIELD_VALUE
+                || userInfoDict.getCities().size() > UserInfoLookup.MAX_FIELD_VALUE
+                || userInfoDict.getSexes().size() > UserInfoLookup.MAX_FIELD_VALUE) {
+            return false;
+        }
 
-                    //按照城市范围进行过滤（cities）
-                    if(!ValidUtils.in(aggrInfo, Constants.FIELD_CITY,
-                            parameter, Constants.PARAM_CATEGORY_IDS)) {
-                        return false;
-                    }
+        Row stat = sqlContext.sql("select count(*), min(age), max(age) from user_info" + userInfoCondition)
+                .collect()[0];
+        long userCount = stat.getLong(0);
 
-                    //按照性别过滤
-                    if(!ValidUtils.equal(aggrInfo, Constants.FIELD_SEX,
-                            parameter, Constants.PARAM_SEX)) {
-                        return false;
-                    }
+        //年龄超过打包字段的范围时，也不能使用查找表
+        if(userCount > 0 && !stat.isNullAt(1) && (stat.getInt(1) < UserInfoLookup.MIN_FIELD_VALUE
+                || stat.getInt(2) > UserInfoLookup.MAX_FIELD_VALUE)) {
+            return false;
+        }
 
-                    //按照搜索词过滤
-                    if(!ValidUtils.in(aggrInfo, Constants.FIELD_SEARCH_KEYWORDS,
-                            parameter, Constants.PARAM_KEYWORDS)) {
-                        return false;
-                    }
+        long estimatedBytes = userCount * UserInfoLookup.BYTES_PER_USER * 2;
+        return estimatedBytes <= thresholdMB * 1024L * 1024L;
+    }
 
-                    //按照点击品类id进行搜索
-                    if(!ValidUtils.in(aggrInfo, Constants.FIELD_CLICK_CATEGORY_IDS,
-                            parameter, Constants.PARAM_CATEGORY_IDS)) {
-                        return false;
-                    }
+    /**
+     * 使用广播变量实现map端join
+     * 将user_info按userid排序，每个partition构建一段查找表，收集到driver端拼接后广播，
+     * 在mapPartitions中查表填充用户信息
+     * @return <sessionid,fullAggrInfo>
+     */
+    private static JavaPairRDD<String, SessionAggrInfo> joinUserInfoByBroadcast(
+            JavaSparkContext sc, SQLContext sqlContext, String userInfoCondition,
+            JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD,
+            final Broadcast<UserInfoDict> userInfoDictBroadcast) {
+        String sql = "select user_id, age, professional, city, sex from user_info" + userInfoCondition;
+        List<UserInfoLookup> userInfoLookups = sqlContext.sql(sql).javaRDD().mapToPair(
+            new PairFunction<Row, Long, Long>() {
 
-                    //如果经过了之前的多个过滤条件之后，程序能够走到这里
-                    //那么说明该session是通过了用户指定的筛选条件的，也就是需要保留的session
-                    //那么就要对session的访问时长和访问步长进行统计，
-                    //根据session对应的范围进行相应的累加计数
-                    //只要走到这一步，那么就是需要计数的session
-                    sessionAggrAccumulator.add(Constants.SESSION_COUNT);
-
-                    //计算出session的访问时长和访问步长的范围，并进行相应的累加
-                    long visitLength = Long.valueOf(StringUtils.getFieldFromConcatString(
-                            aggrInfo, "\\|", Constants.FIELD_VISIT_LENGTH));
-                    long stepLength = Long.valueOf(StringUtils.getFieldFromConcatString(
-                            aggrInfo, "\\|", Constants.FIELD_STEP_LENGTH));
-                    calculateVisitLength(visitLength);
-                    calculateStepLength(stepLength);
+                private static final long serialVersionUID = 1L;
 
-                    return true;
+                @Override
+                public Tuple2<Long, Long> call(Row row) throws Exception {
+                    UserInfoDict userInfoDict = userInfoDictBroadcast.value();
+                    long userInfo = UserInfoLookup.pack(
+                            row.getInt(1),
+                            userInfoDict.getProfessionals().encode(row.getString(2)),
+                            userInfoDict.getCities().encode(row.getString(3)),
+                            userInfoDict.getSexes().encode(row.getString(4)));
+                    return new Tuple2<Long, Long>(row.getLong(0), userInfo);
                 }
+            }).sortByKey().mapPartitions(
+            new FlatMapFunction<Iterator<Tuple2<Long, Long>>, UserInfoLookup>() {
 
-                /**
-                 * 计算访问时长范围
-                 * @param visitLength
-                 */
-                private void calculateVisitLength(long visitLength) {
-                    if(visitLength >= 1 && visitLength <= 3) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_1s_3s);
-                    }else if(visitLength >= 4 && visitLength <= 6) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_4s_6s);
-                    }else if(visitLength >= 7 && visitLength <= 9) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_7s_9s);
-                    }else if(visitLength >= 10 && visitLength <= 30) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_10s_30s);
-                    }else if(visitLength > 30 && visitLength <= 60) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_30s_60s);
-                    }else if(visitLength > 60 && visitLength <= 180) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_1m_3m);
-                    }else if(visitLength > 180 && visitLength <= 600) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_3m_10m);
-                    }else if(visitLength > 600 && visitLength <= 1800) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_10m_30m);
-                    }else if(visitLength > 1800) {
-                        sessionAggrAccumulator.add(Constants.TIME_PERIOD_30m);
-                    }
-                }
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Iterable<UserInfoLookup> call(Iterator<Tuple2<Long, Long>> iterator) throws Exception {
+                    UserInfoLookup.Builder builder = new UserInfoLookup.Builder();
+                    while(iterator.hasNext()) {
+                        Tuple2<Long, Long> userid2Info = iterator.next();
+                        builder.add(userid2Info._1, userid2Info._2);
+                    }
+                    return Collections.singletonList(builder.build());
+                }
+            }).collect();
+
+        //sortByKey以后，partition的顺序就是userid的顺序，按顺序拼接即可
+        final Broadcast<UserInfoLookup> userInfoLookupBroadcast =
+                sc.broadcast(UserInfoLookup.concat(userInfoLookups));
+
+        //session数据的key本来就是sessionid，map端join不会改变分区
+        return sessionid2AggrBufferRDD.mapPartitionsToPair(
+            new PairFlatMapFunction<Iterator<Tuple2<String, SessionAggrBuffer>>, String, SessionAggrInfo>() {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Iterable<Tuple2<String, SessionAggrInfo>> call(
+                        Iterator<Tuple2<String, SessionAggrBuffer>> iterator) throws Exception {
+                    UserInfoLookup userInfoLookup = userInfoLookupBroadcast.value();
+                    List<Tuple2<String, SessionAggrInfo>> list = new ArrayList<Tuple2<String, SessionAggrInfo>>();
 
-                /**
-                 * 计算访问步长范围
-                 * @param stepLength
-                 */
-                private void calculateStepLength(long stepLength) {
-                    if(stepLength >= 1 && stepLength <= 3) {
-                        sessionAggrAccumulator.add(Constants.STEP_PERIOD_1_3);
-                    }else if(stepLength >= 4 && stepLength <= 6) {
-                        sessionAggrAccumulator.add(Constants.STEP_PERIOD_4_6);
-                    }else if(stepLength >= 7 && stepLength <= 9) {
-                        sessionAggrAccumulator.add(Constants.STEP_PERIOD_7_9);
-                    }else if(stepLength >= 10 && stepLength <= 30) {
-                        sessionAggrAccumulator.add(Constants.STEP_PERIOD_10_30);
-                    }else if(stepLength > 30 && stepLength <= 60) {
-                        sessionAggrAccumulator.add(Constants.STEP_PERIOD_30_60);
-                    }else if(stepLength > 60) {
-                        sessionAggrAccumulator.add(Constants.STEP_PERIOD_60);
+                    while(iterator.hasNext()) {
+                        Tuple2<String, SessionAggrBuffer> tuple = iterator.next();
+                        int index = userInfoLookup.indexOf(tuple._2.getUserid());
+                        //与shuffle join一样，找不到用户信息的session直接丢弃
+                        if(index < 0) {
+                            continue;
+                        }
+
+                        long userInfo = userInfoLookup.userInfoAt(index);
+                        SessionAggrInfo aggrInfo = tuple._2.toAggrInfo(tuple._1);
+                        aggrInfo.setAge(UserInfoLookup.unpackAge(userInfo));
+                        aggrInfo.setProfessional(UserInfoLookup.unpackProfessional(userInfo));
+                        aggrInfo.setCity(UserInfoLookup.unpackCity(userInfo));
+                        aggrInfo.setSex(UserInfoLookup.unpackSex(userInfo));
+                        list.add(new Tuple2<String, SessionAggrInfo>(aggrInfo.getSessionid(), aggrInfo));
                     }
+                    return list;
+                }
+            }, true);
+    }
+
+    /**
+     * 使用shuffle join关联user_info
+     * @return <sessionid,fullAggrInfo>
+     */
+    private static JavaPairRDD<String, SessionAggrInfo> joinUserInfoByShuffle(
+            SQLContext sqlContext, String userInfoCondition,
+            JavaPairRDD<String, SessionAggrBuffer> sessionid2AggrBufferRDD,
+            final Broadcast<UserInfoDict> userInfoDictBroadcast) {
+        //将每个session的聚合缓冲区转换成部分聚合信息
+        //到此为止，获取的数据格式如下：<userid,partAggrInfo(sessionid,searchKeywords,clickCategoryIds)>
+        //返回的数据key是userid，方便后面与用户信息进行join
+        JavaPairRDD<Long, SessionAggrInfo> userid2PartAggrInfoRDD = sessionid2AggrBufferRDD.mapToPair(
+            new PairFunction<Tuple2<String, SessionAggrBuffer>, Long, SessionAggrInfo>() {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Tuple2<Long, SessionAggrInfo> call(Tuple2<String, SessionAggrBuffer> tuple)
+                        throws Exception {
+                    SessionAggrInfo partAggrInfo = tuple._2.toAggrInfo(tuple._1);
+                    return new Tuple2<Long, SessionAggrInfo>(partAggrInfo.getUserid(), partAggrInfo);
+                }
+            });
+
+        //查询所有用户数据
+        String sql = "select user_id, age, professional, city, sex from user_info" + userInfoCondition;
+        JavaRDD<Row> userInfoRDD = sqlContext.sql(sql).javaRDD();
+
+        JavaPairRDD<Long, Row> userid2InfoRDD = userInfoRDD.mapToPair(
+            new PairFunction<Row, Long, Row>(){
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Tuple2<Long, Row> call(Row row) throws Exception {
+                    return new Tuple2<Long, Row>(row.getLong(0), row);
+                }
+            });
+
+        //将session粒度聚合数据，与用户信息进行join
+        JavaPairRDD<Long, Tuple2<SessionAggrInfo, Row>> userid2FullInfoRDD =
+                userid2PartAggrInfoRDD.join(userid2InfoRDD);
+
+        //将用户信息编码后填充到聚合信息中，并且返回<sessionid,fullAggrInfo>格式的数据
+        JavaPairRDD<String, SessionAggrInfo> sessionid2FullAggrInfoRDD = userid2FullInfoRDD.mapToPair(
+            new PairFunction<Tuple2<Long, Tuple2<SessionAggrInfo, Row>>, String, SessionAggrInfo>() {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Tuple2<String, SessionAggrInfo> call(
+                        Tuple2<Long, Tuple2<SessionAggrInfo, Row>> tuple) throws Exception {
+                    SessionAggrInfo aggrInfo = tuple._2._1;
+                    Row userInfoRow = tuple._2._2;
+                    UserInfoDict userInfoDict = userInfoDictBroadcast.value();
+
+                    aggrInfo.setAge(userInfoRow.getInt(1));
+                    aggrInfo.setProfessional(userInfoDict.getProfessionals().encode(userInfoRow.getString(2)));
+                    aggrInfo.setCity(userInfoDict.getCities().encode(userInfoRow.getString(3)));
+                    aggrInfo.setSex(userInfoDict.getSexes().encode(userInfoRow.getString(4)));
+                    return new Tuple2<String, SessionAggrInfo>(aggrInfo.getSessionid(), aggrInfo);
+                }
+            });
+        return sessionid2FullAggrInfoRDD;
+    }
+
+    /**
+     * 过滤session数据
+     * @param sessionid2AggrInfoRDD
+     * @param sessionFilterBroadcast 编译好的session过滤器
+     * @return
+     */
+    private static JavaPairRDD<String, SessionAggrInfo> filterSession(
+            JavaPairRDD<String, SessionAggrInfo> sessionid2AggrInfoRDD,
+            final Broadcast<SessionFilter> sessionFilterBroadcast) {
+        //根据筛选参数进行过滤
+        JavaPairRDD<String, SessionAggrInfo> filteredSessionid2AggrInfoRDD = sessionid2AggrInfoRDD.filter(
+
+            new Function<Tuple2<String, SessionAggrInfo>, Boolean>() {
+
+                private static final long serialVersionUID = 1L;
+
+                public Boolean call(Tuple2<String, SessionAggrInfo> tuple) throws Exception {
+                    //首先，从tuple中，获取聚合数据
+                    SessionAggrInfo aggrInfo = tuple._2;
+
+                    //接着，按照年龄、职业、城市、性别、搜索词、点击品类依次进行过滤
+                    return sessionFilterBroadcast.value().accept(aggrInfo);
                 }
             });
         return filteredSessionid2AggrInfoRDD;
     }
 
+    /**
+     * 统计通过筛选的session在各个访问时长、访问步长范围内的数量
+     *
+     * 之前是在filter算子中累加Accumulator，filter是transformation，
+     * 持久化的partition被淘汰或者task重试时会重新执行，同一个session会被重复计数
+     * 现在使用aggregate这个action计算，每个partition的结果只会被driver采纳一次，重算也不会重复计数
+     * @param filteredSessionid2AggrInfoRDD 通过筛选的session
+     * @return 各个范围区间的session数量，下标见SesssionAggrStatAccumulator
+     */
+    private static long[] aggregateSessionStat(JavaPairRDD<String, SessionAggrInfo> filteredSessionid2AggrInfoRDD) {
+        final SesssionAggrStatAccumulator aggrStatParam = new SesssionAggrStatAccumulator();
+        return filteredSessionid2AggrInfoRDD.aggregate(new long[SesssionAggrStatAccumulator.BUCKET_COUNT],
+                new Function2<long[], Tuple2<String, SessionAggrInfo>, long[]>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public long[] call(long[] counts, Tuple2<String, SessionAggrInfo> tuple) throws Exception {
+                        SessionAggrInfo aggrInfo = tuple._2;
+                        return SesssionAggrStatAccumulator.addSession(
+                                counts, aggrInfo.getVisitLength(), aggrInfo.getStepLength());
+                    }
+                },
+                new Function2<long[], long[], long[]>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public long[] call(long[] counts1, long[] counts2) throws Exception {
+                        return aggrStatParam.addInPlace(counts1, counts2);
+                    }
+                });
+    }
+
     /**
      * 获取通过筛选条件的session的访问明细数据RDD
+     *
+     * 限制：这一步总是要扫描任务日期范围内全部的行为数据，并按sessionid做一次shuffle join，
+     * 即使session聚合结果全部来自每日物化的结果也是如此
+     * 随机抽取要写出被抽中session的每一条明细，top10品类要统计每一次点击、下单、支付的品类，
+     * top10活跃session要按每一次点击统计，这些都不在session粒度的聚合结果中，只能从行为数据得到
      * @param sessionid2aggrInfoRDD
      * @param sessionid2actionRDD
      * @return
      */
-    private static JavaPairRDD<String, Row> getSessionid2detailRDD(
-            JavaPairRDD<String, String> sessionid2aggrInfoRDD,
-            JavaPairRDD<String, Row> sessionid2actionRDD) {
-        JavaPairRDD<String, Row> sessionid2detailRDD = sessionid2aggrInfoRDD
+    private static JavaPairRDD<String, ActionRecord> getSessionid2detailRDD(
+            JavaPairRDD<String, SessionAggrInfo> sessionid2aggrInfoRDD,
+            JavaPairRDD<String, ActionRecord> sessionid2actionRDD) {
+        JavaPairRDD<String, ActionRecord> sessionid2detailRDD = sessionid2aggrInfoRDD
                 .join(sessionid2actionRDD)
-                .mapToPair(new PairFunction<Tuple2<String, Tuple2<String, Row>>, String, Row>() {
+                .mapToPair(new PairFunction<Tuple2<String, Tuple2<SessionAggrInfo, ActionRecord>>, String, ActionRecord>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Tuple2<String, Row> call(
-                            Tuple2<String, Tuple2<String, Row>> tuple) throws Exception {
-                        return new Tuple2<String, Row>(tuple._1, tuple._2._2);
+                    public Tuple2<String, ActionRecord> call(
+                            Tuple2<String, Tuple2<SessionAggrInfo, ActionRecord>> tuple) throws Exception {
+                        return new Tuple2<String, ActionRecord>(tuple._1, tuple._2._2);
                     }
 
                 });
@@ -638,75 +1084,55 @@ public class UserVisitSessionAnalyzeSpark {
     private static void randomExtractSession(
             JavaSparkContext sc,
             final long taskid,
-            JavaPairRDD<String, String> sessionid2AggrInfoRDD,
-            JavaPairRDD<String, Row> sessionid2actionRDD) {
+            JavaPairRDD<String, SessionAggrInfo> sessionid2AggrInfoRDD,
+            JavaPairRDD<String, ActionRecord> sessionid2actionRDD) {
 
         /**
          * 第一步，计算每天每小时的session数量，
          */
 
-        //获取<yyyy-mm-dd_hh,session>格式的RDD
-        JavaPairRDD<String, String> time2sessionidRDD = sessionid2AggrInfoRDD.mapToPair(
-            new PairFunction<Tuple2<String, String>, String, String>(){
+        //获取每个session的yyyy-MM-dd_HH，统计每天每小时的session数量
+        //driver端拿到的只是每小时一个计数，数据量很小
+        Map<String, Long> countMap = sessionid2AggrInfoRDD.map(
+            new Function<Tuple2<String, SessionAggrInfo>, String>(){
 
                 private static final long serialVersionUID = 1L;
 
-                public Tuple2<String, String> call(
-                        Tuple2<String, String> tuple) throws Exception {
-                    String aggrInfo = tuple._2;
-                    String startTime = StringUtils.getFieldFromConcatString(
-                            aggrInfo, "\\|", Constants.FIELD_START_TIME);
-                    String dateHour = DateUtils.getDateHour(startTime);
-                    return new Tuple2<String, String>(dateHour, aggrInfo);
+                public String call(Tuple2<String, SessionAggrInfo> tuple) throws Exception {
+                    return DateUtils.getDateHour(tuple._2.getStartTime());
                 }
-            });
-
-        //得到每天每小时的session数量
-        Map<String, Object> countMap = time2sessionidRDD.countByKey();
+            }).countByValue();
 
         /**
-         * 第二步，使用按时间比例随机抽取算法，计算出每小时要抽取session的索引
+         * 第二步，按时间比例计算出每小时要抽取的session数量
          */
 
         //将<yyyy-mm-dd_hh,count>格式的map转换成<yyyy-mm-dd,<hh,count>>的格式，方便后面使用
         Map<String, Map<String, Long>> dateHourCountMap =
                 new HashMap<String, Map<String, Long>>();
-        for(Map.Entry<String, Object>countEntry : countMap.entrySet()) {
+        for(Map.Entry<String, Long> countEntry : countMap.entrySet()) {
             String dateHour = countEntry.getKey();
             String date = dateHour.split("_")[0];
             String hour = dateHour.split("_")[1];
 
-            long count = Long.valueOf(String.valueOf(countEntry.getValue()));
-
             Map<String, Long> hourCountMap = dateHourCountMap.get(date);
             if(hourCountMap == null) {
                 hourCountMap = new HashMap<String, Long>();
                 dateHourCountMap.put(date, hourCountMap);
             }
 
-            hourCountMap.put(hour, count);
+            hourCountMap.put(hour, countEntry.getValue());
         }
 
-        //开始实现按照时间比例随机抽取算法
+        if(dateHourCountMap.isEmpty()) {
+            return;
+        }
 
         //总共抽取100个session，先按照天数平分
         int extractNumberPerDay = 100 / dateHourCountMap.size();
 
-        //每一天每一个小时抽取session的索引，<date,<hour,(3,5,20,200)>>
-        Map<String, Map<String, List<Integer>>> dateHourExtractMap =
-                new HashMap<String, Map<String, List<Integer>>>();
-
-        /**
-         * 性能调优之广播大变量
-         *
-         * session 随机抽取功能使用到了随机抽取索引map这一比较大的变量，
-         * 之前是直接在算子里使用了这个map，每个task都会拷贝一份map副本，
-         * 比较消耗内存和网络传输性能，现在将其改为广播变量。
-         */
-        final Broadcast<Map<String, Map<String, List<Integer>>>> dateHourExtractMapBroadcast =
-                sc.broadcast(dateHourExtractMap);
-
-        Random random = new Random();
+        //每一天每一个小时要抽取的session数量，<yyyy-MM-dd_HH,数量>
+        Map<String, Integer> dateHourExtractNumberMap = new HashMap<String, Integer>();
 
         for(Map.Entry<String, Map<String, Long>> dateHourCountEntry : dateHourCountMap.entrySet()) {
             String date = dateHourCountEntry.getKey();
@@ -718,12 +1144,6 @@ public class UserVisitSessionAnalyzeSpark {
                 sessionCount += hourCount;
             }
 
-            Map<String, List<Integer>> hourExtractMap = dateHourExtractMap.get(date);
-            if (hourExtractMap == null) {
-                hourExtractMap = new HashMap<String, List<Integer>>();
-                dateHourExtractMap.put(date, hourExtractMap);
-            }
-
             //遍历每个小时
             for (Map.Entry<String, Long> hourCountEntry : hourCountMap.entrySet()) {
                 String hour = hourCountEntry.getKey();
@@ -731,155 +1151,163 @@ public class UserVisitSessionAnalyzeSpark {
 
                 //计算每个小时的session数量，占据当天总session数量的比例，直接乘以每天要抽取的数量
                 //就可以算出当前小时所需抽取的session数量
-                long hourExtractNumber = (int) (((double) count / (double) sessionCount)
+                int hourExtractNumber = (int) (((double) count / (double) sessionCount)
                         * extractNumberPerDay);
 
                 if (hourExtractNumber > count) {
                     hourExtractNumber = (int) count;
                 }
 
-                //先获取当前小时的存放随机数list
-                List<Integer> extractIndexList = hourExtractMap.get(hour);
-                if (extractIndexList == null) {
-                    extractIndexList = new ArrayList<Integer>();
-                    hourExtractMap.put(hour, extractIndexList);
-                }
-
-                //生成上面计算出来的数量的随机数
-                for (int i = 0; i < hourExtractNumber; i++) {
-                    int extractIndex = random.nextInt((int) count);
-
-                    //生成不重复的索引
-                    while (extractIndexList.contains(extractIndex)) {
-                        extractIndex = random.nextInt((int) count);
-                    }
-
-                    extractIndexList.add(extractIndex);
+                if (hourExtractNumber > 0) {
+                    dateHourExtractNumberMap.put(date + "_" + hour, hourExtractNumber);
                 }
             }
         }
 
         /**
-         * 第三步：遍历每天每小时的session，根据随机索引抽取
+         * 性能调优之广播大变量
+         *
+         * 每小时抽取数量的map在每个task中都要用到，将其改为广播变量，每个executor只保存一份
          */
+        final Broadcast<Map<String, Integer>> dateHourExtractNumberBroadcast =
+                sc.broadcast(dateHourExtractNumberMap);
 
-        //执行groupByKey算子，得到<dateHour,(session aggrInfo)>
-        JavaPairRDD<String, Iterable<String>> time2sessionsRDD = time2sessionidRDD.groupByKey();
-
-        //我们用flatMap算子遍历所有的<dateHour,(session aggrInfo)>格式的数据
-        //然后会遍历每天每小时的session
-        //如果发现某个session恰巧在我们指定的这天这小时的随机抽取索引上
-        //那么抽取该session，直接写入MySQL的random_extract_session表
-        //将抽取出来的session id返回回来，形成一个新的JavaRDD<String>
-        //然后最后一步，用抽取出来的sessionid去join它们的访问行为明细数据写入session表
-        JavaPairRDD<String, String> extractSessionidsRDD = time2sessionsRDD.flatMapToPair(
+        //随机种子在driver端生成，session的优先级只取决于种子和sessionid
+        final long seed = new Random().nextLong();
 
-                new PairFlatMapFunction<Tuple2<String, Iterable<String>>, String, String>() {
+        /**
+         * 第三步：分布式分层抽样
+         *
+         * 之前是groupByKey把每个小时的所有session都拉到一个task中，再按随机索引抽取，
+         * 高峰时段一个小时就有上百万session，这个task会成为拖慢整个stage的长尾
+         *
+         * 现在每个partition先在本地对每个小时做抽样，每个小时最多保留要抽取数量的session，
+         * shuffle的只有这些抽样结果，reduceByKey合并以后得到每个小时最终抽取的session
+         */
+        JavaPairRDD<String, SessionSampleBuffer> dateHour2SampleRDD = sessionid2AggrInfoRDD.mapPartitionsToPair(
+                new PairFlatMapFunction<Iterator<Tuple2<String, SessionAggrInfo>>, String, SessionSampleBuffer>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Iterable<Tuple2<String, String>> call(
-                            Tuple2<String, Iterable<String>> tuple)
-                            throws Exception {
-                        List<Tuple2<String, String>> extractSessionids =
-                                new ArrayList<Tuple2<String, String>>();
-
-                        String dateHour = tuple._1;
-                        String date = dateHour.split("_")[0];
-                        String hour = dateHour.split("_")[1];
-                        Iterator<String> iterator = tuple._2.iterator();
-
-                        Map<String, Map<String, List<Integer>>> dateHourExtractMap =
-                                dateHourExtractMapBroadcast.value();
-
-                        //拿到这一天这一小时的随机索引
-                        List<Integer> extractIndexList = dateHourExtractMap.get(date).get(hour);
-
-                        //先建domain和DAO
-                        //先在包com.wolf.sparkproject.domain中新建SessionRandomExtract.java
-                        //然后在包com.wolf.sparkproject.dao中新建ISessionRandomExtractDAO.java
-                        //接着在包com.wolf.sparkproject.impl中新建SessionRandomExtractDAOImpl.java
-                        //最后在DAOFactory.java中添加
-                        //public static ISessionRandomExtractDAO getSessionRandomExtractDAO() {
-                        //return new SessioRandomExtractDAOImpl();
-                        //}
-                        ISessionRandomExtractDAO sessionRandomExtractDAO =
-                                DAOFactory.getSessionRandomExtractDAO();
-
-                        int index = 0;
+                    public Iterable<Tuple2<String, SessionSampleBuffer>> call(
+                            Iterator<Tuple2<String, SessionAggrInfo>> iterator) throws Exception {
+                        Map<String, Integer> dateHourExtractNumberMap = dateHourExtractNumberBroadcast.value();
+                        Map<String, SessionSampleBuffer> sampleBufferMap =
+                                new HashMap<String, SessionSampleBuffer>();
+
                         while(iterator.hasNext()) {
-                            String sessionAggrInfo = iterator.next();
-
-                            if(extractIndexList.contains(index)) {
-                                String sessionid = StringUtils.getFieldFromConcatString(
-                                        sessionAggrInfo, "\\|", Constants.FIELD_SESSION_ID);
-
-                                //将数据写入MySQL
-                                SessionRandomExtract sessionRandomExtract = new SessionRandomExtract();
-
-                                //增加参数
-                                //private static void randomExtractSession(
-                                //final long taskid,
-                                //JavaPairRDD<String, String> sessionid2AggrInfoRDD)
-                                sessionRandomExtract.setTaskid(taskid);
-                                sessionRandomExtract.setSessionid(StringUtils.getFieldFromConcatString(
-                                        sessionAggrInfo, "\\|", Constants.FIELD_SESSION_ID));
-                                sessionRandomExtract.setStartTime(StringUtils.getFieldFromConcatString(
-                                        sessionAggrInfo, "\\|", Constants.FIELD_START_TIME));
-                                sessionRandomExtract.setSearchKeywords(StringUtils.getFieldFromConcatString(
-                                        sessionAggrInfo, "\\|", Constants.FIELD_SEARCH_KEYWORDS));
-                                sessionRandomExtract.setClickCategoryIds(StringUtils.getFieldFromConcatString(
-                                        sessionAggrInfo, "\\|", Constants.FIELD_CLICK_CATEGORY_IDS));
-
-                                sessionRandomExtractDAO.insert(sessionRandomExtract);
-
-                                //将sessionid加入list
-                                extractSessionids.add(new Tuple2<String, String>(sessionid, sessionid));
+                            SessionAggrInfo aggrInfo = iterator.next()._2;
+                            String dateHour = DateUtils.getDateHour(aggrInfo.getStartTime());
+
+                            SessionSampleBuffer sampleBuffer = sampleBufferMap.get(dateHour);
+                            if(sampleBuffer == null) {
+                                Integer extractNumber = dateHourExtractNumberMap.get(dateHour);
+                                if(extractNumber == null) {
+                                    continue;
+                                }
+                                sampleBuffer = new SessionSampleBuffer(extractNumber);
+                                sampleBufferMap.put(dateHour, sampleBuffer);
                             }
-                            index ++;
+                            sampleBuffer.offer(
+                                    SessionSampleBuffer.priority(seed, aggrInfo.getSessionid()), aggrInfo);
+                        }
+
+                        List<Tuple2<String, SessionSampleBuffer>> samples =
+                                new ArrayList<Tuple2<String, SessionSampleBuffer>>(sampleBufferMap.size());
+                        for(Map.Entry<String, SessionSampleBuffer> entry : sampleBufferMap.entrySet()) {
+                            samples.add(new Tuple2<String, SessionSampleBuffer>(entry.getKey(), entry.getValue()));
                         }
-                        return extractSessionids;
+                        return samples;
                     }
                 });
 
-        /**
-         * 第四步：获取抽取出来的session的明细数据
-         */
-        JavaPairRDD<String, Tuple2<String, Row>> extractSessionDetailRDD =
-                extractSessionidsRDD.join(sessionid2actionRDD);
-        extractSessionDetailRDD.foreach(new VoidFunction<Tuple2<String, Tuple2<String, Row>>>() {
+        JavaPairRDD<String, SessionSampleBuffer> dateHour2ExtractRDD = dateHour2SampleRDD.reduceByKey(
+                new Function2<SessionSampleBuffer, SessionSampleBuffer, SessionSampleBuffer>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    public SessionSampleBuffer call(SessionSampleBuffer v1, SessionSampleBuffer v2)
+                            throws Exception {
+                        return v1.merge(v2);
+                    }
+                });
+
+        //每小时抽取出来的session，<sessionid,aggrInfo>
+        JavaPairRDD<String, SessionAggrInfo> extractSessionRDD = dateHour2ExtractRDD.flatMapToPair(
+                new PairFlatMapFunction<Tuple2<String, SessionSampleBuffer>, String, SessionAggrInfo>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    public Iterable<Tuple2<String, SessionAggrInfo>> call(
+                            Tuple2<String, SessionSampleBuffer> tuple) throws Exception {
+                        List<Tuple2<String, SessionAggrInfo>> extractSessions =
+                                new ArrayList<Tuple2<String, SessionAggrInfo>>();
+                        for(SessionAggrInfo sessionAggrInfo : tuple._2.getSessions()) {
+                            extractSessions.add(new Tuple2<String, SessionAggrInfo>(
+                                    sessionAggrInfo.getSessionid(), sessionAggrInfo));
+                        }
+                        return extractSessions;
+                    }
+                });
+
+        //将抽取出来的session写入MySQL的random_extract_session表
+        //抽取结果来自上面reduceByKey的shuffle输出，下面再次使用时不会重新抽样
+        final int writeBatchSize = getWriteBatchSize();
+        extractSessionRDD.foreachPartition(new VoidFunction<Iterator<Tuple2<String, SessionAggrInfo>>>() {
 
             private static final long serialVersionUID = 1L;
 
-            public void call(Tuple2<String, Tuple2<String, Row>> tuple) throws Exception {
-                //在包com.wolf.sparkproject.domain中新建SessionDetail.java
-                //在包com.wolf.sparkproject.dao中新建ISessionDetailDAO.java接口
-                //在包com.wolf.sparkproject.impl中新建SessionDetailDAOImpl.java
-                //在DAOFactory.java中添加
-                //public static ISessionDetailDAO getSessionDetailDAO() {
-                //return new SessionDetailDAOImpl();
-                //}
-                Row row = tuple._2._2;
-
-                //封装sessionDetail的domain
-                SessionDetail sessionDetail = new SessionDetail();
-                sessionDetail.setTaskid(taskid);
-                sessionDetail.setUserid(row.getLong(1));
-                sessionDetail.setSessionid(row.getString(2));
-                sessionDetail.setPageid(row.getLong(3));
-                sessionDetail.setActionTime(row.getString(4));
-                sessionDetail.setSearchKeyword(row.getString(5));
-                sessionDetail.setClickCategoryId(row.getLong(6));
-                sessionDetail.setClickProductId(row.getLong(7));
-                sessionDetail.setOrderCategoryIds(row.getString(8));
-                sessionDetail.setOrderProductIds(row.getString(9));
-                sessionDetail.setPayCategoryIds(row.getString(10));
-                sessionDetail.setPayProductIds(row.getString(11));
+            public void call(Iterator<Tuple2<String, SessionAggrInfo>> iterator) throws Exception {
+                ISessionRandomExtractDAO sessionRandomExtractDAO =
+                        DAOFactory.getSessionRandomExtractDAO();
+                List<SessionRandomExtract> buffer = new ArrayList<SessionRandomExtract>();
 
-                ISessionDetailDAO sessionDetailDAO = DAOFactory.getSessionDetailDAO();
-                sessionDetailDAO.insert(sessionDetail);
+                boolean success = false;
+                try {
+                    while(iterator.hasNext()) {
+                        SessionAggrInfo sessionAggrInfo = iterator.next()._2;
+
+                        //只有在这里才将聚合信息格式化成字符串
+                        SessionRandomExtract sessionRandomExtract = new SessionRandomExtract();
+                        sessionRandomExtract.setTaskid(taskid);
+                        sessionRandomExtract.setSessionid(sessionAggrInfo.getSessionid());
+                        sessionRandomExtract.setStartTime(DateUtils.formatTime(
+                                sessionAggrInfo.getStartTime()));
+                        sessionRandomExtract.setSearchKeywords(StringUtils.join(
+                                sessionAggrInfo.getSearchKeywords(), ","));
+                        sessionRandomExtract.setClickCategoryIds(StringUtils.join(
+                                sessionAggrInfo.getClickCategoryIds(), ","));
+                        buffer.add(sessionRandomExtract);
+
+                        if(buffer.size() >= writeBatchSize) {
+                            sessionRandomExtractDAO.insertBatch(buffer);
+                            buffer.clear();
+                        }
+                    }
+                    if(!buffer.isEmpty()) {
+                        sessionRandomExtractDAO.insertBatch(buffer);
+                    }
+                    //异步写入时，等待数据全部写入MySQL以后task才结束
+                    DAOFactory.awaitWrites();
+                    success = true;
+                } finally {
+                    //task失败时丢弃当前线程还没写出的数据，否则会被这个线程执行的下一个task写出去
+                    if(!success) {
+                        DAOFactory.discardWrites();
+                    }
+                }
             }
         });
+
+        /**
+         * 第四步：获取抽取出来的session的明细数据
+         */
+        JavaPairRDD<String, Tuple2<SessionAggrInfo, ActionRecord>> extractSessionDetailRDD =
+                extractSessionRDD.join(sessionid2actionRDD);
+        writeSessionDetails(taskid, extractSessionDetailRDD.values(), writeBatchSize);
+
+        //抽取结果已经全部写完，释放本任务的广播变量
+        dateHourExtractNumberBroadcast.destroy();
     }
 
     /**
@@ -887,75 +1315,27 @@ public class UserVisitSessionAnalyzeSpark {
      * @param value
      * @param taskid
      */
-    private static void calculateAndPersistAggrStat(String value, long taskid) {
-        //从Accumulator统计串中获取值
-        long session_count = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.SESSION_COUNT));
-
-        long visit_length_1s_3s = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_1s_3s));
-        long visit_length_4s_6s = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_4s_6s));
-        long visit_length_7s_9s = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_7s_9s));
-        long visit_length_10s_30s = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_10s_30s));
-        long visit_length_30s_60s = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_30s_60s));
-        long visit_length_1m_3m = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_1m_3m));
-        long visit_length_3m_10m = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_3m_10m));
-        long visit_length_10m_30m = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_10m_30m));
-        long visit_length_30m = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.TIME_PERIOD_30m));
-
-        long step_length_1_3 = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.STEP_PERIOD_1_3));
-        long step_length_4_6 = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.STEP_PERIOD_4_6));
-        long step_length_7_9 = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.STEP_PERIOD_7_9));
-        long step_length_10_30 = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.STEP_PERIOD_10_30));
-        long step_length_30_60 = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.STEP_PERIOD_30_60));
-        long step_length_60 = Long.valueOf(StringUtils.getFieldFromConcatString(
-                value, "\\|", Constants.STEP_PERIOD_60));
+    static void calculateAndPersistAggrStat(long[] value, long taskid) {
+        //从Accumulator统计数组中获取值
+        long session_count = value[SesssionAggrStatAccumulator.SESSION_COUNT];
 
         //计算各个访问时长和访问步长的范围
-        double visit_length_1s_3s_ratio = NumberUtils.formatDouble(
-                (double)visit_length_1s_3s / (double)session_count, 2);
-        double visit_length_4s_6s_ratio = NumberUtils.formatDouble(
-                (double)visit_length_4s_6s / (double)session_count, 2);
-        double visit_length_7s_9s_ratio = NumberUtils.formatDouble(
-                (double)visit_length_7s_9s / (double)session_count, 2);
-        double visit_length_10s_30s_ratio = NumberUtils.formatDouble(
-                (double)visit_length_10s_30s / (double)session_count, 2);
-        double visit_length_30s_60s_ratio = NumberUtils.formatDouble(
-                (double)visit_length_30s_60s / (double)session_count, 2);
-        double visit_length_1m_3m_ratio = NumberUtils.formatDouble(
-                (double)visit_length_1m_3m / (double)session_count, 2);
-        double visit_length_3m_10m_ratio = NumberUtils.formatDouble(
-                (double)visit_length_3m_10m / (double)session_count, 2);
-        double visit_length_10m_30m_ratio = NumberUtils.formatDouble(
-                (double)visit_length_10m_30m / (double)session_count, 2);
-        double visit_length_30m_ratio = NumberUtils.formatDouble(
-                (double)visit_length_30m / (double)session_count, 2);
-
-        double step_length_1_3_ratio = NumberUtils.formatDouble(
-                (double)step_length_1_3 / (double)session_count, 2);
-        double step_length_4_6_ratio = NumberUtils.formatDouble(
-                (double)step_length_4_6 / (double)session_count, 2);
-        double step_length_7_9_ratio = NumberUtils.formatDouble(
-                (double)step_length_7_9 / (double)session_count, 2);
-        double step_length_10_30_ratio = NumberUtils.formatDouble(
-                (double)step_length_10_30 / (double)session_count, 2);
-        double step_length_30_60_ratio = NumberUtils.formatDouble(
-                (double)step_length_30_60 / (double)session_count, 2);
-        double step_length_60_ratio = NumberUtils.formatDouble(
-                (double)step_length_60 / (double)session_count, 2);
+        double visit_length_1s_3s_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_1s_3s], session_count);
+        double visit_length_4s_6s_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_4s_6s], session_count);
+        double visit_length_7s_9s_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_7s_9s], session_count);
+        double visit_length_10s_30s_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_10s_30s], session_count);
+        double visit_length_30s_60s_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_30s_60s], session_count);
+        double visit_length_1m_3m_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_1m_3m], session_count);
+        double visit_length_3m_10m_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_3m_10m], session_count);
+        double visit_length_10m_30m_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_10m_30m], session_count);
+        double visit_length_30m_ratio = ratio(value[SesssionAggrStatAccumulator.TIME_PERIOD_30m], session_count);
+
+        double step_length_1_3_ratio = ratio(value[SesssionAggrStatAccumulator.STEP_PERIOD_1_3], session_count);
+        double step_length_4_6_ratio = ratio(value[SesssionAggrStatAccumulator.STEP_PERIOD_4_6], session_count);
+        double step_length_7_9_ratio = ratio(value[SesssionAggrStatAccumulator.STEP_PERIOD_7_9], session_count);
+        double step_length_10_30_ratio = ratio(value[SesssionAggrStatAccumulator.STEP_PERIOD_10_30], session_count);
+        double step_length_30_60_ratio = ratio(value[SesssionAggrStatAccumulator.STEP_PERIOD_30_60], session_count);
+        double step_length_60_ratio = ratio(value[SesssionAggrStatAccumulator.STEP_PERIOD_60], session_count);
 
         //将访问结果封装成Domain对象
         SessionAggrStat sessionAggrStat = new SessionAggrStat();
@@ -983,294 +1363,231 @@ public class UserVisitSessionAnalyzeSpark {
         sessionAggrStatDAO.insert(sessionAggrStat);
     }
 
+    /**
+     * 计算占比，保留两位小数
+     * 没有符合条件的session时，占比为0
+     */
+    private static double ratio(long count, long sessionCount) {
+        if(sessionCount == 0) {
+            return 0.0;
+        }
+        return NumberUtils.formatDouble((double) count / (double) sessionCount, 2);
+    }
+
     /**
      * 获取Top10热门品类
+     * 取的品类个数可以通过任务参数topCategoryCount指定，默认为10
      * @param taskid
+     * @param taskParam
      * @param sessionid2detailRDD
      */
-    private static List<Tuple2<CategorySortKey, String>> getTop10Category(
+    private static List<Tuple2<Long, CategorySortKey>> getTop10Category(
             long taskid,
-            JavaPairRDD<String, Row> sessionid2detailRDD) {
+            JSONObject taskParam,
+            JavaPairRDD<String, ActionRecord> sessionid2detailRDD) {
 
         /**
-         * 第一步：获取符合条件的session访问过的所有品类
+         * 第一步：计算各品类的点击、下单和支付的次数
+         *
+         * 之前是先获取session访问过的所有品类id并去重，再分别过滤点击、下单和支付行为，
+         * 用三个reduceByKey计算次数，最后用三次leftOuterJoin拼接成字符串，一共四次shuffle
+         *
+         * 现在对每条访问明细只遍历一次，每个品类输出一个(点击，下单，支付)次数三元组，
+         * 再用一次reduceByKey累加，map端会先进行combine
+         * 只被点击过、没有下单和支付的品类，下单和支付次数自然就是0，不需要再join
          */
-
-        //获取session访问过的所有品类id
-        //访问过指的是点击、下单、支付的品类
-        JavaPairRDD<Long, Long> categoryidRDD = sessionid2detailRDD.flatMapToPair(
-                new PairFlatMapFunction<Tuple2<String, Row>, Long, Long>() {
+        JavaPairRDD<Long, CategorySortKey> categoryid2countRDD = sessionid2detailRDD.flatMapToPair(
+                new PairFlatMapFunction<Tuple2<String, ActionRecord>, Long, CategorySortKey>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Iterable<Tuple2<Long, Long>> call(
-                            Tuple2<String, Row> tuple) throws Exception {
+                    public Iterable<Tuple2<Long, CategorySortKey>> call(
+                            Tuple2<String, ActionRecord> tuple) throws Exception {
 
-                        Row row = tuple._2;
+                        ActionRecord action = tuple._2;
 
-                        List<Tuple2<Long, Long>> list = new ArrayList<Tuple2<Long, Long>>();
-                        Long clickCategoryId = row.getLong(6);
-                        if (clickCategoryId != null) {
-                            list.add(new Tuple2<Long, Long>(clickCategoryId, clickCategoryId));
+                        List<Tuple2<Long, CategorySortKey>> list = new ArrayList<Tuple2<Long, CategorySortKey>>();
+                        if (action.hasClickCategoryId()) {
+                            list.add(new Tuple2<Long, CategorySortKey>(action.getClickCategoryId(),
+                                    new CategorySortKey(1L, 0L, 0L)));
                         }
 
-                        String orderCategoryIds = row.getString(8);
+                        String orderCategoryIds = action.getOrderCategoryIds();
                         if (orderCategoryIds != null) {
-                            String[] orderCategoryIdsSplited = orderCategoryIds.split(",");
-                            for (String orderCategoryId : orderCategoryIdsSplited) {
-                                list.add(new Tuple2<Long, Long>(Long.valueOf(orderCategoryId),
-                                        Long.valueOf(orderCategoryId)));
+                            for (String orderCategoryId : orderCategoryIds.split(",")) {
+                                list.add(new Tuple2<Long, CategorySortKey>(Long.valueOf(orderCategoryId),
+                                        new CategorySortKey(0L, 1L, 0L)));
                             }
                         }
 
-                        String payCategoryIds = row.getString(10);
+                        String payCategoryIds = action.getPayCategoryIds();
                         if (payCategoryIds != null) {
-                            String[] payCategoryIdsSplited = payCategoryIds.split(",");
-                            for (String payCategoryId : payCategoryIdsSplited) {
-                                list.add(new Tuple2<Long, Long>(Long.valueOf(payCategoryId),
-                                        Long.valueOf(payCategoryId)));
+                            for (String payCategoryId : payCategoryIds.split(",")) {
+                                list.add(new Tuple2<Long, CategorySortKey>(Long.valueOf(payCategoryId),
+                                        new CategorySortKey(0L, 0L, 1L)));
                             }
                         }
 
                         return list;
                     }
-                });
-
-        //必须去重
-        //如果不去重的话，会出现重复的categoryid，排序会对重复的categoryid以及countInfo进行排序
-        //最后很可能会拿到重复的数据
-        categoryidRDD = categoryidRDD.distinct();
-
-        /**
-         * 第二步：计算各品类的点击、下单和支付的次数
-         */
-
-        //访问明细中，其中三种访问行为是点击、下单和支付
-        //分别来计算各品类点击、下单和支付的次数，可以先对访问明细数据进行过滤
-        //分别过滤点击、下单和支付行为，然后通过map、reduceByKey等算子进行计算
-
-        //计算各个品类点击次数
-        JavaPairRDD<Long, Long> clickCategoryId2CountRDD =
-                getClickCategoryId2CountRDD(sessionid2detailRDD);
-
-        //计算各个品类的下单次数
-        JavaPairRDD<Long, Long> orderCategoryId2CountRDD =
-                getOrderCategoryId2CountRDD(sessionid2detailRDD);
-
-        //计算各个品类的支付次数
-        JavaPairRDD<Long, Long> payCategoryId2CountRDD =
-                getPayCategoryId2CountRDD(sessionid2detailRDD);
-
-        /**
-         * 第三步：join各品类与它的点击、下单和支付的次数
-         *
-         * caetoryidRDD中包含了所有符合条件的session访问过的品类id
-         *
-         * 上面分别计算出来的三份各品类的点击、下单和支付的次数，可能不是包含所有品类的，
-         * 比如，有的品类就只是被点击过，但是没有人下单和支付
-         * 所以，这里就不能使用join操作，而是要使用leftOutJoin操作，
-         * 就是说，如果categoryidRDD不能join到自己的某个数据，比如点击、下单或支付数据，
-         * 那么该categoryidRDD还是要保留下来的
-         * 只不过，没有join到的那个数据就是0了
-         */
-        JavaPairRDD<Long, String> categoryid2countRDD = joinCategoryAndData(
-                categoryidRDD, clickCategoryId2CountRDD, orderCategoryId2CountRDD,
-                payCategoryId2CountRDD);
-
-        /**
-         * 第四步：自定义二次排序key
-         * 在com.wolf.sparkproject.spark.session包下创建CategorySortKey类
-         */
-
-        /**
-         * 第五步：将数据映射成<SortKey,info>格式的RDD，然后进行二次排序（降序）
-         */
-        JavaPairRDD<CategorySortKey, String> sortKey2countRDD = categoryid2countRDD.mapToPair(
-                new PairFunction<Tuple2<Long, String>, CategorySortKey, String>() {
+                }).reduceByKey(new Function2<CategorySortKey, CategorySortKey, CategorySortKey>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Tuple2<CategorySortKey, String> call(
-                            Tuple2<Long, String> tuple) throws Exception {
-                        String countInfo = tuple._2;
-                        long clickCount = Long.valueOf(StringUtils.getFieldFromConcatString(
-                                countInfo, "\\|", Constants.FIELD_CLICK_COUNT));
-                        long orderCount = Long.valueOf(StringUtils.getFieldFromConcatString(
-                                countInfo, "\\|", Constants.FIELD_ORDER_COUNT));
-                        long payCount = Long.valueOf(StringUtils.getFieldFromConcatString(
-                                countInfo, "\\|", Constants.FIELD_PAY_COUNT));
-
-                        CategorySortKey sortKey = new CategorySortKey(clickCount,
-                                orderCount, payCount);
-                        return new Tuple2<CategorySortKey, String>(sortKey, countInfo);
+                    public CategorySortKey call(CategorySortKey v1, CategorySortKey v2) throws Exception {
+                        v1.setClickCount(v1.getClickCount() + v2.getClickCount());
+                        v1.setOrderCount(v1.getOrderCount() + v2.getOrderCount());
+                        v1.setPayCount(v1.getPayCount() + v2.getPayCount());
+                        return v1;
                     }
                 });
 
-        JavaPairRDD<CategorySortKey, String> sortedCategoryCountRDD =
-                sortKey2countRDD.sortByKey(false);
+        /**
+         * 第二步：自定义二次排序key
+         * 在com.wolf.sparkproject.spark.session包下创建CategorySortKey类
+         */
 
         /**
-         * 第六步：用take(10)取出top10热门品类，并写入MySQL
+         * 第三步：用takeOrdered取出topN热门品类，并写入MySQL
+         *
+         * 之前是sortByKey(false)全局排序以后再take(10)，全局排序需要先额外执行一个job对key进行采样，
+         * 再按范围分区shuffle所有品类，只为了拿到10条数据
+         * takeOrdered在每个partition中只维护一个大小为N的有界堆，driver端再合并各个partition的堆，
+         * 没有shuffle，取top100、top1000的开销也不会随品类数量增长
+         *
+         * 之前还会把品类id和三个次数拼接成字符串，写入MySQL时再用正则解析出来
+         * 现在直接对<categoryid,sortKey>取topN，品类id和次数都保持原来的类型
          */
+        int topCategoryCount = getTopCategoryCount(taskParam);
         ITop10CategoryDAO top10CategoryDAO = DAOFactory.getTop10CategoryDAO();
 
-        List<Tuple2<CategorySortKey, String>> top10CategoryList =
-                sortedCategoryCountRDD.take(10);
-        for(Tuple2<CategorySortKey, String> tuple : top10CategoryList) {
-            String countInfo = tuple._2;
-            long categoryid = Long.valueOf(StringUtils.getFieldFromConcatString(
-                    countInfo, "\\|", Constants.FIELD_CATEGORY_ID));
-            long clickCount = Long.valueOf(StringUtils.getFieldFromConcatString(
-                    countInfo, "\\|", Constants.FIELD_CLICK_COUNT));
-            long orderCount = Long.valueOf(StringUtils.getFieldFromConcatString(
-                    countInfo, "\\|", Constants.FIELD_ORDER_COUNT));
-            long payCount = Long.valueOf(StringUtils.getFieldFromConcatString(
-                    countInfo, "\\|", Constants.FIELD_PAY_COUNT));
+        List<Tuple2<Long, CategorySortKey>> top10CategoryList =
+                categoryid2countRDD.takeOrdered(topCategoryCount, new CategoryCountComparator());
+        List<Top10Category> top10Categories = new ArrayList<Top10Category>();
+        for(Tuple2<Long, CategorySortKey> tuple : top10CategoryList) {
+            CategorySortKey sortKey = tuple._2;
 
             //封装domain对象
             Top10Category category = new Top10Category();
             category.setTaskid(taskid);
-            category.setCategoryid(categoryid);
-            category.setClickCount(clickCount);
-            category.setOrderCount(orderCount);
-            category.setPayCount(payCount);
+            category.setCategoryid(tuple._1);
+            category.setClickCount(sortKey.getClickCount());
+            category.setOrderCount(sortKey.getOrderCount());
+            category.setPayCount(sortKey.getPayCount());
 
-            top10CategoryDAO.insert(category);
+            top10Categories.add(category);
+        }
+        //driver端的线程也会被用来执行下一个任务，写入失败时同样要丢弃没写出的数据
+        boolean success = false;
+        try {
+            top10CategoryDAO.insertBatch(top10Categories);
+            DAOFactory.awaitWrites();
+            success = true;
+        } finally {
+            if(!success) {
+                DAOFactory.discardWrites();
+            }
         }
+
         return top10CategoryList;
     }
 
     /**
-     * 获取各品类点击次数RDD
+     * 获取要取的热门品类个数
+     * @param taskParam 任务参数
+     * @return 任务参数中指定的个数，没有指定时为10
      */
-    private static JavaPairRDD<Long, Long> getClickCategoryId2CountRDD(
-            JavaPairRDD<String, Row> sessionid2detailRDD) {
-        JavaPairRDD<String, Row> clickActionRDD = sessionid2detailRDD.filter(
-                new Function<Tuple2<String, Row>, Boolean>() {
-
-                    private static final long serialVersionUID = 1L;
-
-                    public Boolean call(Tuple2<String, Row> tuple) throws Exception {
-                        Row row = tuple._2;
-
-                        return row.get(6) != null ? true : false;
-                    }
-                });
-
-        JavaPairRDD<Long, Long> clickCategoryIdRDD = clickActionRDD.mapToPair(
-                new PairFunction<Tuple2<String, Row>, Long, Long>() {
-
-                    private static final long serialVersionUID = 1L;
-
-                    public Tuple2<Long, Long> call(Tuple2<String, Row> tuple)
-                            throws Exception {
-                        long clickCategoryId = tuple._2.getLong(6);
-
-                        return new Tuple2<Long, Long>(clickCategoryId, 1L);
-                    }
-                });
-
-        JavaPairRDD<Long, Long> clickCategoryId2CountRDD = clickCategoryIdRDD.reduceByKey(
-
-                new Function2<Long, Long, Long>() {
-
-                    private static final long serialVersionUID = 1L;
-
-                    public Long call(Long v1, Long v2) throws Exception {
-                        return v1 + v2;
-                    }
-                });
-        return clickCategoryId2CountRDD;
+    private static int getTopCategoryCount(JSONObject taskParam) {
+        return getPositiveIntParam(taskParam, Constants.PARAM_TOP_CATEGORY_COUNT, DEFAULT_TOP_CATEGORY_COUNT);
     }
 
     /**
-     * 计算各个品类的下单次数
+     * 获取每个品类要取的活跃session个数
+     * @param taskParam 任务参数
+     * @return 任务参数中指定的个数，没有指定时为10
      */
-    private static JavaPairRDD<Long, Long> getOrderCategoryId2CountRDD(
-            JavaPairRDD<String, Row>sessionid2detailRDD) {
-        JavaPairRDD<String, Row> orderActionRDD = sessionid2detailRDD.filter(
-                new Function<Tuple2<String, Row>, Boolean>() {
-
-                    private static final long serialVersionUID = 1L;
-
-                    public Boolean call(Tuple2<String, Row> tuple) throws Exception {
-                        Row row = tuple._2;
-                        return row.getString(8) != null ? true : false;
-                    }
-                });
-
-        JavaPairRDD<Long, Long> orderCategoryIdRDD = orderActionRDD.flatMapToPair(
-                new PairFlatMapFunction<Tuple2<String, Row>, Long, Long>(){
-
-                    private static final long serialVersionUID = 1L;
-
-                    public Iterable<Tuple2<Long, Long>> call(Tuple2<String, Row> tuple)
-                            throws Exception {
-
-                        Row row = tuple._2;
-                        String orderCategoryIds = row.getString(8);
-                        String[] orderCategoryIdsSplited = orderCategoryIds.split(",");
-
-                        List<Tuple2<Long, Long>> list = new ArrayList<Tuple2<Long, Long>>();
-                        for(String orderCategoryId : orderCategoryIdsSplited) {
-                            list.add(new Tuple2<Long, Long>(Long.valueOf(orderCategoryId), 1L));
-                        }
-
-                        return list;
-                    }
-                });
-
-        JavaPairRDD<Long, Long> orderCategoryId2CountRDD = orderCategoryIdRDD.reduceByKey(
-                new Function2<Long, Long, Long>() {
-
-                    private static final long serialVersionUID = 1L;
+    private static int getTopSessionCount(JSONObject taskParam) {
+        return getPositiveIntParam(taskParam, Constants.PARAM_TOP_SESSION_COUNT, DEFAULT_TOP_SESSION_COUNT);
+    }
 
-                    public Long call(Long v1, Long v2) throws Exception {
-                        return v1 + v2;
-                    }
+    /**
+     * 获取正整数类型的任务参数
+     * 参数不是数字，或者不是正数时直接抛出异常，任务会被标记为失败
+     * @param taskParam 任务参数
+     * @param field 参数名
+     * @param defaultValue 没有指定参数时的默认值
+     * @return 参数值
+     */
+    static int getPositiveIntParam(JSONObject taskParam, String field, int defaultValue) {
+        String value = ParamUtils.getParam(taskParam, field);
+        if(value == null) {
+            return defaultValue;
+        }
 
-                });
-        return orderCategoryId2CountRDD;
+        int result;
+        try {
+            result = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("任务参数" + field + "不是整数：" + value, e);
+        }
+        if(result <= 0) {
+            throw new IllegalArgumentException("任务参数" + field + "必须大于0：" + value);
+        }
+        return result;
     }
 
     /**
-     * 计算各个品类的支付次数
+     * 获取top10活跃session
+     * 每个品类取的session个数可以通过任务参数topSessionCount指定，默认为10
+     * @param sc
+     * @param taskid
+     * @param taskParam
+     * @param top10CategoryList
+     * @param sessionid2detailRDD
      */
-    private static JavaPairRDD<Long, Long> getPayCategoryId2CountRDD(
-            JavaPairRDD<String, Row> sessionid2detailRDD) {
-        JavaPairRDD<String, Row> payActionRDD = sessionid2detailRDD.filter(
-                new Function<Tuple2<String, Row>, Boolean>() {
+    private static void getTop10Session(
+            JavaSparkContext sc,
+            final long taskid,
+            JSONObject taskParam,
+            List<Tuple2<Long, CategorySortKey>> top10CategoryList,
+            JavaPairRDD<String, ActionRecord> sessionid2detailRDD) {
 
-                    private static final long serialVersionUID = 1L;
+        /**
+         * 第一步：将top10热门品类的id广播出去
+         *
+         * 之前是将品类id生成一份RDD，再和所有session的点击次数join，
+         * 热门品类只有几个，直接广播品类id集合，在map端就能过滤掉其他品类的点击行为
+         */
+        Set<Long> top10CategoryIds = new HashSet<Long>();
+        for (Tuple2<Long, CategorySortKey> category : top10CategoryList) {
+            top10CategoryIds.add(category._1);
+        }
 
-                    public Boolean call(Tuple2<String, Row> tuple) throws Exception {
-                        Row row = tuple._2;
-                        return row.getString(10) != null ? true : false;
-                    }
-                });
+        final Broadcast<Set<Long>> top10CategoryIdsBroadcast = sc.broadcast(top10CategoryIds);
 
-        JavaPairRDD<Long, Long> payCategoryIdRDD = payActionRDD.flatMapToPair(
-                new PairFlatMapFunction<Tuple2<String, Row>, Long, Long>(){
+        /**
+         * 第二步：计算top10品类被各session点击的次数
+         *
+         * 之前是对全部访问明细groupByKey，把每个session的所有行为都shuffle到一起再计数
+         * 现在每条点击行为只输出<<categoryid,sessionid>,1>，用reduceByKey在map端先combine，
+         * shuffle的只是各个partition中每个品类每个session的点击次数
+         */
+        JavaPairRDD<Tuple2<Long, String>, Long> categorySession2countRDD = sessionid2detailRDD.flatMapToPair(
+                new PairFlatMapFunction<Tuple2<String, ActionRecord>, Tuple2<Long, String>, Long>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Iterable<Tuple2<Long, Long>> call(Tuple2<String, Row> tuple)
-                            throws Exception {
-
-                        Row row = tuple._2;
-                        String payCategoryIds = row.getString(10);
-                        String[] payCategoryIdsSplited = payCategoryIds.split(",");
-
-                        List<Tuple2<Long, Long>> list = new ArrayList<Tuple2<Long, Long>>();
-                        for(String payCategoryId : payCategoryIdsSplited) {
-                            list.add(new Tuple2<Long, Long>(Long.valueOf(payCategoryId), 1L));
+                    public Iterable<Tuple2<Tuple2<Long, String>, Long>> call(
+                            Tuple2<String, ActionRecord> tuple) throws Exception {
+                        ActionRecord action = tuple._2;
+                        if(!action.hasClickCategoryId()
+                                || !top10CategoryIdsBroadcast.value().contains(action.getClickCategoryId())) {
+                            return Collections.emptyList();
                         }
-                        return list;
+                        return Collections.singletonList(new Tuple2<Tuple2<Long, String>, Long>(
+                                new Tuple2<Long, String>(action.getClickCategoryId(), tuple._1), 1L));
                     }
-                });
-
-        JavaPairRDD<Long, Long> payCategoryId2CountRDD = payCategoryIdRDD.reduceByKey(
-                new Function2<Long, Long, Long>(){
+                }).reduceByKey(new Function2<Long, Long, Long>() {
 
                     private static final long serialVersionUID = 1L;
 
@@ -1278,295 +1595,173 @@ public class UserVisitSessionAnalyzeSpark {
                         return v1 + v2;
                     }
                 });
-        return payCategoryId2CountRDD;
-    }
 
-    private static JavaPairRDD<Long, String> joinCategoryAndData(
-            JavaPairRDD<Long, Long> categoryidRDD,
-            JavaPairRDD<Long, Long> clickCategoryId2CountRDD,
-            JavaPairRDD<Long, Long> orderCategoryId2CountRDD,
-            JavaPairRDD<Long, Long> payCategoryId2CountRDD) {
+        /**
+         * 第三步：分组取topN算法实现，获取每个品类的top10活跃session
+         *
+         * 之前是按品类groupByKey以后，用String[]做插入排序，每次比较都要重新split字符串
+         * 现在用aggregateByKey，每个品类维护一个大小为N的小顶堆，map端就只保留每个品类的topN
+         */
+        final int topSessionCount = getTopSessionCount(taskParam);
 
-        //如果使用leftOuterJoin就有可能出现右边那个RDD中join过来时没有值
-        //所以Tuple2中的第二个值用Optional<Long>类型就代表可能有值也可能没有值
-        JavaPairRDD<Long, Tuple2<Long, Optional<Long>>> tmpJoinRDD =
-                categoryidRDD.leftOuterJoin(clickCategoryId2CountRDD);
+        JavaPairRDD<Long, TopSessionBuffer> categoryid2topSessionRDD = categorySession2countRDD.mapToPair(
+                new PairFunction<Tuple2<Tuple2<Long, String>, Long>, Long, Tuple2<String, Long>>() {
 
-        JavaPairRDD<Long, String> tmpMapRDD = tmpJoinRDD.mapToPair(
+                    private static final long serialVersionUID = 1L;
 
-                new PairFunction<Tuple2<Long,Tuple2<Long,Optional<Long>>>, Long, String>() {
+                    public Tuple2<Long, Tuple2<String, Long>> call(
+                            Tuple2<Tuple2<Long, String>, Long> tuple) throws Exception {
+                        return new Tuple2<Long, Tuple2<String, Long>>(tuple._1._1,
+                                new Tuple2<String, Long>(tuple._1._2, tuple._2));
+                    }
+                }).aggregateByKey(
+                new TopSessionBuffer(topSessionCount),
+                new Function2<TopSessionBuffer, Tuple2<String, Long>, TopSessionBuffer>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Tuple2<Long, String> call(
-                            Tuple2<Long, Tuple2<Long, Optional<Long>>> tuple)
+                    public TopSessionBuffer call(TopSessionBuffer buffer, Tuple2<String, Long> sessionCount)
                             throws Exception {
-                        long categoryid = tuple._1;
-                        Optional<Long> optional = tuple._2._2;
-                        long clickCount = 0L;
-
-                        if(optional.isPresent()) {
-                            clickCount = optional.get();
-                        }
-
-                        String value = Constants.FIELD_CATEGORY_ID + "=" + categoryid + "|" +
-                                Constants.FIELD_CLICK_COUNT + "=" + clickCount;
-
-                        return new Tuple2<Long, String>(categoryid, value);
+                        return buffer.offer(sessionCount._1, sessionCount._2);
                     }
-
-                });
-
-        tmpMapRDD = tmpMapRDD.leftOuterJoin(orderCategoryId2CountRDD).mapToPair(
-
-                new PairFunction<Tuple2<Long,Tuple2<String,Optional<Long>>>, Long, String>() {
+                },
+                new Function2<TopSessionBuffer, TopSessionBuffer, TopSessionBuffer>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Tuple2<Long, String> call(
-                            Tuple2<Long, Tuple2<String, Optional<Long>>> tuple)
+                    public TopSessionBuffer call(TopSessionBuffer buffer1, TopSessionBuffer buffer2)
                             throws Exception {
-                        long categoryid = tuple._1;
-                        String value = tuple._2._1;
-
-                        Optional<Long> optional = tuple._2._2;
-                        long orderCount = 0L;
-
-                        if(optional.isPresent()) {
-                            orderCount = optional.get();
-                        }
-
-                        value = value + "|" + Constants.FIELD_ORDER_COUNT + "=" + orderCount;
-
-                        return new Tuple2<Long, String>(categoryid, value);
+                        return buffer1.merge(buffer2);
                     }
-
                 });
 
-        tmpMapRDD = tmpMapRDD.leftOuterJoin(payCategoryId2CountRDD).mapToPair(
-
-                new PairFunction<Tuple2<Long,Tuple2<String,Optional<Long>>>, Long, String>() {
+        //每个品类的topN session，<sessionid,top10Session>
+        JavaPairRDD<String, Top10Session> top10SessionRDD = categoryid2topSessionRDD.flatMapToPair(
+                new PairFlatMapFunction<Tuple2<Long, TopSessionBuffer>, String, Top10Session>() {
 
                     private static final long serialVersionUID = 1L;
 
-
-                    public Tuple2<Long, String> call(
-                            Tuple2<Long, Tuple2<String, Optional<Long>>> tuple)
-                            throws Exception {
+                    public Iterable<Tuple2<String, Top10Session>> call(
+                            Tuple2<Long, TopSessionBuffer> tuple) throws Exception {
                         long categoryid = tuple._1;
-                        String value = tuple._2._1;
-
-                        Optional<Long> optional = tuple._2._2;
-                        long payCount = 0L;
 
-                        if(optional.isPresent()) {
-                            payCount = optional.get();
+                        List<Tuple2<String, Top10Session>> list = new ArrayList<Tuple2<String, Top10Session>>();
+                        for(Tuple2<String, Long> sessionCount : tuple._2.getSessionCounts()) {
+                            Top10Session top10Session = new Top10Session();
+                            top10Session.setTaskid(taskid);
+                            top10Session.setCategoryid(categoryid);
+                            top10Session.setSessionid(sessionCount._1);
+                            top10Session.setClickCount(sessionCount._2);
+                            list.add(new Tuple2<String, Top10Session>(sessionCount._1, top10Session));
                         }
-
-                        value = value + "|" + Constants.FIELD_PAY_COUNT + "=" + payCount;
-
-                        return new Tuple2<Long, String>(categoryid, value);
+                        return list;
                     }
-
                 });
-        return tmpMapRDD;
-    }
-
-    /**
-     * 获取top10活跃session
-     * @param sc
-     * @param taskid
-     * @param top10CategoryList
-     * @param sessionid2detailRDD
-     */
-    private static void getTop10Session(
-            JavaSparkContext sc,
-            final long taskid,
-            List<Tuple2<CategorySortKey, String>> top10CategoryList,
-            JavaPairRDD<String, Row> sessionid2detailRDD) {
-
-        /**
-         * 第一步：将top10热门品类的id生成一份RDD
-         */
-
-        //处理List
-        List<Tuple2<Long, Long>> top10CategoryIdList =
-                new ArrayList<Tuple2<Long, Long>>();
 
-        for (Tuple2<CategorySortKey, String> category : top10CategoryList) {
-            long categoryid = Long.valueOf(StringUtils.getFieldFromConcatString(
-                    category._2, "\\|", Constants.FIELD_CATEGORY_ID));
-            top10CategoryIdList.add(new Tuple2<Long, Long>(categoryid, categoryid));
-        }
+        //将top10session写入MySQL表
+        final int writeBatchSize = getWriteBatchSize();
+        top10SessionRDD.foreachPartition(new VoidFunction<Iterator<Tuple2<String, Top10Session>>>() {
 
-        JavaPairRDD<Long, Long> top10CategoryIdRDD =
-                sc.parallelizePairs(top10CategoryIdList);
-
-        /**
-         * 第二步：计算top10品类被各session点击的次数
-         */
-        JavaPairRDD<String, Iterable<Row>> sessionid2detailsRDD =
-                sessionid2detailRDD.groupByKey();
-
-        JavaPairRDD<Long, String> categoryid2sessionCountRDD = sessionid2detailsRDD.flatMapToPair(
-                new PairFlatMapFunction<Tuple2<String, Iterable<Row>>, Long, String>() {
-
-                    private static final long serialVersionUID = 1L;
-
-                    public Iterable<Tuple2<Long, String>> call(
-                            Tuple2<String, Iterable<Row>> tuple) throws Exception {
-
-                        String sessionid = tuple._1;
-                        Iterator<Row> iterator = tuple._2.iterator();
-
-                        Map<Long, Long> categoryCountMap = new HashMap<Long, Long>();
-
-                        //计算出该session对每个品类的点击次数
-                        while(iterator.hasNext()) {
-                            Row row = iterator.next();
-
-                            if(row.get(6) != null) {
-                                long categoryid = row.getLong(6);
-
-                                Long count = categoryCountMap.get(categoryid);
-                                if(count == null) {
-                                    count = 0L;
-                                }
-                                count ++;
+            private static final long serialVersionUID = 1L;
 
-                                categoryCountMap.put(categoryid, count);
-                            }
-                        }
+            public void call(Iterator<Tuple2<String, Top10Session>> iterator) throws Exception {
+                ITop10SessionDAO top10SessionDAO = DAOFactory.getTop10SessionDAO();
+                List<Top10Session> buffer = new ArrayList<Top10Session>();
 
-                        //返回结果为<categoryid,session:count>格式
-                        List<Tuple2<Long, String>> list = new ArrayList<Tuple2<Long, String>>();
-                        for(Map.Entry<Long, Long> categoryCountEntry : categoryCountMap.entrySet()) {
-                            long categoryid = categoryCountEntry.getKey();
-                            long count = categoryCountEntry.getValue();
-                            String value = sessionid + "," + count;
-                            list.add(new Tuple2<Long, String>(categoryid, value));
+                boolean success = false;
+                try {
+                    while(iterator.hasNext()) {
+                        buffer.add(iterator.next()._2);
+                        if(buffer.size() >= writeBatchSize) {
+                            top10SessionDAO.insertBatch(buffer);
+                            buffer.clear();
                         }
-                        return list;
                     }
-                });
-
-        //获取到top10热门品类被各个session点击的次数
-        JavaPairRDD<Long, String> top10CategorySessionCountRDD =
-                top10CategoryIdRDD.join(categoryid2sessionCountRDD)
-                        .mapToPair(new PairFunction<Tuple2<Long, Tuple2<Long, String>>, Long, String>() {
-
-                            private static final long serialVersionUID = 1L;
-
-                            public Tuple2<Long, String> call(
-                                    Tuple2<Long, Tuple2<Long, String>> tuple) throws Exception {
-                                return new Tuple2<Long, String>(tuple._1, tuple._2._2);
-                            }
-                        });
+                    if(!buffer.isEmpty()) {
+                        top10SessionDAO.insertBatch(buffer);
+                    }
+                    //异步写入时，等待数据全部写入MySQL以后task才结束
+                    DAOFactory.awaitWrites();
+                    success = true;
+                } finally {
+                    //task失败时丢弃当前线程还没写出的数据，否则会被这个线程执行的下一个task写出去
+                    if(!success) {
+                        DAOFactory.discardWrites();
+                    }
+                }
+            }
+        });
 
         /**
-         * 第三步：分组取topN算法实现，获取每个品类的top10活跃用户
+         * 第四步：获取top10活跃session的明细数据，并写入MySQL
          */
-        JavaPairRDD<Long, Iterable<String>> top10CategorySessionCountsRDD =
-                top10CategorySessionCountRDD.groupByKey();
-
-        JavaPairRDD<String, String> top10SessionRDD = top10CategorySessionCountsRDD.flatMapToPair(
-                new PairFlatMapFunction<Tuple2<Long, Iterable<String>>, String, String>() {
+        //同一个session可能是多个品类的top session，明细只需要写一次
+        JavaPairRDD<String, String> top10SessionidRDD = top10SessionRDD.keys().distinct().mapToPair(
+                new PairFunction<String, String, String>() {
 
                     private static final long serialVersionUID = 1L;
 
-                    public Iterable<Tuple2<String, String>> call(
-                            Tuple2<Long, Iterable<String>> tuple) throws Exception {
-
-                        long categoryid = tuple._1;
-                        Iterator<String> iterator = tuple._2.iterator();
-
-                        //定义取TopN的排序数组
-                        String[] top10Sessions = new String[10];
-
-                        while(iterator.hasNext()) {
-                            String sessionCount = iterator.next();
-                            long count = Long.valueOf(sessionCount.split(",")[1]);
-
-                            //遍历排序数组
-                            for(int i = 0; i < top10Sessions.length; i++) {
-                                //如果当前位没有数据，直接将i位数据赋值为当前sessioncount
-                                if(top10Sessions[i] == null) {
-                                    top10Sessions[i] = sessionCount;
-                                    break;
-                                }else {
-                                    long _count = Long.valueOf(top10Sessions[i].split(",")[1]);
-
-                                    //如果sessionCount比i位的sessionCount大
-                                    if(count > _count) {
-                                        //从排序数组最后一位开始，到i位所有数据往后挪一位
-                                        for(int j = 9; j > i; j--) {
-                                            top10Sessions[j] = top10Sessions[j - 1];
-                                        }
-                                        //将i位赋值为sessionCount
-                                        top10Sessions[i] = sessionCount;
-                                        break;
-                                    }
-
-                                    //如果sessionCount比i位的sessionCount要小，继续外层for循环
-                                }
-                            }
-                        }
-
-                        //将数据写入MySQL表
-                        List<Tuple2<String, String>> list = new ArrayList<Tuple2<String, String>>();
-
-                        for(String sessionCount : top10Sessions) {
-                            if(sessionCount != null) {
-                                String sessionid = sessionCount.split(",")[0];
-                                long count = Long.valueOf(sessionCount.split(",")[1]);
-
-                                //将top10session插入MySQL表
-                                Top10Session top10Session = new Top10Session();
-                                top10Session.setTaskid(taskid);
-                                top10Session.setCategoryid(categoryid);
-                                top10Session.setSessionid(sessionid);
-                                top10Session.setClickCount(count);
-
-                                ITop10SessionDAO top10SessionDAO = DAOFactory.getTop10SessionDAO();
-                                top10SessionDAO.insert(top10Session);
-
-                                list.add(new Tuple2<String, String>(sessionid, sessionid));
-                            }
-                        }
-
-                        return list;
+                    public Tuple2<String, String> call(String sessionid) throws Exception {
+                        return new Tuple2<String, String>(sessionid, sessionid);
                     }
                 });
+        JavaPairRDD<String, Tuple2<String, ActionRecord>> sessionDetailRDD =
+                top10SessionidRDD.join(sessionid2detailRDD);
+        writeSessionDetails(taskid, sessionDetailRDD.values(), writeBatchSize);
 
-        /**
-         * 第四步：获取top10活跃session的明细数据，并写入MySQL
-         */
-        JavaPairRDD<String, Tuple2<String, Row>> sessionDetailRDD =
-                top10SessionRDD.join(sessionid2detailRDD);
-        sessionDetailRDD.foreach(new VoidFunction<Tuple2<String,Tuple2<String,Row>>>() {
+        //top10活跃session已经全部写完，释放本任务的广播变量
+        top10CategoryIdsBroadcast.destroy();
+    }
 
-            private static final long serialVersionUID = 1L;
+    /**
+     * 将session明细数据写入MySQL
+     *
+     * 之前是在foreach中每条明细调用一次insert，每次都新建DAO、执行一次executeUpdate
+     * 现在每个partition只创建一个DAO，明细攒到writeBatchSize条就批量写入一次
+     * @param taskid 任务id
+     * @param detailRDD 访问明细，只使用其中的ActionRecord
+     * @param writeBatchSize 每批写入的条数
+     */
+    private static <T> void writeSessionDetails(final long taskid,
+            JavaRDD<Tuple2<T, ActionRecord>> detailRDD, final int writeBatchSize) {
+        detailRDD.foreachPartition(new VoidFunction<Iterator<Tuple2<T, ActionRecord>>>() {
 
-            public void call(Tuple2<String, Tuple2<String, Row>> tuple) throws Exception {
-                Row row = tuple._2._2;
-
-                SessionDetail sessionDetail = new SessionDetail();
-                sessionDetail.setTaskid(taskid);
-                sessionDetail.setUserid(row.getLong(1));
-                sessionDetail.setSessionid(row.getString(2));
-                sessionDetail.setPageid(row.getLong(3));
-                sessionDetail.setActionTime(row.getString(4));
-                sessionDetail.setSearchKeyword(row.getString(5));
-                sessionDetail.setClickCategoryId(row.getLong(6));
-                sessionDetail.setClickProductId(row.getLong(7));
-                sessionDetail.setOrderCategoryIds(row.getString(8));
-                sessionDetail.setOrderProductIds(row.getString(9));
-                sessionDetail.setPayCategoryIds(row.getString(10));
-                sessionDetail.setPayProductIds(row.getString(11));
+            private static final long serialVersionUID = 1L;
 
+            public void call(Iterator<Tuple2<T, ActionRecord>> iterator) throws Exception {
                 ISessionDetailDAO sessionDetailDAO = DAOFactory.getSessionDetailDAO();
-                sessionDetailDAO.insert(sessionDetail);
+                List<SessionDetail> buffer = new ArrayList<SessionDetail>();
+
+                boolean success = false;
+                try {
+                    while(iterator.hasNext()) {
+                        buffer.add(toSessionDetail(taskid, iterator.next()._2));
+                        if(buffer.size() >= writeBatchSize) {
+                            sessionDetailDAO.insertBatch(buffer);
+                            buffer.clear();
+                        }
+                    }
+                    if(!buffer.isEmpty()) {
+                        sessionDetailDAO.insertBatch(buffer);
+                    }
+                    //异步写入时，等待数据全部写入MySQL以后task才结束
+                    DAOFactory.awaitWrites();
+                    success = true;
+                } finally {
+                    //task失败时丢弃当前线程还没写出的数据，否则会被这个线程执行的下一个task写出去
+                    if(!success) {
+                        DAOFactory.discardWrites();
+                    }
+                }
             }
         });
     }
+
+    /**
+     * 获取写入MySQL时每批的条数，与JDBCHelper批量执行的条数一致
+     */
+    private static int getWriteBatchSize() {
+        int writeBatchSize = ConfigurationManager.getInteger(Constants.JDBC_BATCH_SIZE);
+        return writeBatchSize > 0 ? writeBatchSize : 500;
+    }
 }
@@ -2,16 +2,49 @@ package com.wolf.sparkproject.util;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
 
 /**
  * 日期时间工具类
+ *
+ * SimpleDateFormat不是线程安全的，而这里的方法会在executor的多个线程中并发调用，
+ * 所以格式化器都放在ThreadLocal中，每个线程一份
+ * 行为时间的解析在每条行为数据上都要执行一次，使用parseTimeMillis直接解析成毫秒值，不创建Date对象
  */
 public class DateUtils {
-	public static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-	
+
+	private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		}
+	};
+
+	private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd");
+		}
+	};
+
+	private static final ThreadLocal<SimpleDateFormat> DATE_HOUR_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd_HH");
+		}
+	};
+
+	private static final ThreadLocal<DayCache> DAY_CACHE = new ThreadLocal<DayCache>() {
+		@Override
+		protected DayCache initialValue() {
+			return new DayCache();
+		}
+	};
+
 	/**
 	 * 判断一个时间是否在另一个时间之前
 	 * @param time1 第一个时间
@@ -20,8 +53,8 @@ public class DateUtils {
 	 */
 	public static boolean before(String time1, String time2){
 		try {
-			Date dateTime1 = TIME_FORMAT.parse(time1);
-			Date dateTime2 = TIME_FORMAT.parse(time2);
+			Date dateTime1 = TIME_FORMAT.get().parse(time1);
+			Date dateTime2 = TIME_FORMAT.get().parse(time2);
 			if (dateTime1.before(dateTime2)) {
 				return true;
 			}
@@ -39,8 +72,8 @@ public class DateUtils {
 	 */
 	public static boolean after(String time1, String time2){
 		try {
-			Date dateTime1 = TIME_FORMAT.parse(time1);
-			Date dateTime2 = TIME_FORMAT.parse(time2);
+			Date dateTime1 = TIME_FORMAT.get().parse(time1);
+			Date dateTime2 = TIME_FORMAT.get().parse(time2);
 			if (dateTime1.after(dateTime2)) {
 				return true;
 			}
@@ -58,8 +91,8 @@ public class DateUtils {
 	 */
 	public static int minus(String time1, String time2){
 		try {
-			Date dateTime1 = TIME_FORMAT.parse(time1);
-			Date dateTime2 = TIME_FORMAT.parse(time2);
+			Date dateTime1 = TIME_FORMAT.get().parse(time1);
+			Date dateTime2 = TIME_FORMAT.get().parse(time2);
 			long millisecond = dateTime1.getTime() - dateTime2.getTime();
 			return Integer.valueOf(String.valueOf(millisecond / 1000));
 		} catch (ParseException e) {
@@ -80,12 +113,21 @@ public class DateUtils {
 		return date + "_" + hour;
 	}
 
+	/**
+	 * 获取年月日和小时
+	 * @param millis 时间的毫秒值
+	 * @return 结果（yyyy-MM-dd_HH）
+	 */
+	public static String getDateHour(long millis) {
+		return DATE_HOUR_FORMAT.get().format(millis);
+	}
+
 	/**
 	 * 获取当天日期（yyyy-MM-dd）
 	 * @return 当天日期
 	 */
 	public static String getTodayDate(){
-		return DATE_FORMAT.format(new Date());
+		return DATE_FORMAT.get().format(new Date());
 	}
 	
 	/**
@@ -97,16 +139,45 @@ public class DateUtils {
 		cal.setTime(new Date());
 		cal.add(Calendar.DAY_OF_YEAR, -1);
 		Date date = cal.getTime();
-		return DATE_FORMAT.format(date);
+		return DATE_FORMAT.get().format(date);
 	}
 	
+	/**
+	 * 获取两个日期之间的所有日期（yyyy-MM-dd），包括起止日期
+	 * @param startDate 开始日期
+	 * @param endDate 结束日期
+	 * @return 日期列表
+	 */
+	public static List<String> getDatesBetween(String startDate, String endDate) {
+		List<String> dates = new ArrayList<String>();
+		//从中午开始按天累加，避免夏令时切换的日期没有0点
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(parseTimeMillis(startDate + " 12:00:00"));
+		String date = startDate;
+		while(date.compareTo(endDate) <= 0) {
+			dates.add(date);
+			cal.add(Calendar.DAY_OF_YEAR, 1);
+			date = DATE_FORMAT.get().format(cal.getTime());
+		}
+		return dates;
+	}
+
 	/**
      * 格式化日期（yyyy-MM-dd）
      * @param date Date对象
      * @return 格式化后的日期
      */
     public static String formatDate(Date date) {
-        return DATE_FORMAT.format(date);
+        return DATE_FORMAT.get().format(date);
+    }
+
+    /**
+     * 格式化日期（yyyy-MM-dd）
+     * @param millis 时间的毫秒值
+     * @return 格式化后的日期
+     */
+    public static String formatDate(long millis) {
+        return DATE_FORMAT.get().format(millis);
     }
 
     /**
@@ -115,7 +186,16 @@ public class DateUtils {
      * @return 格式化后的时间
      */
     public static String formatTime(Date date) {
-        return TIME_FORMAT.format(date);
+        return TIME_FORMAT.get().format(date);
+    }
+
+    /**
+     * 格式化时间（yyyy-MM-dd HH:mm:ss）
+     * @param millis 时间的毫秒值
+     * @return 格式化后的时间
+     */
+    public static String formatTime(long millis) {
+        return TIME_FORMAT.get().format(millis);
     }
     
     /**
@@ -125,10 +205,134 @@ public class DateUtils {
      */
     public static Date parseTime(String time){
     	try {
-			return TIME_FORMAT.parse(time);
-		} catch (ParseException e) {
+			return new Date(parseTimeMillis(time));
+		} catch (IllegalArgumentException e) {
 			e.printStackTrace();
 		}
     	return null;
     }
+
+    /**
+     * 将时间字符串直接解析成毫秒值
+     *
+     * 按yyyy-MM-dd H:mm:ss的固定格式逐个字符解析，时分秒允许只有一位（模拟数据中的小时没有补0）
+     * 同一天的零点毫秒值缓存在当前线程中，同一个日期只用Calendar计算一次
+     * 时区使用当前线程第一次解析时的默认时区
+     * 不符合固定格式的字符串交给SimpleDateFormat解析
+     * @param time 时间字符串（yyyy-MM-dd HH:mm:ss）
+     * @return 毫秒值
+     * @throws IllegalArgumentException 时间字符串无法解析
+     */
+    public static long parseTimeMillis(String time) {
+    	long millis = parseFixedLayout(time);
+    	if(millis != Long.MIN_VALUE) {
+    		return millis;
+    	}
+    	try {
+			return TIME_FORMAT.get().parse(time).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("无法解析时间：" + time, e);
+		}
+    }
+
+    /**
+     * 按固定格式解析，格式不符时返回Long.MIN_VALUE
+     */
+    private static long parseFixedLayout(String time) {
+    	int length = time.length();
+    	if(length < 14 || length > 19 || time.charAt(4) != '-'
+    			|| time.charAt(7) != '-' || time.charAt(10) != ' ') {
+    		return Long.MIN_VALUE;
+    	}
+    	int year = parseDigits(time, 0, 4);
+    	int month = parseDigits(time, 5, 7);
+    	int day = parseDigits(time, 8, 10);
+    	if(year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+    		return Long.MIN_VALUE;
+    	}
+
+    	//时分秒都可能只有一位，依次读到下一个冒号为止
+    	int hour = 0, minute = 0, second = 0;
+    	int pos = 11;
+    	for(int field = 0; field < 3; field++) {
+    		int value = 0;
+    		int width = 0;
+    		while(pos < length && time.charAt(pos) != ':') {
+    			char c = time.charAt(pos++);
+    			if(c < '0' || c > '9' || ++width > 2) {
+    				return Long.MIN_VALUE;
+    			}
+    			value = value * 10 + (c - '0');
+    		}
+    		//时和分后面必须是冒号，秒必须在字符串末尾
+    		if(width == 0 || (field < 2) == (pos == length)) {
+    			return Long.MIN_VALUE;
+    		}
+    		pos++;
+    		if(field == 0) {
+    			hour = value;
+    		} else if(field == 1) {
+    			minute = value;
+    		} else {
+    			second = value;
+    		}
+    	}
+    	if(hour > 23 || minute > 59 || second > 59) {
+    		return Long.MIN_VALUE;
+    	}
+
+    	DayCache cache = DAY_CACHE.get();
+    	int dayKey = year * 10000 + month * 100 + day;
+    	if(cache.dayKey != dayKey) {
+    		cache.load(year, month, day, dayKey);
+    	}
+    	long millis = cache.dayStart + hour * 3600000L + minute * 60000L + second * 1000L;
+
+    	//当天发生夏令时切换时，零点加偏移量的结果不准确，交给Calendar计算
+    	if(cache.hasTransition) {
+    		Calendar calendar = cache.calendar;
+    		calendar.clear();
+    		calendar.set(year, month - 1, day, hour, minute, second);
+    		millis = calendar.getTimeInMillis();
+    	}
+    	return millis;
+    }
+
+    /**
+     * 解析[start, end)范围内的数字，包含非数字字符时返回-1
+     */
+    private static int parseDigits(String s, int start, int end) {
+    	int value = 0;
+    	for(int i = start; i < end; i++) {
+    		char c = s.charAt(i);
+    		if(c < '0' || c > '9') {
+    			return -1;
+    		}
+    		value = value * 10 + (c - '0');
+    	}
+    	return value;
+    }
+
+    /**
+     * 每个线程缓存最近一次解析的日期的零点毫秒值
+     */
+    private static class DayCache {
+    	int dayKey = -1;
+    	long dayStart;
+    	boolean hasTransition;
+    	TimeZone timeZone;
+    	Calendar calendar;
+
+    	void load(int year, int month, int day, int dayKey) {
+    		if(calendar == null) {
+    			timeZone = TimeZone.getDefault();
+    			calendar = Calendar.getInstance(timeZone);
+    		}
+    		calendar.clear();
+    		calendar.set(year, month - 1, day, 0, 0, 0);
+    		dayStart = calendar.getTimeInMillis();
+    		hasTransition = timeZone.getOffset(dayStart) != timeZone.getOffset(dayStart + 86400000L);
+    		this.dayKey = dayKey;
+    	}
+    }
 }
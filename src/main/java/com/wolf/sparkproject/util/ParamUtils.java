@@ -3,6 +3,9 @@ package com.wolf.sparkproject.util;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 参数工具类
  */
@@ -23,6 +26,26 @@ public class ParamUtils {
 		return null;
 	}
 	
+	/**
+	 * 从命令行参数中提取多个任务id
+	 * @param args 命令行参数
+	 * @return 任务id列表，参数不是数字时返回null
+	 */
+	public static List<Long> getTaskIdsFromArgs(String[] args){
+		try {
+			if (args != null && args.length > 0) {
+				List<Long> taskids = new ArrayList<Long>();
+				for (String arg : args) {
+					taskids.add(Long.valueOf(arg));
+				}
+				return taskids;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
 	/**
 	 * 从JSON对象中提取参数
 	 * @param jsonObject JSON对象
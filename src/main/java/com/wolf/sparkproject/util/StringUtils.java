@@ -105,4 +105,38 @@ public class StringUtils {
 
         return buffer.toString();
     }
+
+    /**
+     * 使用分隔符拼接字符串数组
+     * @param values 字符串数组
+     * @param delimiter 分隔符
+     * @return 拼接后的字符串
+     */
+    public static String join(String[] values, String delimiter) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < values.length; i++) {
+            if(i > 0) {
+                builder.append(delimiter);
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 使用分隔符拼接long数组
+     * @param values long数组
+     * @param delimiter 分隔符
+     * @return 拼接后的字符串
+     */
+    public static String join(long[] values, String delimiter) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < values.length; i++) {
+            if(i > 0) {
+                builder.append(delimiter);
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
 }
@@ -0,0 +1,72 @@
+package com.wolf.sparkproject.impl;
+
+import com.wolf.sparkproject.constant.Constants;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 任务管理DAO测试类
+ * 记录发送给MySQL的SQL和参数，更新行数由测试指定，不连接MySQL
+ */
+public class TaskDAOImplTest extends TestCase {
+
+    /**
+     * 记录每次执行的SQL和参数，返回指定的更新行数
+     */
+    private static class RecordingTaskDAO extends TaskDAOImpl {
+
+        private final List<String> sqls = new ArrayList<String>();
+        private final List<Object[]> paramsList = new ArrayList<Object[]>();
+        private int updateCount;
+
+        @Override
+        int executeUpdate(String sql, Object[] params) {
+            sqls.add(sql);
+            paramsList.add(params);
+            return updateCount;
+        }
+    }
+
+    private RecordingTaskDAO taskDAO;
+
+    @Override
+    protected void setUp() {
+        taskDAO = new RecordingTaskDAO();
+    }
+
+    public void testStartSendsConditionalUpdate() {
+        taskDAO.updateCount = 1;
+        taskDAO.start(1L, Constants.TASK_STATUS_CREATED, "2026-01-01 00:00:00");
+
+        assertEquals(1, taskDAO.sqls.size());
+        assertEquals("update task set task_status=?,start_time=? where task_id=? and task_status=?",
+                taskDAO.sqls.get(0));
+        assertEquals(Arrays.asList(Constants.TASK_STATUS_RUNNING, "2026-01-01 00:00:00", 1L,
+                Constants.TASK_STATUS_CREATED), Arrays.asList(taskDAO.paramsList.get(0)));
+    }
+
+    public void testStartSucceedsWhenOneRowUpdated() {
+        taskDAO.updateCount = 1;
+        assertTrue(taskDAO.start(1L, Constants.TASK_STATUS_CREATED, "2026-01-01 00:00:00"));
+    }
+
+    public void testStartFailsWhenNoRowUpdated() {
+        //任务不存在，或者状态已经被其他driver改掉
+        taskDAO.updateCount = 0;
+        assertFalse(taskDAO.start(1L, Constants.TASK_STATUS_CREATED, "2026-01-01 00:00:00"));
+    }
+
+    public void testFinishSendsUpdate() {
+        taskDAO.updateCount = 1;
+        taskDAO.finish(1L, Constants.TASK_STATUS_FINISHED, "2026-01-01 00:01:00");
+
+        assertEquals(1, taskDAO.sqls.size());
+        assertEquals("update task set task_status=?,finish_time=? where task_id=?",
+                taskDAO.sqls.get(0));
+        assertEquals(Arrays.asList(Constants.TASK_STATUS_FINISHED, "2026-01-01 00:01:00", 1L),
+                Arrays.asList(taskDAO.paramsList.get(0)));
+    }
+}
@@ -0,0 +1,128 @@
+package com.wolf.sparkproject.jdbc;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 异步写入组件测试类
+ * 使用内存中的BatchExecutor代替MySQL
+ */
+public class WriteBehindWriterTest extends TestCase {
+
+    private static final String SLOW_SQL = "insert into slow values(?)";
+    private static final String FAST_SQL = "insert into fast values(?)";
+    private static final String FAILING_SQL = "insert into failing values(?)";
+
+    private final List<Object> executed = Collections.synchronizedList(new ArrayList<Object>());
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+
+    private final WriteBehindWriter.BatchExecutor batchExecutor = new WriteBehindWriter.BatchExecutor() {
+        public void executeBatch(String sql, List<Object[]> paramsList) {
+            if(SLOW_SQL.equals(sql)) {
+                try {
+                    slowReleased.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if(FAILING_SQL.equals(sql)) {
+                throw new RuntimeException("模拟写入失败");
+            }
+            for(Object[] params : paramsList) {
+                executed.add(params[0]);
+            }
+        }
+    };
+
+    public void testFlushWithoutWrites() {
+        WriteBehindWriter writer = new WriteBehindWriter(10, 1, 10, batchExecutor);
+        writer.flush();
+    }
+
+    public void testFlushWaitsForOwnWrites() {
+        WriteBehindWriter writer = new WriteBehindWriter(100, 1, 10, batchExecutor);
+        for(int i = 0; i < 50; i++) {
+            writer.write(FAST_SQL, new Object[]{i});
+        }
+        writer.flush();
+
+        assertEquals(50, executed.size());
+    }
+
+    public void testFlushDoesNotWaitForOtherThreads() throws Exception {
+        //两个写线程，一个被其他线程的慢写入占住时，另一个仍然可以执行当前线程的数据
+        final WriteBehindWriter writer = new WriteBehindWriter(100, 2, 1, batchExecutor);
+        final CountDownLatch slowSubmitted = new CountDownLatch(1);
+        final CountDownLatch otherFlushed = new CountDownLatch(1);
+
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                writer.write(SLOW_SQL, new Object[]{"slow"});
+                slowSubmitted.countDown();
+                writer.flush();
+                otherFlushed.countDown();
+            }
+        });
+        other.start();
+        assertTrue(slowSubmitted.await(5, TimeUnit.SECONDS));
+
+        writer.write(FAST_SQL, new Object[]{"fast"});
+        writer.flush();
+
+        assertTrue(executed.contains("fast"));
+        assertFalse(executed.contains("slow"));
+        assertEquals(1, otherFlushed.getCount());
+
+        slowReleased.countDown();
+        assertTrue(otherFlushed.await(5, TimeUnit.SECONDS));
+        assertTrue(executed.contains("slow"));
+    }
+
+    public void testFlushThrowsOnOwnFailure() {
+        WriteBehindWriter writer = new WriteBehindWriter(10, 1, 10, batchExecutor);
+        writer.write(FAST_SQL, new Object[]{1});
+        writer.write(FAILING_SQL, new Object[]{2});
+
+        try {
+            writer.flush();
+            fail("写入失败时flush应该抛出异常");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("1"));
+        }
+
+        //失败只影响已经flush过的凭证，之后的写入可以正常flush
+        writer.write(FAST_SQL, new Object[]{3});
+        writer.flush();
+        assertTrue(executed.contains(3));
+    }
+
+    public void testOtherThreadFailureDoesNotFailFlush() throws Exception {
+        final WriteBehindWriter writer = new WriteBehindWriter(10, 1, 10, batchExecutor);
+        final AtomicReference<RuntimeException> otherError = new AtomicReference<RuntimeException>();
+
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                writer.write(FAILING_SQL, new Object[]{"failing"});
+                try {
+                    writer.flush();
+                } catch (RuntimeException e) {
+                    otherError.set(e);
+                }
+            }
+        });
+        other.start();
+        other.join(5000);
+
+        writer.write(FAST_SQL, new Object[]{"fast"});
+        writer.flush();
+
+        assertNotNull(otherError.get());
+        assertTrue(executed.contains("fast"));
+    }
+}
@@ -0,0 +1,51 @@
+package com.wolf.sparkproject.spark.session;
+
+import junit.framework.TestCase;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 品类二次排序key测试类
+ */
+public class CategorySortKeyTest extends TestCase {
+
+    public void testComparesClickThenOrderThenPay() {
+        CategorySortKey key = new CategorySortKey(10L, 5L, 1L);
+
+        assertTrue(key.$greater(new CategorySortKey(9L, 100L, 100L)));
+        assertTrue(key.$less(new CategorySortKey(10L, 6L, 0L)));
+        assertTrue(key.$greater(new CategorySortKey(10L, 5L, 0L)));
+        assertTrue(key.$less$eq(new CategorySortKey(10L, 5L, 1L)));
+        assertTrue(key.$greater$eq(new CategorySortKey(10L, 5L, 1L)));
+        assertEquals(0, key.compareTo(new CategorySortKey(10L, 5L, 1L)));
+    }
+
+    public void testCountsBeyondIntRange() {
+        //相减再强转成int时，这两个key的比较结果会反过来
+        CategorySortKey big = new CategorySortKey(Integer.MAX_VALUE + 10L, 0L, 0L);
+        CategorySortKey small = new CategorySortKey(1L, 0L, 0L);
+
+        assertTrue(big.compare(small) > 0);
+        assertTrue(small.compare(big) < 0);
+        assertTrue(CategorySortKey.COMPARATOR.compare(new CategorySortKey(0L, Long.MAX_VALUE, 0L),
+                new CategorySortKey(0L, Long.MIN_VALUE, 0L)) > 0);
+    }
+
+    public void testCategoryCountComparatorSortsDescending() {
+        List<Tuple2<Long, CategorySortKey>> categories = new ArrayList<Tuple2<Long, CategorySortKey>>();
+        categories.add(new Tuple2<Long, CategorySortKey>(1L, new CategorySortKey(5L, 0L, 0L)));
+        categories.add(new Tuple2<Long, CategorySortKey>(2L, new CategorySortKey(7L, 1L, 0L)));
+        categories.add(new Tuple2<Long, CategorySortKey>(3L, new CategorySortKey(7L, 1L, 3L)));
+        categories.add(new Tuple2<Long, CategorySortKey>(4L, new CategorySortKey(6L, 9L, 9L)));
+
+        Collections.sort(categories, new CategoryCountComparator());
+
+        assertEquals(3L, (long) categories.get(0)._1);
+        assertEquals(2L, (long) categories.get(1)._1);
+        assertEquals(4L, (long) categories.get(2)._1);
+        assertEquals(1L, (long) categories.get(3)._1);
+    }
+}
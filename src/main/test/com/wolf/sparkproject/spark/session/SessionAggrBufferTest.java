@@ -0,0 +1,86 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.wolf.sparkproject.domain.ActionRecord;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * session聚合缓冲区测试类
+ */
+public class SessionAggrBufferTest extends TestCase {
+
+    public void testAdd() {
+        SessionAggrBuffer buffer = new SessionAggrBuffer()
+                .add(search(1L, 3000L, "火锅"))
+                .add(click(1L, 1000L, 5L))
+                .add(search(1L, 9000L, "火锅"));
+
+        assertEquals(1L, buffer.getUserid());
+        assertEquals(Collections.singletonList("火锅"), Arrays.asList(buffer.getSearchKeywords().toArray()));
+        assertEquals(Collections.singletonList(5L), Arrays.asList(buffer.getClickCategoryIds().toArray()));
+        assertEquals(1000L, buffer.getStartTime());
+        assertEquals(9000L, buffer.getEndTime());
+        assertEquals(8L, buffer.getVisitLength());
+        assertEquals(3, buffer.getStepLength());
+    }
+
+    public void testMerge() {
+        SessionAggrBuffer buffer1 = new SessionAggrBuffer()
+                .add(search(1L, 5000L, "火锅"))
+                .add(click(1L, 6000L, 5L));
+        SessionAggrBuffer buffer2 = new SessionAggrBuffer()
+                .add(click(1L, 2000L, 7L))
+                .add(search(1L, 20000L, "蛋糕"))
+                .add(click(1L, 21000L, 5L));
+
+        SessionAggrBuffer merged = buffer1.merge(buffer2);
+
+        assertEquals(1L, merged.getUserid());
+        assertEquals(Arrays.asList("火锅", "蛋糕"), Arrays.asList(merged.getSearchKeywords().toArray()));
+        assertEquals(Arrays.asList(5L, 7L), Arrays.asList(merged.getClickCategoryIds().toArray()));
+        assertEquals(2000L, merged.getStartTime());
+        assertEquals(21000L, merged.getEndTime());
+        assertEquals(5, merged.getStepLength());
+    }
+
+    public void testMergeIntoEmptyBuffer() {
+        SessionAggrBuffer other = new SessionAggrBuffer().add(click(8L, 4000L, 3L));
+
+        SessionAggrBuffer merged = new SessionAggrBuffer().merge(other);
+
+        assertEquals(8L, merged.getUserid());
+        assertEquals(4000L, merged.getStartTime());
+        assertEquals(4000L, merged.getEndTime());
+        assertEquals(1, merged.getStepLength());
+    }
+
+    public void testRestore() {
+        SessionAggrBuffer buffer = SessionAggrBuffer.restore(2L, Arrays.asList("火锅"),
+                Arrays.asList(5L, 7L), 1000L, 61000L, 4);
+
+        assertEquals(2L, buffer.getUserid());
+        assertTrue(buffer.containsAnySearchKeyword(Collections.singleton("火锅")));
+        assertTrue(buffer.containsAnyClickCategoryId(Collections.singleton(7L)));
+        assertFalse(buffer.containsAnyClickCategoryId(Collections.singleton(9L)));
+        assertEquals(60L, buffer.getVisitLength());
+        assertEquals(4, buffer.getStepLength());
+    }
+
+    private static ActionRecord search(long userid, long actionTime, String keyword) {
+        ActionRecord action = new ActionRecord();
+        action.setUserid(userid);
+        action.setActionTime(actionTime);
+        action.setSearchKeyword(keyword);
+        return action;
+    }
+
+    private static ActionRecord click(long userid, long actionTime, long categoryId) {
+        ActionRecord action = new ActionRecord();
+        action.setUserid(userid);
+        action.setActionTime(actionTime);
+        action.setClickCategoryId(categoryId);
+        return action;
+    }
+}
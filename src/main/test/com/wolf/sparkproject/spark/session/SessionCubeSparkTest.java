@@ -0,0 +1,63 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.wolf.sparkproject.domain.ActionRecord;
+import junit.framework.TestCase;
+
+/**
+ * session cube测试类
+ */
+public class SessionCubeSparkTest extends TestCase {
+
+    public void testBucketCounts() {
+        //访问时长5秒，访问步长2
+        SessionAggrBuffer buffer = new SessionAggrBuffer()
+                .add(action(1000L))
+                .add(action(6000L));
+
+        long[] counts = SessionCubeSpark.bucketCounts(buffer);
+
+        assertEquals(SesssionAggrStatAccumulator.BUCKET_COUNT, counts.length);
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.SESSION_COUNT]);
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.TIME_PERIOD_4s_6s]);
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.STEP_PERIOD_1_3]);
+        assertEquals(3L, sum(counts));
+    }
+
+    public void testBucketCountsWithoutVisitLengthBucket() {
+        //只有一次访问行为，访问时长为0，不属于任何访问时长区间
+        SessionAggrBuffer buffer = new SessionAggrBuffer().add(action(1000L));
+
+        long[] counts = SessionCubeSpark.bucketCounts(buffer);
+
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.SESSION_COUNT]);
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.STEP_PERIOD_1_3]);
+        assertEquals(2L, sum(counts));
+    }
+
+    public void testBucketCountsForLongSession() {
+        SessionAggrBuffer buffer = new SessionAggrBuffer();
+        for(int i = 0; i < 61; i++) {
+            buffer.add(action(i * 60 * 1000L));
+        }
+
+        long[] counts = SessionCubeSpark.bucketCounts(buffer);
+
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.TIME_PERIOD_30m]);
+        assertEquals(1L, counts[SesssionAggrStatAccumulator.STEP_PERIOD_60]);
+    }
+
+    private static ActionRecord action(long actionTime) {
+        ActionRecord action = new ActionRecord();
+        action.setUserid(1L);
+        action.setActionTime(actionTime);
+        return action;
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0L;
+        for(long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,33 @@
+package com.wolf.sparkproject.spark.session;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.alibaba.fastjson.JSONObject;
+import com.wolf.sparkproject.constant.Constants;
+import junit.framework.TestCase;
+
+/**
+ * session过滤器测试类
+ */
+public class SessionFilterTest extends TestCase {
+
+    public void testKeywordsAreTrimmed() {
+        JSONObject taskParam = JSONObject.parseObject(
+                "{\"" + Constants.PARAM_KEYWORDS + "\":[\"火锅, 蛋糕 ,,\"]}");
+
+        //没有指定用户属性条件，不会用到用户信息字典
+        SessionFilter filter = SessionFilter.compile(taskParam, null);
+
+        assertEquals(new HashSet<String>(Arrays.asList("火锅", "蛋糕")), filter.getKeywords());
+    }
+
+    public void testCategoryIdsSkipEmptyEntries() {
+        JSONObject taskParam = JSONObject.parseObject(
+                "{\"" + Constants.PARAM_CATEGORY_IDS + "\":[\"1, 2,,\"]}");
+
+        SessionFilter filter = SessionFilter.compile(taskParam, null);
+
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L)), filter.getCategoryIds());
+    }
+}
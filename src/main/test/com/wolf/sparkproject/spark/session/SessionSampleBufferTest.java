@@ -0,0 +1,105 @@
+package com.wolf.sparkproject.spark.session;
+
+import com.wolf.sparkproject.domain.SessionAggrInfo;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * session抽样缓冲区测试类
+ */
+public class SessionSampleBufferTest extends TestCase {
+
+    public void testKeepsSmallestPriorities() {
+        SessionSampleBuffer buffer = new SessionSampleBuffer(3);
+        long[] priorities = {50L, 10L, 40L, 30L, 20L, 60L};
+        for(long priority : priorities) {
+            buffer.offer(priority, session("s" + priority));
+        }
+
+        assertEquals(asSet("s10", "s20", "s30"), sessionids(buffer));
+    }
+
+    public void testDoesNotExceedQuota() {
+        SessionSampleBuffer buffer = new SessionSampleBuffer(2);
+        buffer.offer(1L, session("a"));
+
+        assertEquals(1, buffer.getSessions().size());
+
+        buffer.offer(2L, session("b")).offer(3L, session("c"));
+
+        assertEquals(2, buffer.getSessions().size());
+    }
+
+    public void testZeroQuota() {
+        SessionSampleBuffer buffer = new SessionSampleBuffer(0);
+        buffer.offer(1L, session("a"));
+
+        assertTrue(buffer.getSessions().isEmpty());
+    }
+
+    public void testMergeMatchesGlobalSample() {
+        long seed = 42L;
+        int capacity = 10;
+
+        List<String> sessionids = new ArrayList<String>();
+        for(int i = 0; i < 200; i++) {
+            sessionids.add("session" + i);
+        }
+
+        //全局抽样：按优先级排序后取前capacity个
+        List<Long> priorities = new ArrayList<Long>();
+        for(String sessionid : sessionids) {
+            priorities.add(SessionSampleBuffer.priority(seed, sessionid));
+        }
+        List<Long> sortedPriorities = new ArrayList<Long>(priorities);
+        Collections.sort(sortedPriorities);
+        Set<String> expected = new HashSet<String>();
+        for(int i = 0; i < sessionids.size(); i++) {
+            if(priorities.get(i) <= sortedPriorities.get(capacity - 1)) {
+                expected.add(sessionids.get(i));
+            }
+        }
+
+        //分成3个partition分别抽样再合并
+        SessionSampleBuffer[] partitions = new SessionSampleBuffer[3];
+        for(int i = 0; i < partitions.length; i++) {
+            partitions[i] = new SessionSampleBuffer(capacity);
+        }
+        for(int i = 0; i < sessionids.size(); i++) {
+            partitions[i % partitions.length].offer(priorities.get(i), session(sessionids.get(i)));
+        }
+        SessionSampleBuffer merged = partitions[0].merge(partitions[1]).merge(partitions[2]);
+
+        assertEquals(expected, sessionids(merged));
+    }
+
+    public void testPriorityIsDeterministic() {
+        assertEquals(SessionSampleBuffer.priority(7L, "abc"), SessionSampleBuffer.priority(7L, "abc"));
+        assertFalse(SessionSampleBuffer.priority(7L, "abc") == SessionSampleBuffer.priority(8L, "abc"));
+    }
+
+    private static SessionAggrInfo session(String sessionid) {
+        SessionAggrInfo aggrInfo = new SessionAggrInfo();
+        aggrInfo.setSessionid(sessionid);
+        return aggrInfo;
+    }
+
+    private static Set<String> sessionids(SessionSampleBuffer buffer) {
+        Set<String> sessionids = new HashSet<String>();
+        for(SessionAggrInfo aggrInfo : buffer.getSessions()) {
+            sessionids.add(aggrInfo.getSessionid());
+        }
+        return sessionids;
+    }
+
+    private static Set<String> asSet(String... values) {
+        Set<String> set = new HashSet<String>();
+        Collections.addAll(set, values);
+        return set;
+    }
+}
@@ -0,0 +1,116 @@
+package com.wolf.sparkproject.spark.session;
+
+import junit.framework.TestCase;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 用户信息查找表测试类
+ */
+public class UserInfoLookupTest extends TestCase {
+
+    public void testPackAndUnpack() {
+        long userInfo = UserInfoLookup.pack(35, 12, 7, 1);
+
+        assertEquals(35, UserInfoLookup.unpackAge(userInfo));
+        assertEquals(12, UserInfoLookup.unpackProfessional(userInfo));
+        assertEquals(7, UserInfoLookup.unpackCity(userInfo));
+        assertEquals(1, UserInfoLookup.unpackSex(userInfo));
+    }
+
+    public void testPackUnknownFields() {
+        long userInfo = UserInfoLookup.pack(-1, -1, -1, -1);
+
+        assertEquals(0L, userInfo);
+        assertEquals(-1, UserInfoLookup.unpackAge(userInfo));
+        assertEquals(-1, UserInfoLookup.unpackProfessional(userInfo));
+        assertEquals(-1, UserInfoLookup.unpackCity(userInfo));
+        assertEquals(-1, UserInfoLookup.unpackSex(userInfo));
+    }
+
+    public void testPackMaxFieldValues() {
+        int max = UserInfoLookup.MAX_FIELD_VALUE;
+        long userInfo = UserInfoLookup.pack(max, max, max, max);
+
+        //最高位被占用，打包结果是负数，解包时不能带上符号位
+        assertTrue(userInfo < 0);
+        assertEquals(max, UserInfoLookup.unpackAge(userInfo));
+        assertEquals(max, UserInfoLookup.unpackProfessional(userInfo));
+        assertEquals(max, UserInfoLookup.unpackCity(userInfo));
+        assertEquals(max, UserInfoLookup.unpackSex(userInfo));
+    }
+
+    public void testFieldsDoNotOverlap() {
+        long userInfo = UserInfoLookup.pack(0, UserInfoLookup.MAX_FIELD_VALUE, 0, UserInfoLookup.MAX_FIELD_VALUE);
+
+        assertEquals(0, UserInfoLookup.unpackAge(userInfo));
+        assertEquals(UserInfoLookup.MAX_FIELD_VALUE, UserInfoLookup.unpackProfessional(userInfo));
+        assertEquals(0, UserInfoLookup.unpackCity(userInfo));
+        assertEquals(UserInfoLookup.MAX_FIELD_VALUE, UserInfoLookup.unpackSex(userInfo));
+    }
+
+    public void testIndexOf() {
+        List<Tuple2<Long, Long>> userid2InfoList = new ArrayList<Tuple2<Long, Long>>();
+        userid2InfoList.add(new Tuple2<Long, Long>(30L, UserInfoLookup.pack(30, 3, 3, 0)));
+        userid2InfoList.add(new Tuple2<Long, Long>(10L, UserInfoLookup.pack(10, 1, 1, 1)));
+        userid2InfoList.add(new Tuple2<Long, Long>(20L, UserInfoLookup.pack(20, 2, 2, 0)));
+
+        UserInfoLookup lookup = new UserInfoLookup(userid2InfoList);
+
+        assertEquals(3, lookup.size());
+        int index = lookup.indexOf(20L);
+        assertTrue(index >= 0);
+        assertEquals(20, UserInfoLookup.unpackAge(lookup.userInfoAt(index)));
+        assertEquals(10, UserInfoLookup.unpackAge(lookup.userInfoAt(lookup.indexOf(10L))));
+        assertEquals(30, UserInfoLookup.unpackAge(lookup.userInfoAt(lookup.indexOf(30L))));
+        assertTrue(lookup.indexOf(15L) < 0);
+        assertTrue(lookup.indexOf(40L) < 0);
+    }
+
+    public void testPackRejectsOutOfRangeAge() {
+        try {
+            UserInfoLookup.pack(UserInfoLookup.MAX_FIELD_VALUE + 1, 0, 0, 0);
+            fail();
+        } catch(IllegalArgumentException e) {
+            //年龄超出16位会覆盖职业字段
+        }
+        try {
+            UserInfoLookup.pack(-2, 0, 0, 0);
+            fail();
+        } catch(IllegalArgumentException e) {
+            //-1以下的值无法加1后保存
+        }
+    }
+
+    public void testBuildAndConcat() {
+        UserInfoLookup first = new UserInfoLookup.Builder()
+                .add(10L, UserInfoLookup.pack(10, 1, 1, 1))
+                .add(20L, UserInfoLookup.pack(20, 2, 2, 0))
+                .build();
+        UserInfoLookup empty = new UserInfoLookup.Builder().build();
+        UserInfoLookup second = new UserInfoLookup.Builder()
+                .add(30L, UserInfoLookup.pack(30, 3, 3, 0))
+                .build();
+
+        UserInfoLookup lookup = UserInfoLookup.concat(Arrays.asList(first, empty, second));
+
+        assertEquals(3, lookup.size());
+        assertEquals(10, UserInfoLookup.unpackAge(lookup.userInfoAt(lookup.indexOf(10L))));
+        assertEquals(20, UserInfoLookup.unpackAge(lookup.userInfoAt(lookup.indexOf(20L))));
+        assertEquals(30, UserInfoLookup.unpackAge(lookup.userInfoAt(lookup.indexOf(30L))));
+        assertTrue(lookup.indexOf(25L) < 0);
+    }
+
+    public void testBuilderRejectsUnsortedUserid() {
+        UserInfoLookup.Builder builder = new UserInfoLookup.Builder().add(20L, 0L);
+        try {
+            builder.add(10L, 0L);
+            fail();
+        } catch(IllegalArgumentException e) {
+            //concat依赖每段查找表内部有序
+        }
+    }
+}